@@ -0,0 +1,102 @@
+package edu.pdx.imagej.deconv;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The three deconvolution engines on a synthetic hyperstack: a whole Wiener deconvolution, one iteration of iterative
+// deconvolution, and one iteration of ER-Decon
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class Deconvolution_Benchmark {
+
+    @Param({"2"})
+    public int frames;
+
+    @Param({"16", "32"})
+    public int slices;
+
+    @Param({"64", "128"})
+    public int size;
+
+    private float[][][][] image;
+    private float[][][] psf;
+    private float[][][] zeros;
+    private float[][][][] result;
+    private Deconvolver wiener;
+    private Deconvolver iterativeReal;
+    private Deconvolver iterativeComplex;
+    private Regularization_Utils regularization;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        image = Synthetic_Data.hyperstack(frames, slices, size, size, 1);
+        psf = Synthetic_Data.psf(slices, size, size);
+        zeros = new float[slices][size][size];
+        result = new float[frames][][][];
+        wiener = new Wiener_Deconvolver(psf, null, "Standard", 0.001f, false, false);
+        iterativeReal = new Iterative_Deconvolver(psf, null, "Standard", 1, 0.001f, false);
+        iterativeComplex = new Iterative_Deconvolver(psf, zeros, "Complex (Polar)", 1, 0.001f, false);
+    }
+
+    // ER-Decon changes its guess every iteration and eventually runs out of damping, so each measurement iteration
+    // starts again from the first guess. The set-up is not timed
+    @Setup(Level.Iteration)
+    public void setupRegularization() {
+        Complex_Volume[] shifted = new Complex_Volume[frames];
+        for (int i = 0; i < frames; i++) {
+            float[][][] frame = Synthetic_Data.volume(slices, size, size, 1 + i);
+            Deconvolve_Image_Utils.linearShift(frame, 0, 1);
+            shifted[i] = new Complex_Volume(slices, size, size);
+            shifted[i].setReal(frame);
+        }
+        regularization = new Regularization_Utils(shifted, Deconvolve_Image_Utils.toFFTform(psf), 0.178f, 10, 2, 0.1f, true);
+    }
+
+    @Benchmark
+    public float[][][][] wiener() {
+        wiener.deconvolve(frames, i -> new float[][][][] {image[i]}, (i, parts) -> result[i] = parts[0]);
+        return result;
+    }
+
+    // the path the plugin takes for "Standard" deconvolution
+    @Benchmark
+    public float[][][][] iterativeReal() {
+        iterativeReal.deconvolve(frames, i -> new float[][][][] {image[i]}, (i, parts) -> result[i] = parts[0]);
+        return result;
+    }
+
+    // the same image with a phase of zero
+    @Benchmark
+    public float[][][][] iterativeComplex() {
+        iterativeComplex.deconvolve(frames, i -> new float[][][][] {image[i], zeros}, (i, parts) -> result[i] = parts[0]);
+        return result;
+    }
+
+    // one pass of the flow chart with a single tilde check, so the time does not depend on how the damping search goes
+    @Benchmark
+    public Complex_Volume[] regularization() {
+        regularization.get_dMat();
+        regularization.get_uMat();
+        regularization.get_guessTilde();
+        regularization.getEnergyMeasure(true);
+        regularization.checkTilde();
+        regularization.update();
+        return regularization.guess;
+    }
+}
@@ -0,0 +1,78 @@
+package edu.pdx.imagej.deconv;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Complex_Kernel on rows that are hard for float arithmetic. "overflow" has numerators 1e28..1e38 and divisors
+// 1e1..1e11, so every float product overflows and the double-precision fallback is taken, "near zero" divides
+// numerators 1e-5..1e5 by 1e-20..1e-10 and "zero" divides by 0
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class Fallback_Benchmark {
+
+    @Param({"1000000"})
+    public int elements;
+
+    @Param({"overflow", "near zero", "zero"})
+    public String inputs;
+
+    private float[] row1;
+    private float[] row2;
+    private float[] retRow;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        row1 = new float[2*elements];
+        row2 = new float[2*elements];
+        retRow = new float[2*elements];
+        for (int k = 0; k < 2*elements; k++) {
+            if (inputs.equals("overflow")) {
+                row1[k] = signed(random, 28, 38);
+                row2[k] = signed(random, 1, 11);
+            }
+            else if (inputs.equals("near zero")) {
+                row1[k] = signed(random, -5, 5);
+                row2[k] = signed(random, -20, -10);
+            }
+            else {
+                row1[k] = signed(random, -5, 5);
+                row2[k] = 0;
+            }
+        }
+    }
+
+    @Benchmark
+    public float[] divide() {
+        Complex_Kernel.divide(row1, row2, retRow, elements);
+        return retRow;
+    }
+
+    @Benchmark
+    public float[] multiply() {
+        Complex_Kernel.multiply(row1, row1, retRow, elements);
+        return retRow;
+    }
+
+    // |x| in [10^low, 10^high) with a random sign
+    static private float signed(Random random, int low, int high) {
+        float value = (float)Math.pow(10, low + (high - low) * random.nextDouble());
+        return random.nextBoolean() ? value : -value;
+    }
+}
@@ -0,0 +1,59 @@
+package edu.pdx.imagej.deconv;
+
+import java.util.concurrent.TimeUnit;
+
+import ij.ImagePlus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Conversion between ImageJ hyperstacks and matrices. Images are never shown, so this runs headless
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class Image_Benchmark {
+
+    @Param({"4"})
+    public int frames;
+
+    @Param({"16", "64"})
+    public int slices;
+
+    @Param({"128", "256"})
+    public int size;
+
+    @Param({"GRAY32", "GRAY16"})
+    public String impType;
+
+    private float[][][][] mat;
+    private ImagePlus image;
+
+    @Setup
+    public void setup() {
+        // the image types are compared by reference, like the plugins do
+        impType = impType.intern();
+        mat = Synthetic_Data.hyperstack(frames, slices, size, size, 1);
+        image = Deconvolve_Image_Utils.reassign(mat, impType, "Benchmark");
+    }
+
+    @Benchmark
+    public float[][][][] getMatrix4D() {
+        return Deconvolve_Image_Utils.getMatrix4D(image);
+    }
+
+    @Benchmark
+    public ImagePlus reassign() {
+        return Deconvolve_Image_Utils.reassign(mat, impType, "Result");
+    }
+}
@@ -0,0 +1,53 @@
+package edu.pdx.imagej.deconv;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Element-wise operations on complex volumes in FFT form, as done by matrixOperations
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class Matrix_Benchmark {
+
+    @Param({"16", "64"})
+    public int slices;
+
+    @Param({"128", "256"})
+    public int size;
+
+    @Param({"divide", "multiply", "subtract", "add"})
+    public String operation;
+
+    private float[][][] mat1;
+    private float[][][] mat2;
+    private float[][][] retMat;
+
+    @Setup
+    public void setup() {
+        mat1 = Deconvolve_Image_Utils.toFFTform(Synthetic_Data.volume(slices, size, size, 1), Synthetic_Data.volume(slices, size, size, 2));
+        mat2 = Deconvolve_Image_Utils.toFFTform(Synthetic_Data.volume(slices, size, size, 3), Synthetic_Data.volume(slices, size, size, 4));
+        retMat = new float[slices][size][2*size];
+        // the operation names are compared by reference, like the plugins do
+        operation = operation.intern();
+    }
+
+    @Benchmark
+    public float[][][] matrixOperations() {
+        Deconvolve_Image_Utils.matrixOperations(mat1, mat2, retMat, operation);
+        return retMat;
+    }
+}
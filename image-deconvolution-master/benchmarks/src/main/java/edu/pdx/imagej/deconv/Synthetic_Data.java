@@ -0,0 +1,42 @@
+package edu.pdx.imagej.deconv;
+
+import java.util.Random;
+
+// Seeded inputs for the benchmarks, so every run and every fork works on the same data without reading any images
+public class Synthetic_Data {
+
+    // random values in [0, 1)
+    static public float[][][] volume(int slices, int height, int width, long seed) {
+        Random random = new Random(seed);
+        float[][][] mat = new float[slices][height][width];
+        for (float[][] slice : mat)
+            for (float[] row : slice)
+                for (int k = 0; k < width; k++)
+                    row[k] = random.nextFloat();
+        return mat;
+    }
+
+    static public float[][][][] hyperstack(int frames, int slices, int height, int width, long seed) {
+        float[][][][] mat = new float[frames][][][];
+        for (int i = 0; i < frames; i++)
+            mat[i] = volume(slices, height, width, seed + i);
+        return mat;
+    }
+
+    // a centred 3D Gaussian that adds to 1, shaped roughly like a real PSF
+    static public float[][][] psf(int slices, int height, int width) {
+        float[][][] mat = new float[slices][height][width];
+        double sigmaXY = Math.max(1, width / 16.0);
+        double sigmaZ = Math.max(1, slices / 8.0);
+        for (int i = 0; i < slices; i++)
+            for (int j = 0; j < height; j++)
+                for (int k = 0; k < width; k++) {
+                    double z = (i - slices / 2) / sigmaZ;
+                    double y = (j - height / 2) / sigmaXY;
+                    double x = (k - width / 2) / sigmaXY;
+                    mat[i][j][k] = (float) Math.exp(-0.5 * (x*x + y*y + z*z));
+                }
+        Deconvolve_Image_Utils.normalize(mat);
+        return mat;
+    }
+}
@@ -0,0 +1,52 @@
+package edu.pdx.imagej.deconv;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Convolution through the FFT and the shift that follows an inverse transform
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class Transform_Benchmark {
+
+    @Param({"16", "64"})
+    public int slices;
+
+    @Param({"128", "256"})
+    public int size;
+
+    private float[][][] image;
+    private float[][][] psf;
+
+    @Setup
+    public void setup() {
+        image = Deconvolve_Image_Utils.toFFTform(Synthetic_Data.volume(slices, size, size, 1));
+        psf = Deconvolve_Image_Utils.toFFTform(Synthetic_Data.psf(slices, size, size));
+    }
+
+    @Benchmark
+    public float[][][] fourierConvolve() {
+        return Deconvolve_Image_Utils.fourierConvolve(image, psf);
+    }
+
+    // shifting twice restores the volume for even sizes, so this measures two shifts of unchanging data
+    @Benchmark
+    public float[][][] formatIFFT() {
+        Deconvolve_Image_Utils.formatIFFTInPlace(image);
+        return Deconvolve_Image_Utils.formatIFFTInPlace(image);
+    }
+}
@@ -0,0 +1,265 @@
+package edu.pdx.imagej.deconv;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Elementwise arithmetic on complex matrices in FFT form (even entries are real parts, odd entries are imaginary parts).
+// Results are written straight into the destination, so nothing is allocated per element. The destination may be
+// the same array as either input.
+public class Complex_Kernel {
+
+    // the number of elements that needed one of the double-precision fallbacks below, for Run_Metrics
+    static public final LongAdder fallbacks = new LongAdder();
+
+    // retRow = row1 / row2 over the first n complex elements of each row
+    static public void divide(float[] row1, float[] row2, float[] retRow, int n) {
+        divide(row1, row2, retRow, 0, n);
+    }
+
+    // the same over complex elements start to end - 1, so a flat volume can be split into rows
+    static public void divide(float[] row1, float[] row2, float[] retRow, int start, int end) {
+        float c, d, e, f;
+        for (int k = start; k < end; k++) {
+            c = row1[2*k];
+            d = row1[2*k + 1];
+            e = row2[2*k];
+            f = row2[2*k + 1];
+
+            double denom = Math.pow(e, 2) + Math.pow(f, 2);
+            float re = (float)((c*e + d*f) / denom);
+            float im = (float)((d*e - c*f) / denom);
+
+            if (!Float.isFinite(re) || !Float.isFinite(im))
+                divideScaled(c, d, e, f, retRow, k);
+            else {
+                retRow[2*k] = re;
+                retRow[2*k + 1] = im;
+            }
+        }
+    }
+
+    // retRow = row1 * row2 over the first n complex elements of each row
+    static public void multiply(float[] row1, float[] row2, float[] retRow, int n) {
+        multiply(row1, row2, retRow, 0, n);
+    }
+
+    // over complex elements start to end - 1
+    static public void multiply(float[] row1, float[] row2, float[] retRow, int start, int end) {
+        float c, d, e, f;
+        for (int k = start; k < end; k++) {
+            c = row1[2*k];
+            d = row1[2*k + 1];
+            e = row2[2*k];
+            f = row2[2*k + 1];
+
+            float re = c*e - d*f;
+            float im = c*f + d*e;
+
+            if (!Float.isFinite(re) || !Float.isFinite(im))
+                multiplyDouble(c, d, e, f, retRow, k);
+            else {
+                retRow[2*k] = re;
+                retRow[2*k + 1] = im;
+            }
+        }
+    }
+
+    // retRow = row1 * conj(row2) over the first n complex elements of each row, without forming the conjugate
+    static public void multiplyConj(float[] row1, float[] row2, float[] retRow, int n) {
+        float c, d, e, f;
+        for (int k = 0; k < n; k++) {
+            c = row1[2*k];
+            d = row1[2*k + 1];
+            e = row2[2*k];
+            f = row2[2*k + 1];
+
+            float re = c*e + d*f;
+            float im = d*e - c*f;
+
+            if (!Float.isFinite(re) || !Float.isFinite(im))
+                multiplyDouble(c, d, e, -f, retRow, k);
+            else {
+                retRow[2*k] = re;
+                retRow[2*k + 1] = im;
+            }
+        }
+    }
+
+    // retRow = row1 * row2 * scale[k], where scale holds one real factor per complex element. This is a complex multiply
+    // followed by a real division in one pass, for filters like conj(H) / (|H|^2 + beta) whose denominator is real
+    static public void multiplyScaled(float[] row1, float[] row2, float[] scale, float[] retRow, int n) {
+        float c, d, e, f, s;
+        for (int k = 0; k < n; k++) {
+            c = row1[2*k];
+            d = row1[2*k + 1];
+            e = row2[2*k];
+            f = row2[2*k + 1];
+            s = scale[k];
+
+            float re = (c*e - d*f) * s;
+            float im = (c*f + d*e) * s;
+
+            if (!Float.isFinite(re) || !Float.isFinite(im))
+                multiplyScaledDouble(c, d, e, f, s, retRow, k);
+            else {
+                retRow[2*k] = re;
+                retRow[2*k + 1] = im;
+            }
+        }
+    }
+
+    // retRow = row1 - row2 over the first n complex elements of each row
+    static public void subtract(float[] row1, float[] row2, float[] retRow, int n) {
+        subtract(row1, row2, retRow, 0, n);
+    }
+
+    // over complex elements start to end - 1
+    static public void subtract(float[] row1, float[] row2, float[] retRow, int start, int end) {
+        float c, d, e, f;
+        for (int k = start; k < end; k++) {
+            c = row1[2*k];
+            d = row1[2*k + 1];
+            e = row2[2*k];
+            f = row2[2*k + 1];
+
+            float re = c - e;
+            float im = d - f;
+
+            if (!Float.isFinite(re) || !Float.isFinite(im))
+                subtractDouble(c, d, e, f, retRow, k);
+            else {
+                retRow[2*k] = re;
+                retRow[2*k + 1] = im;
+            }
+        }
+    }
+
+    // retRow = row1 + row2 over the first n complex elements of each row
+    static public void add(float[] row1, float[] row2, float[] retRow, int n) {
+        add(row1, row2, retRow, 0, n);
+    }
+
+    // over complex elements start to end - 1
+    static public void add(float[] row1, float[] row2, float[] retRow, int start, int end) {
+        float c, d, e, f;
+        for (int k = start; k < end; k++) {
+            c = row1[2*k];
+            d = row1[2*k + 1];
+            e = row2[2*k];
+            f = row2[2*k + 1];
+
+            float re = c + e;
+            float im = d + f;
+
+            if (!Float.isFinite(re) || !Float.isFinite(im))
+                addDouble(c, d, e, f, retRow, k);
+            else {
+                retRow[2*k] = re;
+                retRow[2*k + 1] = im;
+            }
+        }
+    }
+
+    // 3D versions of the above. mat1, mat2, and retMat are complex matrices of the same size. Large matrices are split
+    // over rows with Parallel_Utils
+    static public void divide(float[][][] mat1, float[][][] mat2, float[][][] retMat) {
+        int width = mat1[0][0].length / 2;
+        Parallel_Utils.forEachRow(mat1.length, mat1[0].length, 2*width, (i, j) -> divide(mat1[i][j], mat2[i][j], retMat[i][j], width));
+    }
+
+    static public void multiply(float[][][] mat1, float[][][] mat2, float[][][] retMat) {
+        int width = mat1[0][0].length / 2;
+        Parallel_Utils.forEachRow(mat1.length, mat1[0].length, 2*width, (i, j) -> multiply(mat1[i][j], mat2[i][j], retMat[i][j], width));
+    }
+
+    static public void subtract(float[][][] mat1, float[][][] mat2, float[][][] retMat) {
+        int width = mat1[0][0].length / 2;
+        Parallel_Utils.forEachRow(mat1.length, mat1[0].length, 2*width, (i, j) -> subtract(mat1[i][j], mat2[i][j], retMat[i][j], width));
+    }
+
+    static public void add(float[][][] mat1, float[][][] mat2, float[][][] retMat) {
+        int width = mat1[0][0].length / 2;
+        Parallel_Utils.forEachRow(mat1.length, mat1[0].length, 2*width, (i, j) -> add(mat1[i][j], mat2[i][j], retMat[i][j], width));
+    }
+
+    // Overflow-safe fallbacks. These are only reached when the float result above is not finite; they redo the
+    // operation in double precision, which cannot overflow for float operands. Non-finite operands give 0, as before.
+
+    // Smith's algorithm: scale by the larger of |e| and |f| so that e^2 + f^2 is never formed
+    static private void divideScaled(float c, float d, float e, float f, float[] retRow, int k) {
+        fallbacks.increment();
+        if (!finite(c, d, e, f) || (e == 0 && f == 0)) {
+            retRow[2*k] = 0;
+            retRow[2*k + 1] = 0;
+            return;
+        }
+
+        double re;
+        double im;
+        if (Math.abs(e) >= Math.abs(f)) {
+            double r = (double)f / e;
+            double denom = e + f * r;
+            re = (c + d * r) / denom;
+            im = (d - c * r) / denom;
+        }
+        else {
+            double r = (double)e / f;
+            double denom = e * r + f;
+            re = (c * r + d) / denom;
+            im = (d * r - c) / denom;
+        }
+        retRow[2*k] = (float)re;
+        retRow[2*k + 1] = (float)im;
+    }
+
+    static private void multiplyDouble(float c, float d, float e, float f, float[] retRow, int k) {
+        fallbacks.increment();
+        if (!finite(c, d, e, f)) {
+            retRow[2*k] = 0;
+            retRow[2*k + 1] = 0;
+            return;
+        }
+
+        retRow[2*k] = (float)((double)c * e - (double)d * f);
+        retRow[2*k + 1] = (float)((double)c * f + (double)d * e);
+    }
+
+    static private void multiplyScaledDouble(float c, float d, float e, float f, float s, float[] retRow, int k) {
+        fallbacks.increment();
+        if (!finite(c, d, e, f) || !Float.isFinite(s)) {
+            retRow[2*k] = 0;
+            retRow[2*k + 1] = 0;
+            return;
+        }
+
+        retRow[2*k] = (float)(((double)c * e - (double)d * f) * s);
+        retRow[2*k + 1] = (float)(((double)c * f + (double)d * e) * s);
+    }
+
+    static private void subtractDouble(float c, float d, float e, float f, float[] retRow, int k) {
+        fallbacks.increment();
+        if (!finite(c, d, e, f)) {
+            retRow[2*k] = 0;
+            retRow[2*k + 1] = 0;
+            return;
+        }
+
+        retRow[2*k] = (float)((double)c - e);
+        retRow[2*k + 1] = (float)((double)d - f);
+    }
+
+    static private void addDouble(float c, float d, float e, float f, float[] retRow, int k) {
+        fallbacks.increment();
+        if (!finite(c, d, e, f)) {
+            retRow[2*k] = 0;
+            retRow[2*k + 1] = 0;
+            return;
+        }
+
+        retRow[2*k] = (float)((double)c + e);
+        retRow[2*k + 1] = (float)((double)d + f);
+    }
+
+    static private boolean finite(float c, float d, float e, float f) {
+        return Float.isFinite(c) && Float.isFinite(d) && Float.isFinite(e) && Float.isFinite(f);
+    }
+}
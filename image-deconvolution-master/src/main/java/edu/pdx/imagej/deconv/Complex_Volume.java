@@ -0,0 +1,274 @@
+package edu.pdx.imagej.deconv;
+
+import org.jtransforms.fft.FloatFFT_3D;
+
+// A complex 3D matrix stored in one contiguous array. The layout is the one JTransforms uses for its 1D-array
+// overloads: element (i, j, k) has its real part at data[i*sliceStride + j*rowStride + 2*k] and its imaginary part
+// right after it. This is the flat equivalent of a float[slices][height][2*width] matrix in FFT form.
+public class Complex_Volume {
+    public final int slices;
+    public final int height;
+    public final int width;
+    public final int rowStride;
+    public final int sliceStride;
+    public final float[] data;
+
+    public Complex_Volume(int i_slices, int i_height, int i_width) {
+        this(i_slices, i_height, i_width,
+            new float[Real_Volume.length(i_slices, i_height, i_width, 2, "complex volume")]);
+    }
+
+    // wrap an existing array without copying it
+    public Complex_Volume(int i_slices, int i_height, int i_width, float[] i_data) {
+        if (i_data.length != Real_Volume.length(i_slices, i_height, i_width, 2, "complex volume"))
+            throw new IllegalArgumentException("Array of length " + i_data.length + " does not hold a "
+                + i_slices + "x" + i_height + "x" + i_width + " complex volume.");
+        slices = i_slices;
+        height = i_height;
+        width = i_width;
+        rowStride = 2 * width;
+        sliceStride = height * rowStride;
+        data = i_data;
+    }
+
+    // number of complex elements
+    public int size() {
+        return slices * height * width;
+    }
+
+    // index of the real part of element (i, j, k). The imaginary part is at index + 1
+    public int index(int i, int j, int k) {
+        return i*sliceStride + j*rowStride + 2*k;
+    }
+
+    public float getRe(int i, int j, int k) {
+        return data[index(i, j, k)];
+    }
+
+    public float getIm(int i, int j, int k) {
+        return data[index(i, j, k) + 1];
+    }
+
+    public void set(int i, int j, int k, float re, float im) {
+        int idx = index(i, j, k);
+        data[idx] = re;
+        data[idx + 1] = im;
+    }
+
+    // transform in place using the 1D-array overloads, so no copy of the data is made
+    public void forward(FloatFFT_3D fft) {
+        fft.complexForward(data);
+    }
+
+    public void inverse(FloatFFT_3D fft) {
+        fft.complexInverse(data, true);
+    }
+
+    // plan for volumes of this size on the calling thread
+    public FloatFFT_3D plan() {
+        return FFT_Cache.get(slices, height, width);
+    }
+
+    public Complex_Volume copy() {
+        return new Complex_Volume(slices, height, width, data.clone());
+    }
+
+    public void copyFrom(Complex_Volume vol) {
+        System.arraycopy(vol.data, 0, data, 0, data.length);
+    }
+
+    // build a volume from a complex matrix in FFT form
+    static public Complex_Volume fromMatrix(float[][][] mat) {
+        Complex_Volume vol = new Complex_Volume(mat.length, mat[0].length, mat[0][0].length / 2);
+        vol.copyFrom(mat);
+        return vol;
+    }
+
+    // copy a complex matrix in FFT form into this volume
+    public void copyFrom(float[][][] mat) {
+        for (int i = 0; i < slices; i++)
+            for (int j = 0; j < height; j++)
+                System.arraycopy(mat[i][j], 0, data, i*sliceStride + j*rowStride, rowStride);
+    }
+
+    // copy this volume into a complex matrix in FFT form
+    public void copyTo(float[][][] mat) {
+        for (int i = 0; i < slices; i++)
+            for (int j = 0; j < height; j++)
+                System.arraycopy(data, i*sliceStride + j*rowStride, mat[i][j], 0, rowStride);
+    }
+
+    public float[][][] toMatrix() {
+        float[][][] mat = new float[slices][height][rowStride];
+        copyTo(mat);
+        return mat;
+    }
+
+    // fill with real data and a phase of zero, like Deconvolve_Image_Utils.toFFTform(mat)
+    public void setReal(float[][][] mat) {
+        int idx = 0;
+        for (int i = 0; i < slices; i++)
+            for (int j = 0; j < height; j++)
+                for (int k = 0; k < width; k++) {
+                    data[idx++] = mat[i][j][k];
+                    data[idx++] = 0;
+                }
+    }
+
+    // fill with two real matrices at once, a as the real parts and b as the imaginary parts. b may be null, which
+    // leaves the imaginary parts at zero. Anything done to the volume with a Hermitian spectrum keeps the two apart
+    public void setRealPair(float[][][] a, float[][][] b) {
+        int idx = 0;
+        for (int i = 0; i < slices; i++)
+            for (int j = 0; j < height; j++)
+                for (int k = 0; k < width; k++) {
+                    data[idx++] = a[i][j][k];
+                    data[idx++] = b == null ? 0 : b[i][j][k];
+                }
+    }
+
+    // the same for flat real volumes
+    public void setRealPair(Real_Volume a, Real_Volume b) {
+        for (int n = 0; n < a.data.length; n++) {
+            data[2*n] = a.data[n];
+            data[2*n + 1] = b == null ? 0 : b.data[n];
+        }
+    }
+
+    public void getRealPair(Real_Volume a, Real_Volume b) {
+        for (int n = 0; n < a.data.length; n++) {
+            a.data[n] = data[2*n];
+            if (b != null)
+                b.data[n] = data[2*n + 1];
+        }
+    }
+
+    // split a volume filled by setRealPair back into two real matrices. b may be null
+    public void getRealPair(float[][][] a, float[][][] b) {
+        int idx = 0;
+        for (int i = 0; i < slices; i++)
+            for (int j = 0; j < height; j++)
+                for (int k = 0; k < width; k++, idx += 2) {
+                    a[i][j][k] = data[idx];
+                    if (b != null)
+                        b[i][j][k] = data[idx + 1];
+                }
+    }
+
+    // fill from amplitude and phase matrices, like Deconvolve_Image_Utils.toFFTform(amp, phase)
+    public void setPolar(float[][][] amp, float[][][] phase) {
+        int idx = 0;
+        for (int i = 0; i < slices; i++)
+            for (int j = 0; j < height; j++)
+                for (int k = 0; k < width; k++) {
+                    data[idx++] = amp[i][j][k] * (float)Math.cos((double)phase[i][j][k]);
+                    data[idx++] = amp[i][j][k] * (float)Math.sin((double)phase[i][j][k]);
+                }
+    }
+
+    // fill from real and imaginary matrices, like Deconvolve_Image_Utils.toFFTformRect(reMat, imMat)
+    public void setRect(float[][][] reMat, float[][][] imMat) {
+        int idx = 0;
+        for (int i = 0; i < slices; i++)
+            for (int j = 0; j < height; j++)
+                for (int k = 0; k < width; k++) {
+                    data[idx++] = reMat[i][j][k];
+                    data[idx++] = imMat[i][j][k];
+                }
+    }
+
+    public Real_Volume getAmplitude() {
+        Real_Volume ret = new Real_Volume(slices, height, width);
+        float[] out = ret.data;
+        for (int n = 0; n < out.length; n++) {
+            double re = data[2*n];
+            double im = data[2*n + 1];
+            out[n] = (float)Math.sqrt(re * re + im * im);
+        }
+        return ret;
+    }
+
+    public Real_Volume getPhase() {
+        Real_Volume ret = new Real_Volume(slices, height, width);
+        float[] out = ret.data;
+        for (int n = 0; n < out.length; n++)
+            out[n] = (float)Math.atan2(data[2*n + 1], data[2*n]);
+        return ret;
+    }
+
+    public Real_Volume getRe() {
+        Real_Volume ret = new Real_Volume(slices, height, width);
+        float[] out = ret.data;
+        for (int n = 0; n < out.length; n++)
+            out[n] = data[2*n];
+        return ret;
+    }
+
+    public Real_Volume getIm() {
+        Real_Volume ret = new Real_Volume(slices, height, width);
+        float[] out = ret.data;
+        for (int n = 0; n < out.length; n++)
+            out[n] = data[2*n + 1];
+        return ret;
+    }
+
+    public void conj(Complex_Volume ret) {
+        for (int n = 0; n < data.length; n += 2) {
+            ret.data[n] = data[n];
+            ret.data[n + 1] = -data[n + 1];
+        }
+    }
+
+    public void scale(float scale) {
+        for (int n = 0; n < data.length; n++)
+            data[n] *= scale;
+    }
+
+    // add inc to the real part of each element
+    public void incrementReal(float inc) {
+        for (int n = 0; n < data.length; n += 2)
+            data[n] += inc;
+    }
+
+    // elementwise operations, ret may be this volume or vol. Large volumes are split over rows with Parallel_Utils
+    public void multiply(Complex_Volume vol, Complex_Volume ret) {
+        forEachRow((start, end) -> Complex_Kernel.multiply(data, vol.data, ret.data, start, end));
+    }
+
+    // ret = this * vol * scale, with one real factor per element
+    public void multiplyScaled(Complex_Volume vol, float[] scale, Complex_Volume ret) {
+        Complex_Kernel.multiplyScaled(data, vol.data, scale, ret.data, size());
+    }
+
+    public void divide(Complex_Volume vol, Complex_Volume ret) {
+        forEachRow((start, end) -> Complex_Kernel.divide(data, vol.data, ret.data, start, end));
+    }
+
+    public void add(Complex_Volume vol, Complex_Volume ret) {
+        forEachRow((start, end) -> Complex_Kernel.add(data, vol.data, ret.data, start, end));
+    }
+
+    public void subtract(Complex_Volume vol, Complex_Volume ret) {
+        forEachRow((start, end) -> Complex_Kernel.subtract(data, vol.data, ret.data, start, end));
+    }
+
+    // ret = scale * this, ret may be this volume
+    public void scale(float scale, Complex_Volume ret) {
+        forEachRow((start, end) -> {
+            for (int n = 2*start; n < 2*end; n++)
+                ret.data[n] = scale * data[n];
+        });
+    }
+
+    private interface Element_Range {
+        void run(int start, int end);
+    }
+
+    // run task over the complex elements of each row, numbered through the whole volume
+    private void forEachRow(Element_Range task) {
+        Parallel_Utils.forEachRow(slices, height, rowStride, (i, j) -> {
+            int start = (i*height + j) * width;
+            task.run(start, start + width);
+        });
+    }
+}
@@ -0,0 +1,355 @@
+package edu.pdx.imagej.deconv;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+// Command-line entry point that runs the Wiener filter, iterative deconvolution, or ER-Decon without any dialogs or
+// windows, so deconvolution can be run on headless machines or scripted. The input is either a hyperstack file or a
+// folder of stacks, one per frame, and every deconvolved frame is saved to the output folder in the same layout the
+// plugins use when saving by frame. How long each frame took to deconvolve, as timed by the engine, is printed as it
+// is saved, and a summary with the overall throughput is printed on exit.
+//
+// java -jar Deconvolve_Image-jar-with-dependencies.jar --algorithm wiener --input image.tif --psf psf.tif --output out
+public class Deconvolve_Batch {
+
+    static private final String USAGE =
+        "Usage: java -jar Deconvolve_Image-jar-with-dependencies.jar [options]\n" +
+        "  --algorithm <wiener|iterative|er>   deconvolution method (default wiener)\n" +
+        "  --style <standard|polar|rectangular> how the image is deconvolved (default standard)\n" +
+        "  --input <path>                      amplitude/real hyperstack, or a folder of stacks\n" +
+        "  --input-phase <path>                phase/imaginary hyperstack or folder, for complex styles\n" +
+        "  --psf <path>                        PSF amplitude/real stack\n" +
+        "  --psf-phase <path>                  PSF phase/imaginary stack, for complex styles\n" +
+        "  --output <folder>                   where the Deconvolved folder is created\n" +
+        "  --type <8|16|32>                    output bit depth (default 32)\n" +
+        "  --beta <value>                      Wiener and iterative beta (default 0.001 and 0.01)\n" +
+        "  --iterations <n>                    iterative and ER-Decon iterations, the most any frame runs (default 3)\n" +
+        "  --estimate-tolerance <value>        iterative and ER-Decon: stop a frame once its estimate changes less\n" +
+        "                                      than this fraction in an iteration (default 0, off)\n" +
+        "  --error-tolerance <value>           iterative and ER-Decon: stop a frame once its error or energy changes\n" +
+        "                                      less than this fraction in an iteration (default 0, off)\n" +
+        "  --smooth <value>                    ER-Decon smoothness factor (default 2)\n" +
+        "  --nonlinearity <value>              ER-Decon nonlinearity factor (default 0.1)\n" +
+        "  --lateral <value>                   ER-Decon lateral spacing (default 0.178223)\n" +
+        "  --axial <value>                     ER-Decon axial spacing (default 10)\n" +
+        "  --accelerate                        iterative: extrapolate each iteration (Biggs-Andrews)\n" +
+        "  --max-alpha <value>                 iterative: longest extrapolation, as a fraction of the last step,\n" +
+        "                                      between 0 and 1 (default 0.7)\n" +
+        "  --independent                       ER-Decon: deconvolve frames independently\n" +
+        "  --spatial                           ER-Decon: filter in the spatial domain\n" +
+        "  --intensity                         Wiener: use intensity maps\n" +
+        "  --error                             print the error of the result, or after each iteration, and for\n" +
+        "                                      iterative deconvolution that of each frame as it finishes\n" +
+        "  --error-sample <fraction>           Wiener: estimate the error from this fraction of the voxels (default 1)\n" +
+        "  --no-normalize                      do not normalize the PSF\n" +
+        "  --metrics                           save per-stage timing and allocations to metrics.csv and metrics.json\n";
+
+    static private final String[] FLAGS = {"--accelerate", "--independent", "--spatial", "--intensity", "--error", "--no-normalize", "--metrics"};
+
+    private HashMap<String, String> options = new HashMap<String, String>();
+    private String algorithm;
+    private String decon_choice;
+    private String choice;
+    private String save_path;
+    private String[] prefixes;
+    private int width;
+    private int height;
+    private int slices;
+    private int frames;
+    private Calibration cal;
+    private float[][][] psfMat;
+    private float[][][] psfPhaseMat;
+    private Frame_Pipeline.Reader<float[][][]> ampReader;
+    private Frame_Pipeline.Reader<float[][][]> phaseReader;
+    private double[] frameTimes;
+    private int[] stops;
+    private Run_Metrics metrics = Run_Metrics.NONE;
+
+    private Deconvolve_Image_Utils diu = new Deconvolve_Image_Utils();
+
+    static public void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        if (Arrays.asList(args).contains("--help") || Arrays.asList(args).contains("-h")) {
+            System.out.print(USAGE);
+            return;
+        }
+        
+        Deconvolve_Batch batch = new Deconvolve_Batch();
+        try {
+            batch.parse(args);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+        }
+
+        try {
+            batch.run();
+        }
+        catch (RuntimeException e) {
+            System.err.println("Deconvolution failed: " + e);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    // read "--name value" pairs and flags, and check that everything required is there
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--"))
+                throw new IllegalArgumentException("Unexpected argument " + args[i] + ".");
+            if (Arrays.asList(FLAGS).contains(args[i]))
+                options.put(args[i], "true");
+            else if (i + 1 < args.length)
+                options.put(args[i], args[++i]);
+            else
+                throw new IllegalArgumentException("Missing value for " + args[i] + ".");
+        }
+
+        algorithm = options.getOrDefault("--algorithm", "wiener");
+        if (!algorithm.equals("wiener") && !algorithm.equals("iterative") && !algorithm.equals("er"))
+            throw new IllegalArgumentException("Unknown algorithm " + algorithm + ".");
+
+        // the engines compare these by reference, so they must be the same literals the dialogs use
+        String style = options.getOrDefault("--style", "standard");
+        if (style.equals("standard"))
+            decon_choice = "Standard";
+        else if (style.equals("polar"))
+            decon_choice = "Complex (Polar)";
+        else if (style.equals("rectangular"))
+            decon_choice = "Complex (Rectangular)";
+        else
+            throw new IllegalArgumentException("Unknown style " + style + ".");
+
+        String type = options.getOrDefault("--type", "32");
+        if (type.equals("8"))
+            choice = "GRAY8";
+        else if (type.equals("16"))
+            choice = "GRAY16";
+        else if (type.equals("32"))
+            choice = "GRAY32";
+        else
+            throw new IllegalArgumentException("Unknown output type " + type + ".");
+
+        float sample = number("--error-sample", 1);
+        if (!(sample > 0 && sample <= 1))
+            throw new IllegalArgumentException("--error-sample must be above 0 and at most 1.");
+        if (!(number("--estimate-tolerance", 0) >= 0) || !(number("--error-tolerance", 0) >= 0))
+            throw new IllegalArgumentException("--estimate-tolerance and --error-tolerance must be at least 0.");
+        float maxAlpha = number("--max-alpha", 0);
+        if (!(maxAlpha >= 0 && maxAlpha <= 1))
+            throw new IllegalArgumentException("--max-alpha must be between 0 and 1.");
+
+        require("--input");
+        require("--psf");
+        require("--output");
+        if (decon_choice != "Standard") {
+            require("--input-phase");
+            require("--psf-phase");
+        }
+    }
+
+    private void require(String option) {
+        if (!options.containsKey(option))
+            throw new IllegalArgumentException(option + " is required.");
+    }
+
+    private float number(String option, float defaultValue) {
+        if (!options.containsKey(option))
+            return defaultValue;
+        try {
+            return Float.parseFloat(options.get(option));
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " must be a number.");
+        }
+    }
+
+    private boolean flag(String option) {
+        return options.containsKey(option);
+    }
+
+    private void run() {
+        // PSF, normalized the same way the plugins do
+        ImagePlus psfImage = open(options.get("--psf"));
+        psfMat = diu.getMatrix3D(psfImage);
+        cal = psfImage.getCalibration();
+        width = psfImage.getWidth();
+        height = psfImage.getHeight();
+        slices = psfImage.getNSlices();
+        if (decon_choice != "Standard")
+            psfPhaseMat = diu.getMatrix3D(open(options.get("--psf-phase")));
+        if (!flag("--no-normalize") && decon_choice != "Complex (Rectangular)")
+            diu.normalize(psfMat);
+        if (!flag("--no-normalize") && decon_choice == "Complex (Rectangular)")
+            diu.normalize(psfMat, psfPhaseMat);
+
+        ampReader = frameReader(options.get("--input"));
+        if (decon_choice != "Standard")
+            phaseReader = frameReader(options.get("--input-phase"));
+
+        // create the same folders as the plugins
+        save_path = new File(options.get("--output")).getAbsolutePath() + File.separator + "Deconvolved" + File.separator;
+        if (decon_choice == "Standard")
+            prefixes = new String[] {""};
+        else if (decon_choice == "Complex (Polar)")
+            prefixes = new String[] {"Amplitude" + File.separator, "Phase" + File.separator};
+        else
+            prefixes = new String[] {"Real" + File.separator, "Imaginary" + File.separator};
+        for (String prefix : prefixes)
+            new File(save_path + prefix).mkdirs();
+
+        System.out.println("Deconvolving " + frames + " frame(s) of " + width + "x" + height + "x" + slices + " with " + algorithm + "...");
+        frameTimes = new double[frames];
+        stops = new int[frames];
+        long start = System.nanoTime();
+        Deconvolver deconvolver = deconvolver();
+        deconvolver.setMetricsListener(this::printMetric);
+        if (flag("--metrics"))
+            metrics = new Run_Metrics();
+        deconvolver.setRunMetrics(metrics);
+        if (algorithm.equals("er"))
+            deconvolver.deconvolve(frames, this::regularizationFrame, this::save);
+        else
+            deconvolver.deconvolve(frames, this::readFrame, this::save);
+        report(System.nanoTime() - start);
+
+        if (flag("--metrics")) {
+            metrics.save(save_path);
+            System.out.println("Run metrics saved to " + save_path + "metrics.csv and metrics.json (" + metrics.fallbacks() + " complex fallbacks)");
+        }
+    }
+
+    // relative paths are taken from the working directory, not ImageJ's default directory
+    static private ImagePlus open(String path) {
+        ImagePlus image = IJ.openImage(new File(path).getAbsolutePath());
+        if (image == null)
+            throw new IllegalArgumentException("Could not open " + path + ".");
+        return image;
+    }
+
+    // frames of a hyperstack file, or the stacks in a folder in name order
+    private Frame_Pipeline.Reader<float[][][]> frameReader(String path) {
+        File file = new File(path).getAbsoluteFile();
+        int count;
+        Frame_Pipeline.Reader<float[][][]> reader;
+        if (file.isDirectory()) {
+            String[] names = file.list();
+            Arrays.sort(names);
+            count = names.length;
+            reader = i -> diu.openMatrix4D(new File(file, names[i]).getPath())[0];
+        }
+        else {
+            ImagePlus image = open(path);
+            count = image.getNFrames();
+            reader = i -> diu.getFrame(image, i);
+        }
+
+        if (ampReader != null && count != frames)
+            throw new IllegalArgumentException(path + " has " + count + " frames, but the input has " + frames + ".");
+        frames = count;
+        return reader;
+    }
+
+    // amplitude/real and, for complex styles, phase/imaginary parts of a frame
+    private float[][][][] readFrame(int frame) {
+        if (decon_choice == "Standard")
+            return new float[][][][] {ampReader.read(frame)};
+        return new float[][][][] {ampReader.read(frame), phaseReader.read(frame)};
+    }
+
+    private Deconvolver deconvolver() {
+        if (algorithm.equals("wiener")) {
+            Wiener_Deconvolver wiener = new Wiener_Deconvolver(psfMat, psfPhaseMat, decon_choice, number("--beta", 0.001f), flag("--intensity"), flag("--error"));
+            wiener.setErrorSampling(number("--error-sample", 1), 0);
+            return wiener;
+        }
+
+        int iterations = (int) number("--iterations", 3);
+        Stopping_Rule stopping = new Stopping_Rule(number("--estimate-tolerance", 0), number("--error-tolerance", 0));
+        if (algorithm.equals("iterative")) {
+            Iterative_Deconvolver iterative = new Iterative_Deconvolver(psfMat, psfPhaseMat, decon_choice, iterations, number("--beta", 0.01f), flag("--error"));
+            iterative.setStoppingRule(stopping);
+            if (options.containsKey("--max-alpha"))
+                iterative.setAccelerated(flag("--accelerate"), number("--max-alpha", 0));
+            else
+                iterative.setAccelerated(flag("--accelerate"));
+            return iterative;
+        }
+
+        Regularization_Deconvolver regularization = new Regularization_Deconvolver(psfMat, psfPhaseMat, decon_choice, iterations, number("--lateral", 0.178223f),
+            number("--axial", 10), number("--smooth", 2), number("--nonlinearity", 0.1f), !flag("--spatial"), flag("--independent"));
+        regularization.setStoppingRule(stopping);
+        return regularization;
+    }
+
+    // a frame scaled between 0 and 1 as ER-Decon expects
+    private float[][][][] regularizationFrame(int frame) {
+        float[][][][] parts = readFrame(frame);
+        diu.linearShift(parts[0], 0, 1);
+        return parts;
+    }
+
+    // the Wiener and iterative errors are fractions of the original image, and the ER-Decon error is its energy
+    private void printMetric(String name, int frame, int iteration, double value) {
+        // kept for the saved frame, which comes right after
+        if (name == "iterations") {
+            stops[frame] = (int) value;
+            return;
+        }
+        if (name == "frame time") {
+            frameTimes[frame] = value;
+            return;
+        }
+        if (!flag("--error") || (name != "error" && name != "frame error"))
+            return;
+
+        String label = "Error" + (frame < 0 ? "" : " of frame " + (frame + 1)) + (iteration < 0 ? "" : " after iteration " + (iteration + 1)) + ": ";
+        if (algorithm.equals("er"))
+            System.out.println(label + Double.toString(value));
+        else
+            System.out.println(label + Float.toString((float) value * 100) + "%");
+    }
+
+    // save each part of a deconvolved frame and print how long it took to deconvolve
+    private void save(int frame, float[][][][] parts) {
+        for (int k = 0; k < parts.length; k++) {
+            Run_Metrics.Span span = metrics.start("reassign", frame, -1);
+            ImagePlus result = diu.reassign(parts[k], choice, Integer.toString(frame));
+            result.setCalibration(cal);
+            if (!algorithm.equals("wiener"))
+                result.setProperty("Info", Stopping_Rule.info(stops[frame], (int) number("--iterations", 3)));
+            span.stop();
+            span = metrics.start("save", frame, -1);
+            IJ.saveAsTiff(result, save_path + prefixes[k] + Integer.toString(frame) + ".tif");
+            result.close();
+            span.stop();
+        }
+
+        System.out.println("Frame " + (frame + 1) + " of " + frames + ": " + String.format("%.1f", frameTimes[frame]) + " ms"
+            + (algorithm.equals("wiener") ? "" : ", " + Stopping_Rule.info(stops[frame], (int) number("--iterations", 3))));
+    }
+
+    // Frames are deconvolved several at a time, so the per-frame times add up to more than the wall time, which is what
+    // the throughput is worked out from
+    private void report(long total) {
+        double seconds = total / 1e9;
+        double sum = 0;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (double time : frameTimes) {
+            sum += time;
+            min = Math.min(min, time);
+            max = Math.max(max, time);
+        }
+        System.out.println(String.format("Finished %d frame(s) in %.2f s", frames, seconds));
+        System.out.println(String.format("Per frame: %.1f ms mean, %.1f ms min, %.1f ms max", sum / frames, min, max));
+        System.out.println(String.format("Throughput: %.2f frames/s, %.2f Mvoxels/s", frames / seconds, (double) frames * slices * height * width / 1e6 / seconds));
+    }
+}
@@ -1,149 +1,24 @@
 package edu.pdx.imagej.deconv;
 
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import ij.IJ;
+import ij.ImageListener;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.WindowManager;
 import ij.io.DirectoryChooser;
 import ij.io.OpenDialog;
 import ij.plugin.HyperStackConverter;
+import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 import org.jtransforms.fft.FloatFFT_3D;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
 
 public class Deconvolve_Image_Utils {
     
-    // returns (a + b*i) = (c + d*i)/(e + f*i) as {a, b}
-    static private float[] complexDivide(float c, float d, float e, float f) {
-        double denom = Math.pow(e, 2) + Math.pow(f, 2);
-        float re = (float)((c*e + d*f) / denom);
-        float im = (float)((d*e - c*f) / denom);
-        
-        if (!Float.isFinite(re) || !Float.isFinite(im))
-            return complexDivideBig(c, d, e, f);
-        
-        float[] ret = {re, im};
-        return ret;
-    }
-    
-    // handle complex division with big numbers
-    static private float[] complexDivideBig(float c, float d, float e, float f) {
-        try {
-            BigDecimal bigC = BigDecimal.valueOf((double)c);
-            BigDecimal bigD = BigDecimal.valueOf((double)d);
-            BigDecimal bigE = BigDecimal.valueOf((double)e);
-            BigDecimal bigF = BigDecimal.valueOf((double)f);
-        
-            BigDecimal denom = bigE.multiply(bigE).add(bigF.multiply(bigF));
-            BigDecimal re = bigC.multiply(bigE).add(bigD.multiply(bigF)).divide(denom, RoundingMode.HALF_UP);
-            BigDecimal im = bigD.multiply(bigE).subtract(bigC.multiply(bigF)).divide(denom, RoundingMode.HALF_UP);
-        
-            float[] ret = {re.floatValue(), im.floatValue()};
-            return ret;
-        }
-        catch (NumberFormatException ex) {
-            float[] ret = {0, 0};
-            return ret;
-        }
-    }
-    
-    // returns (a + b*i) = (c + d*i)*(e + f*i) as {a, b}
-    static private float[] complexMult(float c, float d, float e, float f) {
-        float re = (c*e - d*f);
-        float im = (c*f + d*e);
-        
-        if (!Float.isFinite(re) || !Float.isFinite(im))
-            return complexMultBig(c, d, e, f);
-        
-        float[] ret = {re, im};
-        return ret;
-    }
-    
-    // handle complex multiplication with big numbers
-    static private float[] complexMultBig(float c, float d, float e, float f) {
-        try {
-            BigDecimal bigC = BigDecimal.valueOf((double)c);
-            BigDecimal bigD = BigDecimal.valueOf((double)d);
-            BigDecimal bigE = BigDecimal.valueOf((double)e);
-            BigDecimal bigF = BigDecimal.valueOf((double)f);
-        
-            BigDecimal re = bigC.multiply(bigE).subtract(bigD.multiply(bigF));
-            BigDecimal im = bigC.multiply(bigF).subtract(bigD.multiply(bigE));
-        
-            float[] ret = {re.floatValue(), im.floatValue()};
-            return ret;
-        }
-        catch(NumberFormatException ex) {
-            float[] ret = {0, 0};
-            return ret;
-        }
-    }
-    
-    // returns (a + b*i) = (c + d*i) - (e + f*i) as {a, b}
-    static private float[] complexSub(float c, float d, float e, float f) {
-        float re = c - e;
-        float im = d - f;
-        float[] ret = {re, im};
-        
-        if (!Float.isFinite(re) || !Float.isFinite(im))
-            return complexSubBig(c, d, e, f);
-        
-        return ret;
-    }
-    
-    // handle complex subtraction with big numbers
-    static private float[] complexSubBig(float c, float d, float e, float f) {
-        try {
-            BigDecimal bigC = BigDecimal.valueOf((double)c);
-            BigDecimal bigD = BigDecimal.valueOf((double)d);
-            BigDecimal bigE = BigDecimal.valueOf((double)e);
-            BigDecimal bigF = BigDecimal.valueOf((double)f);
-        
-            BigDecimal re = bigC.subtract(bigE);
-            BigDecimal im = bigD.subtract(bigF);
-        
-            float[] ret = {re.floatValue(), im.floatValue()};
-            return ret;
-        }
-        catch(NumberFormatException ex) {
-            float[] ret = {0, 0};
-            return ret;
-        }
-    }
-    
-    // returns (a + b*i) = (c + d*i) + (e + f*i) as {a, b}
-    static private float[] complexAdd(float c, float d, float e, float f) {
-        float re = c + e;
-        float im = d + f;
-        float[] ret = {re, im};
-        
-        if (!Float.isFinite(re) || !Float.isFinite(im))
-            return complexAddBig(c, d, e, f);
-        
-        return ret;
-    }
-    
-    // handle complex addition with big numbers
-    static private float[] complexAddBig(float c, float d, float e, float f) {
-        try {
-            BigDecimal bigC = BigDecimal.valueOf((double)c);
-            BigDecimal bigD = BigDecimal.valueOf((double)d);
-            BigDecimal bigE = BigDecimal.valueOf((double)e);
-            BigDecimal bigF = BigDecimal.valueOf((double)f);
-        
-            BigDecimal re = bigC.add(bigE);
-            BigDecimal im = bigD.add(bigF);
-        
-            float[] ret = {re.floatValue(), im.floatValue()};
-            return ret;
-        }
-        catch(NumberFormatException ex) {
-            float[] ret = {0, 0};
-            return ret;
-        }
-    }
-    
     // Show window to select an image file. Returns the file path as a string.
     static public String getPath(String message) {
         String path;
@@ -168,8 +43,25 @@ public class Deconvolve_Image_Utils {
         return mat;
     }
     
-    // Takes an image stack and returns a float 4D matrix
+    // Opens an image file and returns it as a float 4D matrix. The image itself is released right away
+    static public float[][][][] openMatrix4D(String path) {
+        ImagePlus image = IJ.openImage(path);
+        if (image == null)
+            throw new IllegalArgumentException("Could not open " + path + ".");
+        
+        float[][][][] mat = getMatrix4D(image);
+        image.flush();
+        image.close();
+        return mat;
+    }
+    
+    // Takes an image stack and returns a float 4D matrix. Slices are converted in parallel unless the stack is virtual
     static public float[][][][] getMatrix4D(ImagePlus image) {
+        return getMatrix4D(image, !image.getStack().isVirtual());
+    }
+    
+    // Takes an image stack and returns a float 4D matrix. Each slice's pixel array is read once and converted row by row
+    static public float[][][][] getMatrix4D(ImagePlus image, boolean parallel) {
         int width = image.getWidth();
         int height = image.getHeight();
         int slices = image.getNSlices();
@@ -177,18 +69,66 @@ public class Deconvolve_Image_Utils {
         ImageStack stack = image.getStack();
         float[][][][] mat = new float[frames][slices][height][width];
         
-        // loop over image stack and assign values to matrix - note frames, slices, and StackIndex are 1-based
-        for (int i = 1; i <= frames; i++ ) {
-            for (int j = 1; j <= slices; j++) {
-                for (int k = 0; k < height; k++) {
-                    for (int l = 0; l < width; l++)
-                        mat[i-1][j-1][k][l] = (float)stack.getVoxel(l, k, image.getStackIndex(1, j, i)-1);
+        // frames, slices, and StackIndex are 1-based
+        IntStream planes = IntStream.range(0, frames*slices);
+        if (parallel)
+            planes = planes.parallel();
+        planes.forEach(n -> {
+            int i = n / slices;
+            int j = n % slices;
+            toFloat(stack.getPixels(image.getStackIndex(1, j + 1, i + 1)), mat[i][j]);
+        });
+        return mat;
+    }
+    
+    // Takes one frame (0-based) of an image stack as a float 3D matrix, without reading the other frames. Virtual stacks
+    // are read one plane at a time, so frames can be requested from several threads
+    static public float[][][] getFrame(ImagePlus image, int frame) {
+        ImageStack stack = image.getStack();
+        float[][][] mat = new float[image.getNSlices()][image.getHeight()][image.getWidth()];
+        for (int j = 0; j < mat.length; j++) {
+            int index = image.getStackIndex(1, j + 1, frame + 1);
+            if (stack.isVirtual())
+                synchronized (stack) {
+                    toFloat(stack.getPixels(index), mat[j]);
                 }
-            }
+            else
+                toFloat(stack.getPixels(index), mat[j]);
         }
         return mat;
     }
     
+    // convert one slice's pixel array to a [height][width] matrix, with the same values ImageStack.getVoxel returns
+    static private void toFloat(Object pixels, float[][] slice) {
+        int width = slice[0].length;
+        if (pixels instanceof float[]) {
+            float[] floats = (float[]) pixels;
+            for (int k = 0; k < slice.length; k++)
+                System.arraycopy(floats, k*width, slice[k], 0, width);
+        }
+        else if (pixels instanceof short[]) {
+            short[] shorts = (short[]) pixels;
+            for (int k = 0; k < slice.length; k++)
+                for (int l = 0, idx = k*width; l < width; l++, idx++)
+                    slice[k][l] = shorts[idx] & 0xffff;
+        }
+        else if (pixels instanceof byte[]) {
+            byte[] bytes = (byte[]) pixels;
+            for (int k = 0; k < slice.length; k++)
+                for (int l = 0, idx = k*width; l < width; l++, idx++)
+                    slice[k][l] = bytes[idx] & 0xff;
+        }
+        else if (pixels instanceof int[]) {
+            int[] ints = (int[]) pixels;
+            for (int k = 0; k < slice.length; k++)
+                for (int l = 0, idx = k*width; l < width; l++, idx++)
+                    slice[k][l] = ints[idx];
+        }
+        else
+            for (float[] row : slice)
+                Arrays.fill(row, Float.NaN);
+    }
+    
     // Takes 3D matrix and puts it into a form compatible with the FFT package
     // Even columns are the real parts of data entries, and odd columns are the imaginary parts.    
     // This method assumes a phase of zero, so all the data is real.
@@ -198,15 +138,11 @@ public class Deconvolve_Image_Utils {
         int a_width = mat[0][0].length;
         float[][][] ret = new float[a_slices][a_height][2 * a_width];
 
-        for (int i = 0; i < a_slices; i++) {
-            for (int j = 0; j < a_height; j++) {
-                for (int k = 0; k < a_width; k++) {
-                    // set the real part
-                    ret[i][j][2 * k] = mat[i][j][k];
-                    ret[i][j][2 * k + 1] = 0;   
-                }
-            }
-        }
+        // the imaginary parts are already 0
+        Parallel_Utils.forEachRow(a_slices, a_height, a_width, (i, j) -> {
+            for (int k = 0; k < a_width; k++)
+                ret[i][j][2 * k] = mat[i][j][k];
+        });
         return ret;
     }
     
@@ -231,16 +167,14 @@ public class Deconvolve_Image_Utils {
         int a_width = amp[0][0].length;
         float[][][] ret = new float[a_slices][a_height][2 * a_width];
         // loop over elements of amp and phase, add appropriate values to ret
-        for (int i = 0; i < a_slices; i++) {
-            for (int j = 0; j < a_height; j++) {
-                for (int k = 0; k < a_width; k++) {
-                    // set the real part
-                    ret[i][j][2 * k] = amp[i][j][k] * (float)Math.cos((double)phase[i][j][k]);
-                    // set the imaginary part
-                    ret[i][j][2 * k + 1] = amp[i][j][k] * (float)Math.sin((double)phase[i][j][k]);
-                }
+        Parallel_Utils.forEachRow(a_slices, a_height, a_width, (i, j) -> {
+            for (int k = 0; k < a_width; k++) {
+                // set the real part
+                ret[i][j][2 * k] = amp[i][j][k] * (float)Math.cos((double)phase[i][j][k]);
+                // set the imaginary part
+                ret[i][j][2 * k + 1] = amp[i][j][k] * (float)Math.sin((double)phase[i][j][k]);
             }
-        }
+        });
 
         return ret;
     }
@@ -266,16 +200,14 @@ public class Deconvolve_Image_Utils {
         int a_width = reMat[0][0].length;
         float[][][] ret = new float[a_slices][a_height][2 * a_width];
         // loop over elements of amp and phase, add appropriate values to ret
-        for (int i = 0; i < a_slices; i++) {
-            for (int j = 0; j < a_height; j++) {
-                for (int k = 0; k < a_width; k++) {
-                    // set the real part
-                    ret[i][j][2 * k] = reMat[i][j][k];
-                    // set the imaginary part
-                    ret[i][j][2 * k + 1] = imMat[i][j][k];
-                }
+        Parallel_Utils.forEachRow(a_slices, a_height, a_width, (i, j) -> {
+            for (int k = 0; k < a_width; k++) {
+                // set the real part
+                ret[i][j][2 * k] = reMat[i][j][k];
+                // set the imaginary part
+                ret[i][j][2 * k + 1] = imMat[i][j][k];
             }
-        }
+        });
 
         return ret;
     }
@@ -301,10 +233,10 @@ public class Deconvolve_Image_Utils {
         // the complex matrix has twice the width as the output matrix
         int width = (int)(mat[0][0].length / 2);
         float[][][] ret = new float[slices][height][width];
-        for (int i = 0; i < slices; i++)
-            for (int j = 0; j < height; j++)
-                for (int k = 0; k < width; k++)
-                    ret[i][j][k] = (float)Math.sqrt((double)mat[i][j][2*k] * (double)mat[i][j][2*k] + (double)mat[i][j][2*k + 1] * (double)mat[i][j][2*k + 1]); 
+        Parallel_Utils.forEachRow(slices, height, width, (i, j) -> {
+            for (int k = 0; k < width; k++)
+                ret[i][j][k] = (float)Math.sqrt((double)mat[i][j][2*k] * (double)mat[i][j][2*k] + (double)mat[i][j][2*k + 1] * (double)mat[i][j][2*k + 1]);
+        });
         
         return ret;
     }
@@ -329,10 +261,10 @@ public class Deconvolve_Image_Utils {
         // the complex matrix has twice the width as the output matrix
         int width = (int)(mat[0][0].length / 2);
         float[][][] ret = new float[slices][height][width];
-        for (int i = 0; i < slices; i++)
-            for (int j = 0; j < height; j++)
-                for (int k = 0; k < width; k++)
-                    ret[i][j][k] = (float)Math.atan2(mat[i][j][2*k + 1], mat[i][j][2*k]); 
+        Parallel_Utils.forEachRow(slices, height, width, (i, j) -> {
+            for (int k = 0; k < width; k++)
+                ret[i][j][k] = (float)Math.atan2(mat[i][j][2*k + 1], mat[i][j][2*k]);
+        });
         
         return ret;
     }
@@ -357,10 +289,10 @@ public class Deconvolve_Image_Utils {
         // the complex matrix has twice the width as the output matrix
         int width = (int)(mat[0][0].length / 2);
         float[][][] ret = new float[slices][height][width];
-        for (int i = 0; i < slices; i++)
-            for (int j = 0; j < height; j++)
-                for (int k = 0; k < width; k++)
-                    ret[i][j][k] = mat[i][j][2*k]; 
+        Parallel_Utils.forEachRow(slices, height, width, (i, j) -> {
+            for (int k = 0; k < width; k++)
+                ret[i][j][k] = mat[i][j][2*k];
+        });
             
         return ret;
     }
@@ -385,10 +317,10 @@ public class Deconvolve_Image_Utils {
         // the complex matrix has twice the width as the output matrix
         int width = (int)(mat[0][0].length / 2);
         float[][][] ret = new float[slices][height][width];
-        for (int i = 0; i < slices; i++)
-            for (int j = 0; j < height; j++)
-                for (int k = 0; k < width; k++)
-                    ret[i][j][k] = mat[i][j][2*k + 1]; 
+        Parallel_Utils.forEachRow(slices, height, width, (i, j) -> {
+            for (int k = 0; k < width; k++)
+                ret[i][j][k] = mat[i][j][2*k + 1];
+        });
             
         return ret;
     }
@@ -412,10 +344,10 @@ public class Deconvolve_Image_Utils {
         int width = mat[0][0].length;
         //float[][][] ret = new float[slices][height][width];
         
-        for (int i = 0; i < slices; i++)
-            for (int j = 0; j < height; j++)
-                for (int k = 0; k < width; k++)
-                    ret[i][j][k] = mat[i][j][k] + inc;
+        Parallel_Utils.forEachRow(slices, height, width, (i, j) -> {
+            for (int k = 0; k < width; k++)
+                ret[i][j][k] = mat[i][j][k] + inc;
+        });
     }
     
     static public void increment(float[][][][] mat, float[][][][] ret, float inc) {
@@ -432,91 +364,25 @@ public class Deconvolve_Image_Utils {
         int height = mat[0].length;
         int width = (int)(mat[0][0].length / 2);
         //float[][][] ret = new float[slices][height][2*width];
-        for (int i = 0; i < slices; i++)
-            for (int j = 0; j < height; j++)
-                for (int k = 0; k < width; k++) {
-                    ret[i][j][2*k] = mat[i][j][2*k] + inc; 
-                    ret[i][j][2*k + 1] = mat[i][j][2*k + 1];
-                }
+        Parallel_Utils.forEachRow(slices, height, width, (i, j) -> {
+            for (int k = 0; k < width; k++) {
+                ret[i][j][2*k] = mat[i][j][2*k] + inc; 
+                ret[i][j][2*k + 1] = mat[i][j][2*k + 1];
+            }
+        });
     }
     
     // divides, multiplies, subtracts, or adds corresponding elements in two 3D matrices
-    // these are complex matrices, so additional operations are required
+    // these are complex matrices, so the work is done by Complex_Kernel
     static public void matrixOperations(float[][][] mat1, float[][][] mat2, float[][][] retMat, String operation) {
-        int slices = mat1.length;
-        int height = mat1[0].length;
-        int width = (int)(mat1[0][0].length / 2);
-        
-        float c; // Re of mat1 element
-        float d; // Im of mat1 element
-        float e; // Re of mat2 element
-        float f; // Im of mat2 element
-        float[] result; // {Re, Im}
-        
-        if (operation == "divide") {
-            for (int i = 0; i < slices; i++) {
-                for (int j = 0; j < height; j++) {
-                    for (int k = 0; k < width; k++) {
-                        c = mat1[i][j][2*k];
-                        d = mat1[i][j][2*k+1];
-                        e = mat2[i][j][2*k];
-                        f = mat2[i][j][2*k + 1];
-                        result = complexDivide(c, d, e, f);
-                        // real part of dividing two complex numbers
-                        retMat[i][j][2*k] = result[0];
-                        // imaginary part of dividing two complex numbers
-                        retMat[i][j][2*k + 1] = result[1];
-                    }
-                }
-            }
-        }
-        else if (operation == "multiply") {
-            for (int i = 0; i < slices; i++) {
-                for (int j = 0; j < height; j++) {
-                    for (int k = 0; k < width; k++) {
-                        c = mat1[i][j][2*k];
-                        d = mat1[i][j][2*k+1];
-                        e = mat2[i][j][2*k];
-                        f = mat2[i][j][2*k + 1];
-                        result = complexMult(c, d, e, f);
-                        // real part of multiplying two complex numbers
-                        retMat[i][j][2*k] = result[0];
-                        // imaginary part of multiplying two complex numbers
-                        retMat[i][j][2*k + 1] = result[1];
-                    }
-                }
-            }
-        }
-        else if (operation == "subtract") {
-            for (int i = 0; i < slices; i++) {
-                for (int j = 0; j < height; j++) {
-                    for (int k = 0; k < width; k++) {
-                        c = mat1[i][j][2*k];
-                        d = mat1[i][j][2*k+1];
-                        e = mat2[i][j][2*k];
-                        f = mat2[i][j][2*k + 1];
-                        result = complexSub(c, d, e, f);
-                        retMat[i][j][2*k] = result[0];
-                        retMat[i][j][2*k + 1] = result[1];
-                    }
-                }
-            }
-        }
-        else {
-            for (int i = 0; i < slices; i++) {
-                for (int j = 0; j < height; j++) {
-                    for (int k = 0; k < width; k++) {
-                        c = mat1[i][j][2*k];
-                        d = mat1[i][j][2*k+1];
-                        e = mat2[i][j][2*k];
-                        f = mat2[i][j][2*k + 1];
-                        result = complexAdd(c, d, e, f);
-                        retMat[i][j][2*k] = result[0];
-                        retMat[i][j][2*k + 1] = result[1];
-                    }
-                }
-            }
-        }
+        if (operation == "divide")
+            Complex_Kernel.divide(mat1, mat2, retMat);
+        else if (operation == "multiply")
+            Complex_Kernel.multiply(mat1, mat2, retMat);
+        else if (operation == "subtract")
+            Complex_Kernel.subtract(mat1, mat2, retMat);
+        else
+            Complex_Kernel.add(mat1, mat2, retMat);
     }
     
     // returns the complex conjugate of the input matrix
@@ -526,12 +392,12 @@ public class Deconvolve_Image_Utils {
         int width = (int)(mat[0][0].length / 2);
         //float[][][] retMat = new float[slices][height][2*width];
         
-        for (int i = 0; i < slices; i++)
-            for (int j = 0; j < height; j++)
-                for (int k = 0; k < width; k++) {
-                    retMat[i][j][2*k] = mat[i][j][2*k];
-                    retMat[i][j][2*k + 1] = (-1)*mat[i][j][2*k + 1];
-                }
+        Parallel_Utils.forEachRow(slices, height, width, (i, j) -> {
+            for (int k = 0; k < width; k++) {
+                retMat[i][j][2*k] = mat[i][j][2*k];
+                retMat[i][j][2*k + 1] = (-1)*mat[i][j][2*k + 1];
+            }
+        });
     }
     
     // scales a  matrix (can be real or complex)
@@ -541,25 +407,18 @@ public class Deconvolve_Image_Utils {
         int width = mat[0][0].length;
         //float[][][] retMat = new float[slices][height][width];
         
-        for (int i = 0; i < slices; i++)
-            for (int j = 0; j < height; j++)
-                for (int k = 0; k < width; k++)
-                    retMat[i][j][k] = scale * mat[i][j][k];
+        Parallel_Utils.forEachRow(slices, height, width, (i, j) -> {
+            for (int k = 0; k < width; k++)
+                retMat[i][j][k] = scale * mat[i][j][k];
+        });
     }
     
     // scales a  matrix (can be real or complex)
     static public void scaleMat(float[][][][] mat, float[][][][] retMat, float scale) {
-        int frames = mat.length;
-        int slices = mat[0].length;
-        int height = mat[0][0].length;
-        int width = mat[0][0][0].length;
         //float[][][][] retMat = new float[frames][slices][height][width];
         
-        for (int i = 0; i < frames; i++)
-            for (int j = 0; j < slices; j++)
-                for (int k = 0; k < height; k++) 
-                    for (int l = 0; l < width; l++)
-                        retMat[i][j][k][l] = scale * mat[i][j][k][l];
+        for (int i = 0; i < mat.length; i++)
+            scaleMat(mat[i], retMat[i], scale);
     }
     
     // covert 3D matrix to ImagePlus image
@@ -568,35 +427,53 @@ public class Deconvolve_Image_Utils {
         return reassign(four_dim, impType, title);
     }
     
-    // covert 4D matrix to ImagePlus image
+    // covert 4D matrix to ImagePlus image. 8- and 16-bit images are scaled with the range of the whole matrix
     static public ImagePlus reassign(float[][][][] testMat, String impType, String title) {
         int frames = testMat.length;
         int width = testMat[0][0][0].length;
         int height = testMat[0][0].length;
         int slices = testMat[0].length;
-    
+        
+        // global range, skipping infinite values the way FloatProcessor does
+        float matMin = Float.POSITIVE_INFINITY;
+        float matMax = Float.NEGATIVE_INFINITY;
+        if (impType != "GRAY32")
+            for (float[][][] frame : testMat)
+                for (float[][] slice : frame)
+                    for (float[] row : slice)
+                        for (float value : row)
+                            if (!Float.isInfinite(value)) {
+                                if (value < matMin) matMin = value;
+                                if (value > matMax) matMax = value;
+                            }
+        final double rangeMin = matMin;
+        final double rangeMax = matMax;
+        
+        // rows of the matrix are rows of the image, so each plane is flattened in a single pass
+        ImageProcessor[] planes = new ImageProcessor[frames*slices];
+        IntStream.range(0, planes.length).parallel().forEach(n -> {
+            float[][] plane = testMat[n / slices][n % slices];
+            float[] pixels = new float[width*height];
+            for (int k = 0; k < height; k++)
+                System.arraycopy(plane[k], 0, pixels, k*width, width);
+            if (impType == "GRAY16")
+                planes[n] = new ShortProcessor(width, height, toShort(pixels, rangeMin, rangeMax), null);
+            else if (impType == "GRAY8")
+                planes[n] = new ByteProcessor(width, height, toByte(pixels, rangeMin, rangeMax));
+            else
+                planes[n] = new FloatProcessor(width, height, pixels);
+        });
+        
         ImageStack stack = new ImageStack(width, height);
-        ImageProcessor ref = new FloatProcessor(testMat[0][0]);
         double min = Double.POSITIVE_INFINITY;
         double max = -Double.POSITIVE_INFINITY;
-        for (int i = 1; i <= frames; i++) 
-            for (int j = 1; j <= slices; j++) {
-                ImageProcessor ip = new FloatProcessor(testMat[i-1][j-1]);
-                ip = ip.rotateRight();
-                ip.flipHorizontal();
-                // convert image stack to correct architecture with scaling
-                if (impType != "GRAY32")
-                    if (impType == "GRAY16")
-                        ip = ip.convertToShortProcessor(true);
-                    else
-                        ip = ip.convertToByte(true);
-                
-                double this_min = ip.getMin();
-                double this_max = ip.getMax();
-                if (this_min < min) min = this_min;
-                if (this_max > max) max = this_max;
-                stack.addSlice(ip);
-            }
+        for (ImageProcessor ip : planes) {
+            double this_min = ip.getMin();
+            double this_max = ip.getMax();
+            if (this_min < min) min = this_min;
+            if (this_max > max) max = this_max;
+            stack.addSlice(ip);
+        }
         // The hackiest of hacks
         stack.update(new FloatProcessor(new float[][]{{(float)min, (float)max}}));
         ImagePlus result = new ImagePlus(title, stack);
@@ -607,23 +484,74 @@ public class Deconvolve_Image_Utils {
         return result;
     }
     
+    // show a store of frames as a virtual hyperstack. Planes are read from the store as they are displayed, and 8- and
+    // 16-bit planes are scaled with the range of the whole store. The store is closed when the image is
+    static public ImagePlus reassign(Volume_Store store, String impType, String title) {
+        ImagePlus result = new ImagePlus(title, new Stored_Stack(store, impType));
+        result.setDimensions(1, store.slices, store.frames);
+        if (store.frames > 1)
+            result.setOpenAsHyperStack(true);
+        if (impType == "GRAY32")
+            result.setDisplayRange(store.getMin(), store.getMax());
+        
+        ImagePlus.addImageListener(new ImageListener() {
+            public void imageOpened(ImagePlus imp) {}
+            public void imageUpdated(ImagePlus imp) {}
+            public void imageClosed(ImagePlus imp) {
+                if (imp == result) {
+                    ImagePlus.removeImageListener(this);
+                    store.close();
+                }
+            }
+        });
+        return result;
+    }
+    
+    // whether bytes more can be allocated in the memory ImageJ has left
+    static public boolean fitsInMemory(long bytes) {
+        return bytes <= IJ.maxMemory() - IJ.currentMemory();
+    }
+    
+    // scale a plane to 16 bits, rounding the same way ImageProcessor.convertToShortProcessor(true) does
+    static short[] toShort(float[] plane, double min, double max) {
+        short[] pixels = new short[plane.length];
+        double scale = max - min == 0 ? 1 : 65535.0 / (max - min);
+        double value;
+        for (int n = 0; n < plane.length; n++) {
+            value = (plane[n] - min) * scale;
+            if (value < 0) value = 0;
+            if (value > 65535) value = 65535;
+            pixels[n] = (short)(int)(value + 0.5);
+        }
+        return pixels;
+    }
+    
+    // scale a plane to 8 bits, rounding the same way ImageProcessor.convertToByte(true) does
+    static byte[] toByte(float[] plane, double min, double max) {
+        byte[] pixels = new byte[plane.length];
+        double scale = 256.0 / (max - min);
+        double value;
+        int ivalue;
+        for (int n = 0; n < plane.length; n++) {
+            value = plane[n] - min;
+            if (value < 0) value = 0;
+            ivalue = (int)(value * scale + 0.5);
+            if (ivalue > 255) ivalue = 255;
+            pixels[n] = (byte)ivalue;
+        }
+        return pixels;
+    }
+    
     // shift a 3D matrix so that all values fall between newMin and newMax
     static public void linearShift (float[][][] mat, float newMin, float newMax) {
-        float min = mat[0][0][0];
-        float max = mat[0][0][0];
-        for (int i = 0; i < mat.length; i++)
-            for (int j = 0; j < mat[0].length; j++) 
-                for (int k = 0; k < mat[0][0].length; k++) {
-                    if (mat[i][j][k] > max)
-                        max = mat[i][j][k];
-                    if (mat[i][j][k] < min)
-                        min = mat[i][j][k];
-                }
+        float min = minOf(mat);
+        float max = maxOf(mat);
+        int width = mat[0][0].length;
         
-        for (int i = 0; i < mat.length; i++)
-            for (int j = 0; j < mat[0].length; j++) 
-                for (int k = 0; k < mat[0][0].length; k++)
-                    mat[i][j][k] = (mat[i][j][k] - min)*(newMax - newMin)/(max - min) + newMin;
+        Parallel_Utils.forEachRow(mat.length, mat[0].length, width, (i, j) -> {
+            for (int k = 0; k < width; k++)
+                mat[i][j][k] = (mat[i][j][k] - min)*(newMax - newMin)/(max - min) + newMin;
+        });
     }
     
     // invert an entire image
@@ -637,111 +565,101 @@ public class Deconvolve_Image_Utils {
     
     // normalize a real matrix so that all pixels add to 1
     static public void normalize(float[][][] mat) {
-        float total = 0;
-        for (int i = 0; i < mat.length; i++)
-            for (int j = 0; j < mat[0].length; j++)
-                for (int k = 0; k < mat[0][0].length; k++)
-                    total += mat[i][j][k];
+        int width = mat[0][0].length;
+        float total = (float) Parallel_Utils.sum(mat.length, mat[0].length, width, (i, j) -> {
+            double rowTotal = 0;
+            for (int k = 0; k < width; k++)
+                rowTotal += mat[i][j][k];
+            return rowTotal;
+        });
         
-        for (int i = 0; i < mat.length; i++)
-            for (int j = 0; j < mat[0].length; j++)
-                for (int k = 0; k < mat[0][0].length; k++)
-                    mat[i][j][k] = mat[i][j][k] / total;
+        Parallel_Utils.forEachRow(mat.length, mat[0].length, width, (i, j) -> {
+            for (int k = 0; k < width; k++)
+                mat[i][j][k] = mat[i][j][k] / total;
+        });
     }
     
     // normalize a real matrix and imaginary matrix so that all amplitudes add to 1
     static public void normalize(float[][][] matRe, float[][][] matIm) {
-        float total = 0;
-        for (int i = 0; i < matRe.length; i++)
-            for (int j = 0; j < matRe[0].length; j++)
-                for (int k = 0; k < matRe[0][0].length; k++)
-                    total += Math.sqrt(matRe[i][j][k]*matRe[i][j][k] + matIm[i][j][k]*matIm[i][j][k]);
-        
-        for (int i = 0; i < matRe.length; i++)
-            for (int j = 0; j < matRe[0].length; j++)
-                for (int k = 0; k < matRe[0][0].length; k++) {
-                    matRe[i][j][k] = matRe[i][j][k] / total;
-                    matIm[i][j][k] = matIm[i][j][k] / total;
-                }
+        int width = matRe[0][0].length;
+        float total = (float) Parallel_Utils.sum(matRe.length, matRe[0].length, width, (i, j) -> {
+            double rowTotal = 0;
+            for (int k = 0; k < width; k++)
+                rowTotal += Math.sqrt(matRe[i][j][k]*matRe[i][j][k] + matIm[i][j][k]*matIm[i][j][k]);
+            return rowTotal;
+        });
+        
+        Parallel_Utils.forEachRow(matRe.length, matRe[0].length, width, (i, j) -> {
+            for (int k = 0; k < width; k++) {
+                matRe[i][j][k] = matRe[i][j][k] / total;
+                matIm[i][j][k] = matIm[i][j][k] / total;
+            }
+        });
     }
     
     // after taking the inverse Fourier transform, the quadrants of the image are flipped around for some reason. This puts it back to normal.
+    // A shifted copy is returned and ampMat is left as it was
     static public float[][][] formatIFFT(float[][][] ampMat) {
-        int slices = ampMat.length;
-        int height = ampMat[0].length;
-        int width = ampMat[0][0].length;
-        float placehold;
-        int halfSlices = (int)(slices / 2);
-        int halfHeight = (int)(height / 2);
-        int halfWidth = (int)(width / 2);
-        float[][][] reformat = new float[slices][height][width];
-        for (int i = 0; i < slices; i++) {
-            if (i + halfSlices < slices)
-                reformat[i + halfSlices] = ampMat[i];
-            else
-                if (slices % 2 == 0)
-                    reformat[i - halfSlices] = ampMat[i];
-                else
-                    reformat[i - halfSlices - 1] = ampMat[i];
-            }
+        float[][][] reformat = new float[ampMat.length][ampMat[0].length][];
+        for (int i = 0; i < ampMat.length; i++)
+            for (int j = 0; j < ampMat[0].length; j++)
+                reformat[i][j] = ampMat[i][j].clone();
         
-        for (int i = 0; i < slices; i++) {
-            for (int j = 0; j < halfHeight; j++)
-                for (int k = 0; k < halfWidth; k++) {
-                    placehold = reformat[i][j][k];
-                    reformat[i][j][k] = reformat[i][j+halfHeight][k+halfWidth];
-                    reformat[i][j+halfHeight][k+halfWidth] = placehold;
-                }
-            
-            for (int j = 0; j < halfHeight; j++)
-                for (int k = halfWidth; k < width; k++) {
-                    placehold = reformat[i][j][k];
-                    reformat[i][j][k] = reformat[i][j+halfHeight][k-halfWidth];
-                    reformat[i][j+halfHeight][k-halfWidth] = placehold;
-                }
-        }
- 
-        return reformat;
+        return formatIFFTInPlace(reformat);
     }
     
     static public float[][][][] formatIFFT(float[][][][] ampMat) {
-        int frames = ampMat.length;
-        float[][][][] ret = new float[frames][ampMat[0].length][ampMat[0][0].length][ampMat[0][0][0].length];
-        for (int i = 0; i < frames; i++)
+        float[][][][] ret = new float[ampMat.length][][][];
+        for (int i = 0; i < ampMat.length; i++)
             ret[i] = formatIFFT(ampMat[i]);
         
         return ret;
     }
     
+    // the same, shifting ampMat itself without allocating, and returning it
+    static public float[][][] formatIFFTInPlace(float[][][] ampMat) {
+        FFT_Shift.shift(ampMat, 1);
+        return ampMat;
+    }
+    
+    static public float[][][][] formatIFFTInPlace(float[][][][] ampMat) {
+        for (int i = 0; i < ampMat.length; i++)
+            FFT_Shift.shift(ampMat[i], 1);
+        
+        return ampMat;
+    }
+    
+    // same as formatIFFT, but for a complex matrix in FFT form
+    static public void formatIFFTComplex(float[][][] mat) {
+        FFT_Shift.shift(mat, 2);
+    }
+    
     // convolve two matrices by elementwise multiplication in Fourier space. mat1, mat2, and ret are all in FFT form
     static public float[][][] fourierConvolve(float[][][] mat1, float[][][] mat2) {
-        FloatFFT_3D fft = new FloatFFT_3D((long)mat1.length, (long)mat1[0].length, (long)mat1[0][0].length/2);
-        float[][][] mat1FT = new float[mat1.length][mat1[0].length][mat1[0][0].length];
-        float[][][] mat2FT = new float[mat1.length][mat1[0].length][mat1[0][0].length];
         float[][][] retMat = new float[mat1.length][mat1[0].length][mat1[0][0].length];
+        Complex_Volume work1 = new Complex_Volume(mat1.length, mat1[0].length, mat1[0][0].length / 2);
+        Complex_Volume work2 = new Complex_Volume(mat1.length, mat1[0].length, mat1[0][0].length / 2);
+        fourierConvolve(mat1, mat2, retMat, work1, work2);
         
-        // make copy of mat1 and mat2 so we don't change them
-        for (int i = 0; i < mat1.length; i++)
-            for (int j = 0; j < mat1[0].length; j++) 
-                for (int k = 0; k < mat1[0][0].length; k++) {
-                    mat1FT[i][j][k] = mat1[i][j][k];
-                    mat2FT[i][j][k] = mat2[i][j][k];
-                }       
+        return retMat;
+    }
     
-        fft.complexForward(mat1FT);
-        fft.complexForward(mat2FT);
-        
-        matrixOperations(mat1FT, mat2FT, retMat, "multiply");
-        fft.complexInverse(retMat, true);
+    // convolve without allocating. The result is written to retMat, which may be mat1 or mat2. work1 and work2 are
+    // scratch volumes of the same size as the matrices and can be reused between calls.
+    static public void fourierConvolve(float[][][] mat1, float[][][] mat2, float[][][] retMat, Complex_Volume work1, Complex_Volume work2) {
+        FloatFFT_3D fft = work1.plan();
         
-        float[][][] reMat = getReMat(retMat);
-        float[][][] imMat = getImMat(retMat);
-        reMat = formatIFFT(reMat);
-        imMat = formatIFFT(imMat);
+        // copy mat1 and mat2 so we don't change them
+        work1.copyFrom(mat1);
+        work2.copyFrom(mat2);
+        work1.forward(fft);
+        work2.forward(fft);
         
-        retMat = toFFTformRect(reMat, imMat);
+        work1.multiply(work2, work1);
+        work1.inverse(fft);
         
-        return retMat;
+        work1.copyTo(retMat);
+        formatIFFTComplex(retMat);
     }
     
     // normalize a convolved image so it has the same minimum and maximum amplitude as the original image
@@ -765,57 +683,137 @@ public class Deconvolve_Image_Utils {
                 }               
     }
     
-    // find error of a deconvolved image
-    static public double getError(float[][][][] guess, float[][][][] image, float[][][] psfMat) {
-        int frames = image.length;
-        int slices = image[0].length;
-        int height = image[0][0].length;
-        int width = image[0][0][0].length / 2;
-        float[][][][] blurredMat = new float[frames][slices][height][2*width];
-        
-        // find blurred guess by convolving with PSF
-        for (int i = 0; i < frames; i++) {
-            blurredMat[i] = fourierConvolve(guess[i], psfMat);
-            fitConvolution(blurredMat[i], image[i]);
-        }
+    // the same for real matrices that are not in FFT form. Signs are kept and only the magnitudes are refitted
+    static public void fitConvolutionReal(float[][][] convolved, float[][][] original) {
+        int slices = convolved.length;
+        int height = convolved[0].length;
+        int width = convolved[0][0].length;
+        float[][][] originalAmps = new float[slices][height][width];
+        float[][][] convolvedAmpsOld = new float[slices][height][width];
+        float[][][] convolvedAmpsNew = new float[slices][height][width];
+        for (int j = 0; j < slices; j++)
+            for (int k = 0; k < height; k++)
+                for (int l = 0; l < width; l++) {
+                    originalAmps[j][k][l] = Math.abs(original[j][k][l]);
+                    convolvedAmpsOld[j][k][l] = Math.abs(convolved[j][k][l]);
+                    convolvedAmpsNew[j][k][l] = convolvedAmpsOld[j][k][l];
+                }
         
-        // find mean percent error of all the pixels
-        float originalTotal = 0;
-        float difference = 0;
-        for (int i = 0; i < frames; i++)
-            for (int j = 0; j < slices; j ++)
-                for (int k = 0; k < height; k++)
-                    for (int l = 0; l < width; l++) {
-                        originalTotal += Math.abs(image[i][j][k][l]);
-                        difference += Math.abs(Math.abs(blurredMat[i][j][k][l]) - Math.abs(image[i][j][k][l]));
-                    }
+        linearShift(convolvedAmpsNew, minOf(originalAmps), maxOf(originalAmps));
+        for (int j = 0; j < slices; j++)
+            for (int k = 0; k < height; k++)
+                for (int l = 0; l < width; l++)
+                    convolved[j][k][l] = convolved[j][k][l] * convolvedAmpsNew[j][k][l] / convolvedAmpsOld[j][k][l];
+    }
+    
+    // the range {min, max} of the amplitudes of a complex volume, as fitConvolution takes it from the original
+    static public float[] amplitudeRange(Complex_Volume vol) {
+        float min = amplitude(vol.data, 0);
+        float max = min;
+        for (int n = 0; n < vol.data.length; n += 2) {
+            float amp = amplitude(vol.data, n);
+            if (min > amp)
+                min = amp;
+            if (max < amp)
+                max = amp;
+        }
+        return new float[] {min, max};
+    }
+    
+    // fitConvolution for a flat volume, given the range of the original amplitudes, which stays the same while a frame
+    // is deconvolved. The amplitudes are worked out as they are used, so nothing is allocated
+    static public void fitConvolution(Complex_Volume convolved, float[] range) {
+        float[] data = convolved.data;
+        float[] old = amplitudeRange(convolved);
+        for (int n = 0; n < data.length; n += 2) {
+            float amp = amplitude(data, n);
+            float fitted = (amp - old[0])*(range[1] - range[0])/(old[1] - old[0]) + range[0];
+            data[n] = data[n] * fitted / amp;
+            data[n + 1] = data[n + 1] * fitted / amp;
+        }
+    }
+    
+    // the same for real volumes. The range is that of the absolute values of the original
+    static public float[] absoluteRange(Real_Volume vol) {
+        float min = Math.abs(vol.data[0]);
+        float max = min;
+        for (float value : vol.data) {
+            float amp = Math.abs(value);
+            if (min > amp)
+                min = amp;
+            if (max < amp)
+                max = amp;
+        }
+        return new float[] {min, max};
+    }
+    
+    static public void fitConvolutionReal(Real_Volume convolved, float[] range) {
+        float[] data = convolved.data;
+        float[] old = absoluteRange(convolved);
+        for (int n = 0; n < data.length; n++) {
+            float amp = Math.abs(data[n]);
+            float fitted = (amp - old[0])*(range[1] - range[0])/(old[1] - old[0]) + range[0];
+            data[n] = data[n] * fitted / amp;
+        }
+    }
+    
+    static private float amplitude(float[] data, int n) {
+        return (float)Math.sqrt((double)data[n] * (double)data[n] + (double)data[n + 1] * (double)data[n + 1]);
+    }
+    
+    // find error of a deconvolved image. guess, image, and psfMat are in FFT form
+    static public double getError(float[][][][] guess, float[][][][] image, float[][][] psfMat) {
+        Error_Estimator estimator = new Error_Estimator(psfMat);
+        double[][] terms = new double[image.length][];
+        for (int i = 0; i < image.length; i++)
+            terms[i] = estimator.terms(guess[i], image[i]);
         
-        return difference / originalTotal;
+        return Error_Estimator.error(terms);
     }
     
-    // find minimum of real matrix
+    // the sums behind getError for a single frame, {difference, originalTotal}, so that frames can be handled one at a
+    // time and combined afterwards. Frames that share a PSF are better served by one Error_Estimator
+    static public double[] getErrorTerms(float[][][] guess, float[][][] image, float[][][] psfMat) {
+        return new Error_Estimator(psfMat).terms(guess, image);
+    }
+    
+    // find minimum of real matrix. Each row starts from the first element, so the result is the same as a serial scan
     static public float minOf(float[][][] mat) {
-        float ret = mat[0][0][0];
-        for (int i = 0; i < mat.length; i++)
-            for (int j = 0; j < mat[0].length; j++)
-                for (int k = 0; k < mat[0][0].length; k++) {
-                    if (ret > mat[i][j][k])
-                        ret = mat[i][j][k];
-                }
+        int height = mat[0].length;
+        int width = mat[0][0].length;
+        float[] rowMin = new float[mat.length * height];
+        Parallel_Utils.forEachRow(mat.length, height, width, (i, j) -> {
+            float ret = mat[0][0][0];
+            for (int k = 0; k < width; k++)
+                if (ret > mat[i][j][k])
+                    ret = mat[i][j][k];
+            rowMin[i*height + j] = ret;
+        });
         
+        float ret = mat[0][0][0];
+        for (float value : rowMin)
+            if (ret > value)
+                ret = value;
         return ret;
     }
     
-    // find maximum of real matrix
+    // find maximum of real matrix. Each row starts from the first element, so the result is the same as a serial scan
     static public float maxOf(float[][][] mat) {
-        float ret = mat[0][0][0];
-        for (int i = 0; i < mat.length; i++)
-            for (int j = 0; j < mat[0].length; j++)
-                for (int k = 0; k < mat[0][0].length; k++) {
-                    if (ret < mat[i][j][k])
-                        ret = mat[i][j][k];
-                }
+        int height = mat[0].length;
+        int width = mat[0][0].length;
+        float[] rowMax = new float[mat.length * height];
+        Parallel_Utils.forEachRow(mat.length, height, width, (i, j) -> {
+            float ret = mat[0][0][0];
+            for (int k = 0; k < width; k++)
+                if (ret < mat[i][j][k])
+                    ret = mat[i][j][k];
+            rowMax[i*height + j] = ret;
+        });
         
+        float ret = mat[0][0][0];
+        for (float value : rowMax)
+            if (ret < value)
+                ret = value;
         return ret;
     }
     
@@ -835,6 +833,12 @@ public class Deconvolve_Image_Utils {
         return formatted;
     }
     
+    // shift the planes of an ER-Decon result back to normal. resliceER takes care of the slices
+    static public void formatPlanesER(float[][][][] imageMat) {
+        for (int i = 0; i < imageMat.length; i++)
+            FFT_Shift.shiftPlanes(imageMat[i], 1);
+    }
+    
     // gets ID from strings in the style generated above
     static public String getImageTitle(String selection) {
         String after_colon = selection.split(": ")[1];
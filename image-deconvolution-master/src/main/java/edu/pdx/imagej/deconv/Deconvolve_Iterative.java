@@ -9,12 +9,14 @@
 package edu.pdx.imagej.deconv;
 
 import java.io.File;
+import java.util.Arrays;
 
 import ij.IJ;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.gui.Plot;
+import ij.gui.PlotWindow;
 import ij.measure.Calibration;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
@@ -49,16 +51,22 @@ public class Deconvolve_Iterative implements PlugInFilter {
     private boolean decon_hyper;
     private boolean save_files;
     private boolean plot_error;
+    private boolean accelerate;
+    private boolean record_metrics;
     private float SNR;
-    private float[][][][] ampMat;
-    private float[][][][] phaseMat;
-    private float[][][][] imgMat;
-    private float[][][][] imgMatPhase;
-    private float[][][][] objMat;
+    private float estimate_tolerance;
+    private float error_tolerance;
     private float[][][] psfMat;
     private float[][][] psfPhaseMat;
     private float[] errors;
+    private float[][] frameErrors;
+    private int errorCount;
+    private int[] stops;
+    private int fileFrame;
     private Plot errorPlot;
+    private PlotWindow frameErrorWindow;
+    private Iterative_Deconvolver deconvolver;
+    private Run_Metrics metrics = Run_Metrics.NONE;
     
     private Deconvolve_Image_Utils diu = new Deconvolve_Image_Utils();
 
@@ -92,11 +100,15 @@ public class Deconvolve_Iterative implements PlugInFilter {
         gd.addChoice("PSF amplitude/real image: ", image_list, image_list[image_list.length - 1]);
         gd.addChoice("PSF phase/imaginary image: ", image_list, image_list[image_list.length - 1]);
         gd.addNumericField("Iterations:", 3, 0);
+        gd.addNumericField("Estimate tolerance (0 = off):", 0, 4);
+        gd.addNumericField("Error tolerance (0 = off):", 0, 4);
+        gd.addCheckbox("Accelerate (Biggs-Andrews)?", false);
         gd.addCheckbox("Get SNR?", false);
         gd.addCheckbox("Normalize PSF?", true);
         gd.addCheckbox("Deconvolve from files?", false);
         gd.addCheckbox("Save by frame?", false);
         gd.addCheckbox("Plot errors?", false);
+        gd.addCheckbox("Record run metrics?", false);
 
         gd.showDialog();
         if (gd.wasCanceled())
@@ -110,11 +122,15 @@ public class Deconvolve_Iterative implements PlugInFilter {
         PSF_amp_selection = gd.getNextChoice();
         PSF_phase_selection = gd.getNextChoice();
         iterations = (int) gd.getNextNumber();
+        estimate_tolerance = (float) gd.getNextNumber();
+        error_tolerance = (float) gd.getNextNumber();
+        accelerate = gd.getNextBoolean();
         getSNR = gd.getNextBoolean();
         normalizePSF = gd.getNextBoolean();
         decon_hyper = !gd.getNextBoolean();
         save_files = gd.getNextBoolean();
         plot_error = gd.getNextBoolean();
+        record_metrics = gd.getNextBoolean();
         
         // ensure required images are entered
         if (amp_selection == "<none>" || PSF_amp_selection == "<none>") {
@@ -125,6 +141,10 @@ public class Deconvolve_Iterative implements PlugInFilter {
             IJ.showMessage("Phase/Imaginary images are required for complex deconvolution.");
             return showDialog();
         }
+        if (!(estimate_tolerance >= 0) || !(error_tolerance >= 0)) {
+            IJ.showMessage("Stopping tolerances must be at least 0.");
+            return showDialog();
+        }
                 
         
         // show dialog to obtain custom value of beta
@@ -241,14 +261,32 @@ public class Deconvolve_Iterative implements PlugInFilter {
             diu.normalize(psfMat);
         if (normalizePSF && decon_choice == "Complex (Rectangular)")
             diu.normalize(psfMat, psfPhaseMat);
+        
+        deconvolver = new Iterative_Deconvolver(psfMat, psfPhaseMat, decon_choice, iterations, 1/SNR, plot_error);
+        deconvolver.setProgressListener(IJ::showProgress);
+        deconvolver.setStoppingRule(new Stopping_Rule(estimate_tolerance, error_tolerance));
+        deconvolver.setAccelerated(accelerate);
+        stops = new int[decon_hyper ? frames : stack_list.length];
+        frameErrors = new float[stops.length][iterations];
+        deconvolver.setMetricsListener((name, frame, iteration, value) -> {
+            if (name == "frame error")
+                showFrameError(frame + fileFrame, iteration, (float) value);
+            else if (name == "iterations")
+                frameDone(frame + fileFrame, (int) value);
+            else if (name == "error") {
+                errors[iteration] = (float) value;
+                errorCount = Math.max(errorCount, iteration + 1);
+            }
+        });
+        if (record_metrics)
+            metrics = new Run_Metrics();
+        deconvolver.setRunMetrics(metrics);
             
         // select proper deconvolution procedure
         if (decon_hyper) {
-            // get imaginary/phase component of the original image
-            if (decon_choice != "Standard") {
+            // get imaginary/phase component of the original image. Its frames are read as they are needed
+            if (decon_choice != "Standard")
                 image_phase = WindowManager.getImage(diu.getImageTitle(phase_selection));
-                phaseMat = diu.getMatrix4D(image_phase);
-            }
             
             if (save_files)
                 save_from_hyperstack();
@@ -260,342 +298,255 @@ public class Deconvolve_Iterative implements PlugInFilter {
                 save_from_files();
             else
                 show_from_files();
-        }   
+        }
+        
+        // stage totals, saved in full with the results
+        if (record_metrics) {
+            metrics.toResultsTable().show("Run Metrics");
+            if (save_files)
+                metrics.save(save_path);
+        }
     }
     
-    // save deconvolved images by frame from a hyperstack
+    // save deconvolved images by frame from a hyperstack. Each frame is read, deconvolved, and saved on its own
     public void save_from_hyperstack() {
-        ampMat = diu.getMatrix4D(image_amp);
+        String[] prefixes = prefixes();
         IJ.showStatus("Deconvolving hyperstack...");
-        
-        // deconvolve using the appropriate FFT form
-        if (decon_choice == "Standard")
-            deconvolve(diu.toFFTform(ampMat), diu.toFFTform(psfMat));
-        else if (decon_choice == "Complex (Polar)")     
-            deconvolve(diu.toFFTform(ampMat, phaseMat), diu.toFFTform(psfMat, psfPhaseMat));
-        else        
-            deconvolve(diu.toFFTformRect(ampMat, phaseMat), diu.toFFTform(psfMat, psfPhaseMat));
-        
-        // save images by frame
-        IJ.showStatus("Saving images...");
-        for (int i = 0; i < frames; i++) {
-            ImagePlus tempImg = diu.reassign(diu.getAmplitudeMat(imgMat[i]), choice, Integer.toString(i));
-            tempImg.setCalibration(cal);
-            
-            if (decon_choice == "Standard")
-                IJ.saveAsTiff(tempImg, save_path + Integer.toString(i) + ".tif");
-            else if (decon_choice == "Complex (Polar)") {
-                IJ.saveAsTiff(tempImg, save_path + "Amplitude" + divisor + Integer.toString(i) + ".tif");
-                
-                if (choice == "GRAY32")
-                    tempImg = diu.reassign(diu.getPhaseMat(imgMat[i]), choice, Integer.toString(i));
-                else {
-                    float[][][] phase = diu.getPhaseMat(imgMat[i]);
-                    diu.increment(phase, phase, (float)Math.PI);
-                    diu.scaleMat(phase, phase, (float)(255 / 2 / Math.PI));
-                    diu.reassign(phase, choice, Integer.toString(i));
-                }
-                
-                tempImg.setCalibration(cal);
-                IJ.saveAsTiff(tempImg, save_path + "Phase" + divisor + Integer.toString(i) + ".tif");
-            }
-            else {
-                tempImg = diu.reassign(diu.getReMat(imgMat[i]), choice, Integer.toString(i));
-                tempImg.setCalibration(cal);
-                IJ.saveAsTiff(tempImg, save_path + "Real" + divisor + Integer.toString(i) + ".tif");
-                
-                tempImg = diu.reassign(diu.getImMat(imgMat[i]), choice, Integer.toString(i));
-                tempImg.setCalibration(cal);
-                IJ.saveAsTiff(tempImg, save_path + "Imaginary" + divisor + Integer.toString(i) + ".tif");
-            }
-            
-            if (plot_error) {
-                errorPlot = plotError();
-                tempImg = errorPlot.getImagePlus();
-                IJ.saveAsTiff(tempImg, save_path + "Error" + divisor + Integer.toString(i) + ".tif");
+        deconvolveHyperstack((i, result) -> {
+            Run_Metrics.Span span = metrics.start("reassign", i, -1);
+            ImagePlus[] images = toImages(result, Integer.toString(i));
+            span.stop();
+            span = metrics.start("save", i, -1);
+            // the errors and iterations of a frame arrive just before it does
+            for (int j = 0; j < prefixes.length; j++) {
+                images[j].setCalibration(cal);
+                images[j].setProperty("Info", Stopping_Rule.info(stops[i], iterations));
+                IJ.saveAsTiff(images[j], save_path + prefixes[j] + Integer.toString(i) + ".tif");
             }
+            if (plot_error)
+                IJ.saveAsTiff(plotError("Error Plot (Frame " + Integer.toString(i + 1) + ")", frameErrors[i], stops[i]).getImagePlus(),
+                    save_path + "Error" + divisor + Integer.toString(i) + ".tif");
+            span.stop();
+        });
+        
+        // and the errors over the whole hyperstack once every frame is done
+        if (plot_error) {
+            errorPlot = plotError("Error Plot", errors, errorCount);
+            IJ.saveAsTiff(errorPlot.getImagePlus(), save_path + "Error" + divisor + "Hyperstack.tif");
         }
     }
     
-    // save deconvolved images by frame from stored images
+    // save deconvolved images by frame from stored images. Loading, deconvolution, and saving run at the same time
     public void save_from_files() {
-        if (decon_choice == "Standard") psfMat = diu.toFFTform(psfMat);
-        ampMat = new float[1][slices][height][width];
-        if (decon_choice != "Standard")
-            phaseMat = new float[1][slices][height][width];
+        String[] prefixes = prefixes();
         
-        // loop through images in folder
-        for (int i = 0; i < stack_list.length; i++) {
-            System.gc();
+        // at most two frames wait between each pair of stages
+        Frame_Pipeline<float[][][][][], ImagePlus[]> pipeline = new Frame_Pipeline<float[][][][][], ImagePlus[]>(2);
+        pipeline.run(stack_list.length, i -> {
+            Run_Metrics.Span span = metrics.start("load", i, -1);
+            float[][][][][] input = new float[2][][][][];
+            input[0] = diu.openMatrix4D(stack_path + stack_list[i]);
+            if (decon_choice != "Standard")
+                input[1] = diu.openMatrix4D(stack_path_phase + stack_list_phase[i]);
+            span.stop();
+            return input;
+        }, (i, input) -> {
             IJ.showStatus("Processing frame " + Integer.toString(i + 1) + " of " + Integer.toString(stack_list.length) + "...");
-            ImagePlus tempImg = IJ.openImage(stack_path + stack_list[i]);
-            ampMat = diu.getMatrix4D(tempImg);
-            tempImg.flush();
-            tempImg.close();
+            metrics.setFrameOffset(i);
+            fileFrame = i;
+            float[][][][] result = deconvolveFile(input);
+            Run_Metrics.Span span = metrics.start("reassign", i, -1);
+            ImagePlus[] images = toImages(result, Integer.toString(i));
+            for (ImagePlus image : images)
+                image.setProperty("Info", Stopping_Rule.info(stops[i], iterations));
+            span.stop();
             
-            // deconvolve and save in appropriate folder
-            if (decon_choice == "Standard") {
-                ampMat = diu.toFFTform(ampMat);
-                deconvolve(ampMat, psfMat);
-                
-                tempImg = diu.reassign(diu.getAmplitudeMat(imgMat), choice, Integer.toString(i));
-                tempImg.setCalibration(cal);
-                IJ.saveAsTiff(tempImg, save_path + Integer.toString(i) + ".tif");
-                tempImg.flush();
-                tempImg.close();
-            }
-            else if (decon_choice == "Complex (Polar)") {
-                ImagePlus phaseImg = IJ.openImage(stack_path_phase + stack_list_phase[i]);
-                phaseMat = diu.getMatrix4D(phaseImg);
-                tempImg.flush();
-                phaseImg.close();
-                
-                deconvolve(diu.toFFTform(ampMat, phaseMat), diu.toFFTform(psfMat, psfPhaseMat));
-                
-                tempImg = diu.reassign(diu.getAmplitudeMat(imgMat), choice, Integer.toString(i));
-                tempImg.setCalibration(cal);
-                IJ.saveAsTiff(tempImg, save_path + "Amplitude" + divisor + Integer.toString(i) + ".tif");
-                
-                if (choice == "GRAY32")
-                    tempImg = diu.reassign(diu.getPhaseMat(imgMat), choice, Integer.toString(i));
-                else {
-                    float[][][][] phase = diu.getPhaseMat(imgMat);
-                    diu.increment(phase, phase, (float)Math.PI);
-                    diu.scaleMat(phase, phase, (float)(255 / 2 / Math.PI));
-                    tempImg = diu.reassign(phase, choice, Integer.toString(i));
-                }
-                
-                tempImg.setCalibration(cal);
-                IJ.saveAsTiff(tempImg, save_path + "Phase" + divisor + Integer.toString(i) + ".tif");
-                tempImg.flush();
-                tempImg.close();
+            // errors holds this file's errors until the next one is deconvolved
+            ImagePlus[] results = new ImagePlus[prefixes.length + (plot_error ? 1 : 0)];
+            System.arraycopy(images, 0, results, 0, images.length);
+            if (plot_error) {
+                errorPlot = plotError("Error Plot", errors, stops[i]);
+                results[prefixes.length] = errorPlot.getImagePlus();
             }
-            else {
-                ImagePlus imImg = IJ.openImage(stack_path_phase + stack_list_phase[i]);
-                phaseMat = diu.getMatrix4D(imImg);
-                tempImg.flush();
-                imImg.close();
-                
-                deconvolve(diu.toFFTformRect(ampMat, phaseMat), diu.toFFTformRect(psfMat, psfPhaseMat));
-                
-                tempImg = diu.reassign(diu.getReMat(imgMat), choice, Integer.toString(i));
-                tempImg.setCalibration(cal);
-                IJ.saveAsTiff(tempImg, save_path + "Real" + divisor + Integer.toString(i) + ".tif");
-                
-                tempImg = diu.reassign(diu.getImMat(imgMat), choice, Integer.toString(i));
-                tempImg.setCalibration(cal);
-                IJ.saveAsTiff(tempImg, save_path + "Imaginary" + divisor + Integer.toString(i) + ".tif");
-                tempImg.flush();
-                tempImg.close();
+            return results;
+        }, (i, results) -> {
+            Run_Metrics.Span span = metrics.start("save", i, -1);
+            for (int j = 0; j < prefixes.length; j++) {
+                results[j].setCalibration(cal);
+                IJ.saveAsTiff(results[j], save_path + prefixes[j] + Integer.toString(i) + ".tif");
+                results[j].flush();
+                results[j].close();
             }
-            
-            if (plot_error) {
-                errorPlot = plotError();
-                tempImg = errorPlot.getImagePlus();
-                IJ.saveAsTiff(tempImg, save_path + "Error" + divisor + Integer.toString(i) + ".tif");
-            }   
-        }
+            if (plot_error)
+                IJ.saveAsTiff(results[prefixes.length], save_path + "Error" + divisor + Integer.toString(i) + ".tif");
+            span.stop();
+        });
     }
     
-    // open deconvolved images from currently open hyperstack
+    // open deconvolved images from currently open hyperstack. If the results would not fit in the memory ImageJ has
+    // left, they are kept in a Volume_Store on disk and shown as a virtual stack
     public void show_from_hyperstack() {
-        ampMat = diu.getMatrix4D(image_amp);
-        IJ.showStatus("Deconvolving hyperstack...");
+        int parts = decon_choice == "Standard" ? 1 : 2;
         
-        if (decon_choice == "Standard") {
-            deconvolve(diu.toFFTform(ampMat), diu.toFFTform(psfMat));
-            
-            IJ.showStatus("Constructing result...");
-            ImagePlus tempImage = diu.reassign(diu.getAmplitudeMat(imgMat), choice, "Result");
-            tempImage.setCalibration(cal);
-        
-            tempImage.show();
+        // the results and the images built from them are both about this size
+        long bytes = 4L * parts * frames * slices * height * width;
+        boolean offHeap = !diu.fitsInMemory(2*bytes);
+        Volume_Store[] stores = new Volume_Store[parts];
+        float[][][][][] results = new float[parts][frames][][][];
+        if (offHeap) {
+            IJ.log("Deconvolution results do not fit in memory and will be kept on disk.");
+            for (int k = 0; k < parts; k++)
+                stores[k] = new Volume_Store(frames, slices, height, width);
         }
         
-        else if (decon_choice == "Complex (Polar)") {
-            deconvolve(diu.toFFTform(ampMat, phaseMat), diu.toFFTform(psfMat, psfPhaseMat));
-            
-            IJ.showStatus("Constructing result...");
-            ImagePlus ampImage = diu.reassign(diu.getAmplitudeMat(imgMat), choice, "Amplitude");
-            ampImage.setCalibration(cal);
-            ampImage.show();
-            
-            ImagePlus phaseImage;
-            if (choice == "GRAY32")
-                phaseImage = diu.reassign(diu.getPhaseMat(imgMat), choice, "Phase");
-            else {
-                float[][][][] phase = diu.getPhaseMat(imgMat);
-                diu.increment(phase, phase, (float)Math.PI);
-                diu.scaleMat(phase, phase, (float)(255 / 2 / Math.PI));
-                phaseImage = diu.reassign(phase, choice, "Phase");
-            }
-            
-            phaseImage.setCalibration(cal);
-            phaseImage.show();
-        }
-        
-        else {
-            deconvolve(diu.toFFTform(ampMat, phaseMat), diu.toFFTform(psfMat, psfPhaseMat));
-            
-            IJ.showStatus("Constructing result...");
-            ImagePlus reImage = diu.reassign(diu.getReMat(imgMat), choice, "Real");
-            reImage.setCalibration(cal);
-            reImage.show();
-            
-            ImagePlus imImage = diu.reassign(diu.getImMat(imgMat), choice, "Imaginary");
-            imImage.setCalibration(cal);
-            imImage.show();
-        }
+        IJ.showStatus("Deconvolving hyperstack...");
+        deconvolveHyperstack((i, result) -> {
+            for (int k = 0; k < result.length; k++)
+                if (offHeap)
+                    stores[k].write(i, k == 1 ? scalePhase(new float[][][][] {result[k]})[0] : result[k]);
+                else
+                    results[k][i] = result[k];
+        });
         
-        if (plot_error) {
-            errorPlot = plotError();
-            errorPlot.show();
-        }
+        IJ.showStatus("Constructing result...");
+        show(results, offHeap ? stores : null);
     }
     
+    // open a deconvolved hyperstack from the first frame of each stored image
     public void show_from_files() {
-        objMat = new float[stack_list.length][slices][height][width];
-        ampMat = new float[1][slices][height][width];
-        
-        if (decon_choice != "Standard") {
-            imgMatPhase = new float[stack_list.length][slices][height][width];
-            phaseMat = new float[1][slices][height][width];
-        }
-        
+        float[][][][][] results = new float[decon_choice == "Standard" ? 1 : 2][stack_list.length][][][];
         for (int i = 0; i < stack_list.length; i++) {
             IJ.showStatus("Processing frame " + Integer.toString(i + 1) + " of " + Integer.toString(stack_list.length) + "...");
-            ImagePlus tempImg = IJ.openImage(stack_path + stack_list[i]);
-            ampMat = diu.getMatrix4D(tempImg);
-            tempImg.flush();
-            tempImg.close();
+            Run_Metrics.Span span = metrics.start("load", i, -1);
+            float[][][][][] input = new float[2][][][][];
+            input[0] = diu.openMatrix4D(stack_path + stack_list[i]);
+            if (decon_choice != "Standard")
+                input[1] = diu.openMatrix4D(stack_path_phase + stack_list_phase[i]);
+            span.stop();
             
-            if (decon_choice == "Standard") {
-                deconvolve(diu.toFFTform(ampMat), diu.toFFTform(psfMat));
-                objMat[i] = diu.getAmplitudeMat(imgMat)[0];
-                tempImg.flush();
-                tempImg.close();
-            }
-            else if (decon_choice == "Complex (Polar)") {
-                ImagePlus phaseImg = IJ.openImage(stack_path_phase + stack_list_phase[i]);
-                phaseMat = diu.getMatrix4D(phaseImg);
-                tempImg.flush();
-                phaseImg.close();
-                
-                deconvolve(diu.toFFTform(ampMat, phaseMat), diu.toFFTform(psfMat, psfPhaseMat));
-                objMat[i] = diu.getAmplitudeMat(imgMat)[0];
-                imgMatPhase[i] = diu.getPhaseMat(imgMat)[0];
-            }
-            else {
-                ImagePlus imImg = IJ.openImage(stack_path_phase + stack_list_phase[i]);
-                phaseMat = diu.getMatrix4D(imImg);
-                tempImg.flush();
-                imImg.close();
-                
-                deconvolve(diu.toFFTformRect(ampMat, phaseMat), diu.toFFTformRect(psfMat, psfPhaseMat));
-                objMat[i] = diu.getReMat(imgMat)[0];
-                imgMatPhase[i] = diu.getImMat(imgMat)[0];
-            }       
+            metrics.setFrameOffset(i);
+            fileFrame = i;
+            float[][][][] result = deconvolveFile(input);
+            for (int k = 0; k < result.length; k++)
+                results[k][i] = result[k];
         }
         
-        if (decon_choice == "Standard") {
-            ImagePlus tempImage = diu.reassign(objMat, choice, "Result");
+        show(results, null);
+    }
+    
+    // deconvolve every frame of the open hyperstack. output receives the parts of each result in frame order
+    private void deconvolveHyperstack(Frame_Pipeline.Writer<float[][][][]> output) {
+        if (decon_choice == "Standard")
+            deconvolver.deconvolve(frames, i -> new float[][][][] {diu.getFrame(image_amp, i)}, output);
+        else
+            deconvolver.deconvolve(frames, i -> new float[][][][] {diu.getFrame(image_amp, i), diu.getFrame(image_phase, i)}, output);
+    }
+    
+    // deconvolve the first frame of an image opened from a file, given as the amplitude/real matrix and, for complex
+    // deconvolution, the phase/imaginary matrix. The result has the same parts
+    private float[][][][] deconvolveFile(float[][][][][] input) {
+        float[][][][] frame = decon_choice == "Standard" ? new float[][][][] {input[0][0]} : new float[][][][] {input[0][0], input[1][0]};
+        float[][][][][] result = new float[1][][][][];
+        deconvolver.deconvolve(1, i -> frame, (i, parts) -> result[0] = parts);
+        return result[0];
+    }
+    
+    // images of the parts of one deconvolved frame
+    private ImagePlus[] toImages(float[][][][] result, String title) {
+        ImagePlus[] images = new ImagePlus[result.length];
+        for (int k = 0; k < result.length; k++)
+            images[k] = diu.reassign(k == 1 ? scalePhase(new float[][][][] {result[k]}) : new float[][][][] {result[k]}, choice, title);
+        return images;
+    }
+    
+    // show the parts of a deconvolved hyperstack, and the error plot if asked. stores holds the parts instead of
+    // results if they were kept on disk, with the phase already scaled, and is null otherwise
+    private void show(float[][][][][] results, Volume_Store[] stores) {
+        String[] titles;
+        if (decon_choice == "Standard")
+            titles = new String[] {"Result"};
+        else if (decon_choice == "Complex (Polar)")
+            titles = new String[] {"Amplitude", "Phase"};
+        else
+            titles = new String[] {"Real", "Imaginary"};
+        
+        Run_Metrics.Span span = metrics.start("reassign", -1, -1);
+        for (int k = 0; k < titles.length; k++) {
+            ImagePlus tempImage = stores != null ? diu.reassign(stores[k], choice, titles[k])
+                : diu.reassign(k == 1 ? scalePhase(results[k]) : results[k], choice, titles[k]);
             tempImage.setCalibration(cal);
-
+            tempImage.setProperty("Info", Stopping_Rule.info(stops, iterations));
             tempImage.show();
         }
-        else if (decon_choice == "Complex (Polar)") {
-            ImagePlus amp = diu.reassign(objMat, choice, "Amplitude");
-            amp.setCalibration(cal);
-            amp.show();
-            
-            ImagePlus phase;
-            if (choice == "GRAY32")
-                phase = diu.reassign(imgMatPhase, choice, "Phase");
-            else {
-                diu.increment(imgMatPhase, imgMatPhase, (float)Math.PI);
-                diu.scaleMat(imgMatPhase, imgMatPhase, (float)(255 / 2 / Math.PI));
-                phase = diu.reassign(imgMatPhase, choice, "Phase");
-            }
-            
-            phase.setCalibration(cal);
-            phase.show();
-        }
-        else {
-            ImagePlus reImage = diu.reassign(objMat, choice, "Real");
-            reImage.setCalibration(cal);
-            reImage.show();
-            
-            ImagePlus imImage = diu.reassign(imgMatPhase, choice, "Imaginary");
-            imImage.setCalibration(cal);
-            imImage.show();
-        }
+        span.stop();
         
         if (plot_error) {
-            errorPlot = plotError();
+            if (frameErrorWindow != null) {
+                frameErrorWindow.close();
+                frameErrorWindow = null;
+            }
+            errorPlot = plotError("Error Plot", errors, errorCount);
             errorPlot.show();
         }
     }
-
-    // standard iterative deconvolution. assumes image and psf are already in FFT form
-    public void deconvolve(float[][][][] image, float[][][] psf) {
-        int count = 0;
-        imgMat = new float[image.length][image[0].length][image[0][0].length][image[0][0][0].length];
-        float[][][][] blurredMat = new float[image.length][image[0].length][image[0][0].length][image[0][0][0].length];
-        float[][][] blurredMatConj = new float[image[0].length][image[0][0].length][image[0][0][0].length];
-        diu.scaleMat(image, imgMat, 1);
-        for (int i = 0; i < iterations; i++) {
-            for (int j = 0; j < image.length; j++) {
-                IJ.showProgress(count, iterations*frames);
-                count++;
-                
-                // perform deconvolution operations
-                blurredMat[j] = diu.fourierConvolve(imgMat[j], psf);
-                
-                diu.matrixOperations(imgMat[j], image[j], imgMat[j], "multiply");
-                diu.complexConj(blurredMat[j], blurredMatConj);
-                diu.matrixOperations(imgMat[j], blurredMatConj, imgMat[j], "multiply");
-                diu.fitConvolution(blurredMat[j], image[j]);
-                diu.matrixOperations(blurredMat[j], blurredMatConj, blurredMat[j], "multiply");
-                diu.incrementComplex(blurredMat[j], blurredMat[j], 1/SNR);
-                diu.matrixOperations(imgMat[j], blurredMat[j], imgMat[j], "divide");
-            }
-            if (plot_error)
-                errors[i] = getError(diu.getAmplitudeMat(blurredMat), diu.getAmplitudeMat(image));
+    
+    // a polar phase is stretched from [-pi, pi] to [0, 255] unless the output is 32-bit
+    private float[][][][] scalePhase(float[][][][] phase) {
+        if (decon_choice == "Complex (Polar)" && choice != "GRAY32") {
+            diu.increment(phase, phase, (float)Math.PI);
+            diu.scaleMat(phase, phase, (float)(255 / 2 / Math.PI));
         }
+        return phase;
+    }
+    
+    // the save folder of each part of a result
+    private String[] prefixes() {
+        if (decon_choice == "Standard")
+            return new String[] {""};
+        else if (decon_choice == "Complex (Polar)")
+            return new String[] {"Amplitude" + divisor, "Phase" + divisor};
+        return new String[] {"Real" + divisor, "Imaginary" + divisor};
+    }
+    
+    // log the error of a frame after an iteration as soon as it is done. Frames in flight together are interleaved
+    private void showFrameError(int frame, int iteration, float error) {
+        frameErrors[frame][iteration] = error;
+        IJ.log("Frame " + Integer.toString(frame + 1) + ", iteration " + Integer.toString(iteration + 1) + ": error "
+            + Float.toString(error * 100) + "%");
     }
     
-    // create plot from list of errors
-    private Plot plotError() {
-        Plot plot = new Plot("Error Plot", "Iteration", "Error");
-        float[] xs = new float[iterations];
-        for (int i = 0; i < iterations; i++) {
+    // note the iterations a frame ran once it is done. Its error plot then replaces the last one shown, unless the
+    // plots are being saved
+    private void frameDone(int frame, int done) {
+        stops[frame] = done;
+        if (done < iterations)
+            IJ.log("Frame " + Integer.toString(frame + 1) + " " + Stopping_Rule.info(done, iterations));
+        if (!plot_error || save_files)
+            return;
+        
+        if (frameErrorWindow != null)
+            frameErrorWindow.close();
+        frameErrorWindow = plotError("Error Plot (Frame " + Integer.toString(frame + 1) + ")", frameErrors[frame], done).show();
+    }
+    
+    // create plot from the first count errors of a list
+    private Plot plotError(String title, float[] values, int count) {
+        Plot plot = new Plot(title, "Iteration", "Error");
+        float[] xs = new float[count];
+        for (int i = 0; i < count; i++) {
             xs[i] = i + 1;
         }
         
-        plot.addPoints(xs, errors, Plot.CIRCLE);
-        plot.addPoints(xs, errors, Plot.LINE);
+        float[] ys = Arrays.copyOf(values, count);
+        plot.addPoints(xs, ys, Plot.CIRCLE);
+        plot.addPoints(xs, ys, Plot.LINE);
         
         return plot;
     }
     
-    // calculate error using differences between the blurred guess and original image
-    private float getError(float[][][][] guess, float[][][][] original) {
-        float originalTotal = 0;
-        float difference = 0;
-        for (int i = 0; i < frames; i++)
-            for (int j = 0; j < slices; j ++)
-                for (int k = 0; k < height; k++)
-                    for (int l = 0; l < width; l++) {
-                        originalTotal += Math.abs(original[i][j][k][l]);
-                        difference += Math.abs(Math.abs(guess[i][j][k][l]) - Math.abs(original[i][j][k][l]));
-                    }
-        
-        return difference / originalTotal;
-    }
-    
     public void showAbout() {
         IJ.showMessage("DeconvolveImage",
-            "Deconvolves DHM images using the Wiener filter."
+            "Deconvolves DHM images using iterative deconvolution."
         );
     }
 }
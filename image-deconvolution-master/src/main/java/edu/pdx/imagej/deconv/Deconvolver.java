@@ -0,0 +1,30 @@
+package edu.pdx.imagej.deconv;
+
+// A deconvolution method that takes frames in and gives deconvolved frames out, with no dialogs, windows, or other
+// ImageJ calls, so it can be embedded anywhere: the plugins, the command line, or a scheduler of its own. The PSF and
+// parameters are given to the constructor of each implementation.
+//
+// A frame is given as its parts, each [slices][height][width]: {amplitude/real} for "Standard" deconvolution, or
+// {amplitude, phase} or {real, imaginary} for the complex styles. Results have the same parts.
+public interface Deconvolver {
+
+    public interface Progress_Listener {
+        void progress(int done, int total);
+    }
+
+    // frame or iteration is -1 when a value does not belong to a single one
+    public interface Metrics_Listener {
+        void metric(String name, int frame, int iteration, double value);
+    }
+
+    // deconvolve frames frames read from input and pass each result to output in frame order. input may be called from
+    // several threads at once. output and both listeners are only called on the calling thread
+    void deconvolve(int frames, Frame_Pipeline.Reader<float[][][][]> input, Frame_Pipeline.Writer<float[][][][]> output);
+
+    void setProgressListener(Progress_Listener listener);
+
+    void setMetricsListener(Metrics_Listener listener);
+
+    // record the time and memory each stage of later runs takes. Run_Metrics.NONE, the default, records nothing
+    void setRunMetrics(Run_Metrics metrics);
+}
@@ -0,0 +1,148 @@
+package edu.pdx.imagej.deconv;
+
+// The error of a deconvolved frame: the frame is blurred with the PSF again, the blurred amplitudes are fitted to the
+// range of the original amplitudes as in Deconvolve_Image_Utils.fitConvolution, and the differences between the two are
+// summed relative to the total of the original. The PSF is transformed once, so a frame costs one forward and one
+// inverse FFT, or only the inverse when the spectrum of the frame is at hand, since blurring is a product there. Each
+// frame gives the terms {difference, originalTotal}, which are added over frames and combined with error.
+//
+// With a sample fraction below 1, the sums only cover a subset of the voxels, each taken with that probability.
+// Both sums are then unbiased estimates of their full values scaled by the fraction, so their ratio estimates the
+// error. Which voxels are taken only depends on the seed and the position of the voxel, so an estimate is the same on
+// every run and for any number of threads. The fit still uses every voxel.
+public class Error_Estimator {
+    private Transfer_Function psfTF;
+    private double fraction = 1;
+    private long seed = 0;
+
+    // psfFFT is the PSF in FFT form
+    public Error_Estimator(float[][][] psfFFT) {
+        psfTF = new Transfer_Function(psfFFT);
+        psfTF.foldShift();
+    }
+
+    // sum over about fraction of the voxels, chosen by seed. A fraction of 1 sums over every voxel
+    public void setSampling(double i_fraction, long i_seed) {
+        if (!(i_fraction > 0 && i_fraction <= 1))
+            throw new IllegalArgumentException("The error sample fraction must be above 0 and at most 1, not " + i_fraction + ".");
+        fraction = i_fraction;
+        seed = i_seed;
+    }
+
+    // the amplitudes of an original frame, given as its parts. im is null for real frames and for polar frames, whose
+    // amplitude is re
+    static public Real_Volume amplitude(float[][][] re, float[][][] im) {
+        int slices = re.length;
+        int height = re[0].length;
+        int width = re[0][0].length;
+        Real_Volume ret = new Real_Volume(slices, height, width);
+        Parallel_Utils.forEachRow(slices, height, width, (i, j) -> {
+            int n = ret.index(i, j, 0);
+            for (int k = 0; k < width; k++, n++)
+                ret.data[n] = im == null ? Math.abs(re[i][j][k])
+                    : (float)Math.sqrt((double)re[i][j][k] * (double)re[i][j][k] + (double)im[i][j][k] * (double)im[i][j][k]);
+        });
+        return ret;
+    }
+
+    // guess and image are complex matrices in FFT form
+    public double[] terms(float[][][] guess, float[][][] image) {
+        Complex_Volume work = Complex_Volume.fromMatrix(guess);
+        work.forward(work.plan());
+        return termsFromSpectrum(work, Complex_Volume.fromMatrix(image).getAmplitude());
+    }
+
+    // guessFT is the forward transform of a deconvolved frame, which is blurred in place
+    public double[] termsFromSpectrum(Complex_Volume guessFT, Real_Volume original) {
+        psfTF.blur(guessFT);
+        return sum(guessFT.data, -1, original);
+    }
+
+    // one or two real frames that are not in FFT form, blurred with a single transform pair as in
+    // Transfer_Function.convolvePair, so the PSF must be real. b and originalB may be null. work is scratch
+    public double[][] termsReal(float[][][] a, float[][][] b, Real_Volume originalA, Real_Volume originalB, Complex_Volume work) {
+        work.setRealPair(a, b);
+        work.forward(work.plan());
+        psfTF.blur(work);
+        if (b == null)
+            return new double[][] {sum(work.data, 0, originalA)};
+        return new double[][] {sum(work.data, 0, originalA), sum(work.data, 1, originalB)};
+    }
+
+    // combine the terms of every frame
+    static public double error(double[][] terms) {
+        double difference = 0;
+        double originalTotal = 0;
+        for (double[] t : terms) {
+            difference += t[0];
+            originalTotal += t[1];
+        }
+        return difference / originalTotal;
+    }
+
+    // The terms of a blurred frame held in a complex array. part is -1 to use the amplitude of each element, or 0 or 1
+    // to use the real or imaginary part alone as a real frame. Rows are summed on their own and added in order
+    private double[] sum(float[] blurred, int part, Real_Volume original) {
+        int slices = original.slices;
+        int height = original.height;
+        int width = original.width;
+
+        // ranges of both, for the fit, as {blurred min, blurred max, original min, original max} of each row
+        float[][] rowRanges = new float[slices * height][];
+        Parallel_Utils.forEachRow(slices, height, width, (i, j) -> {
+            int n = original.index(i, j, 0);
+            float[] r = {Float.MAX_VALUE, -Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE};
+            for (int k = 0; k < width; k++, n++) {
+                float amp = amplitude(blurred, part, n);
+                r[0] = Math.min(r[0], amp);
+                r[1] = Math.max(r[1], amp);
+                r[2] = Math.min(r[2], original.data[n]);
+                r[3] = Math.max(r[3], original.data[n]);
+            }
+            rowRanges[i*height + j] = r;
+        });
+        float[] range = rowRanges[0].clone();
+        for (float[] r : rowRanges) {
+            range[0] = Math.min(range[0], r[0]);
+            range[1] = Math.max(range[1], r[1]);
+            range[2] = Math.min(range[2], r[2]);
+            range[3] = Math.max(range[3], r[3]);
+        }
+        float min = range[0];
+        float max = range[1];
+        float newMin = range[2];
+        float newMax = range[3];
+
+        double[] difference = new double[slices * height];
+        double[] originalTotal = new double[slices * height];
+        Parallel_Utils.forEachRow(slices, height, width, (i, j) -> {
+            int n = original.index(i, j, 0);
+            for (int k = 0; k < width; k++, n++) {
+                if (fraction < 1 && !sampled(n))
+                    continue;
+                float fitted = (amplitude(blurred, part, n) - min)*(newMax - newMin)/(max - min) + newMin;
+                originalTotal[i*height + j] += original.data[n];
+                difference[i*height + j] += Math.abs(fitted - original.data[n]);
+            }
+        });
+
+        return new double[] {Parallel_Utils.total(difference), Parallel_Utils.total(originalTotal)};
+    }
+
+    static private float amplitude(float[] data, int part, int n) {
+        if (part >= 0)
+            return Math.abs(data[2*n + part]);
+        double re = data[2*n];
+        double im = data[2*n + 1];
+        return (float)Math.sqrt(re*re + im*im);
+    }
+
+    // whether voxel n is in the sample. The seed and position are mixed into a uniform number in [0, 1)
+    private boolean sampled(int n) {
+        long z = seed + (n + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z ^= z >>> 31;
+        return (z >>> 11) * 0x1.0p-53 < fraction;
+    }
+}
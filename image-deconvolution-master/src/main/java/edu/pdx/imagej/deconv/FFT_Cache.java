@@ -0,0 +1,42 @@
+package edu.pdx.imagej.deconv;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jtransforms.fft.FloatFFT_3D;
+
+// FFT plans keyed by (slices, height, width). Building a FloatFFT_3D computes its twiddle tables, which is expensive
+// for large volumes, so every transform of the same size should reuse one plan. A plan must not be used by two threads
+// at once, so each thread keeps plans of its own: get a plan on the thread that runs the transform, just before it.
+public class FFT_Cache {
+    static private final ThreadLocal<HashMap<String, FloatFFT_3D>> plans = ThreadLocal.withInitial(HashMap::new);
+    static private final ThreadLocal<Integer> seen = ThreadLocal.withInitial(() -> 0);
+    static private final AtomicInteger generation = new AtomicInteger();
+
+    static public FloatFFT_3D get(int slices, int height, int width) {
+        // plans made before the last clear are dropped the next time a thread asks for one
+        HashMap<String, FloatFFT_3D> threadPlans = plans.get();
+        if (seen.get() != generation.get()) {
+            threadPlans.clear();
+            seen.set(generation.get());
+        }
+
+        String key = slices + "x" + height + "x" + width;
+        FloatFFT_3D plan = threadPlans.get(key);
+        if (plan == null) {
+            plan = new FloatFFT_3D((long)slices, (long)height, (long)width);
+            threadPlans.put(key, plan);
+        }
+        return plan;
+    }
+
+    // plan for a complex matrix in FFT form
+    static public FloatFFT_3D get(float[][][] mat) {
+        return get(mat.length, mat[0].length, mat[0][0].length / 2);
+    }
+
+    // drop every cached plan, e.g. after finishing a batch of unusually sized images
+    static public void clear() {
+        generation.incrementAndGet();
+    }
+}
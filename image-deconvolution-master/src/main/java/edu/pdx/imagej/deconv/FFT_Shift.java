@@ -0,0 +1,175 @@
+package edu.pdx.imagej.deconv;
+
+// In-place fftshift and ifftshift for 3D matrices. fftshift rotates every axis of length n circularly so that element
+// i moves to (i + n/2) % n, and ifftshift moves it back to (i - n/2) mod n, as numpy does for both even and odd lengths.
+// The two are the same for even lengths. Nothing the size of the volume is allocated: even dimensions swap halves, odd
+// dimensions are rotated by three reversals. elem is the number of floats per element, 1 for real data and 2 for
+// interleaved complex data.
+public class FFT_Shift {
+
+    // fftshift a flat volume laid out as [slices][height][width*elem]
+    static public void shift(float[] data, int slices, int height, int width, int elem) {
+        shift(data, slices, height, width, elem, false);
+    }
+
+    // ifftshift a flat volume, undoing shift
+    static public void ishift(float[] data, int slices, int height, int width, int elem) {
+        shift(data, slices, height, width, elem, true);
+    }
+
+    // fftshift a matrix in [slices][height][width*elem] form. Slices and rows are moved by reference, so only the
+    // elements within each row are copied
+    static public void shift(float[][][] mat, int elem) {
+        rotate(mat, by(mat.length, false));
+        shiftPlanes(mat, elem, false);
+    }
+
+    // ifftshift a matrix, undoing shift
+    static public void ishift(float[][][] mat, int elem) {
+        rotate(mat, by(mat.length, true));
+        shiftPlanes(mat, elem, true);
+    }
+
+    // fftshift only the height and width axes, leaving the slices where they are
+    static public void shiftPlanes(float[][][] mat, int elem) {
+        shiftPlanes(mat, elem, false);
+    }
+
+    // ifftshift only the height and width axes
+    static public void ishiftPlanes(float[][][] mat, int elem) {
+        shiftPlanes(mat, elem, true);
+    }
+
+    static private void shift(float[] data, int slices, int height, int width, int elem, boolean inverse) {
+        int rowStride = width * elem;
+        int sliceStride = height * rowStride;
+
+        // all even: element (i, j, k) trades places with (i + slices/2, j + height/2, k + width/2) in one pass, which
+        // is its own inverse
+        if (slices % 2 == 0 && height % 2 == 0 && width % 2 == 0) {
+            int halfSlices = slices / 2;
+            int halfHeight = height / 2;
+            int halfRow = rowStride / 2;
+            for (int i = 0; i < halfSlices; i++)
+                for (int j = 0; j < height; j++) {
+                    int a = i*sliceStride + j*rowStride;
+                    int b = (i + halfSlices)*sliceStride + ((j + halfHeight) % height)*rowStride;
+                    swap(data, a, b + halfRow, halfRow);
+                    swap(data, a + halfRow, b, halfRow);
+                }
+            return;
+        }
+
+        // each slice is shifted in its plane while it is in cache, then the slices are rotated as whole blocks
+        int byWidth = by(width, inverse);
+        int byHeight = by(height, inverse);
+        for (int i = 0; i < slices; i++) {
+            for (int j = 0; j < height; j++)
+                rotate(data, i*sliceStride + j*rowStride, width, elem, byWidth);
+            rotate(data, i*sliceStride, height, rowStride, byHeight);
+        }
+        rotate(data, 0, slices, sliceStride, by(slices, inverse));
+    }
+
+    static private void shiftPlanes(float[][][] mat, int elem, boolean inverse) {
+        int height = mat[0].length;
+        int width = mat[0][0].length / elem;
+        int byWidth = by(width, inverse);
+        int byHeight = by(height, inverse);
+        for (float[][] slice : mat) {
+            rotate(slice, byHeight);
+            for (float[] row : slice)
+                rotate(row, 0, width, elem, byWidth);
+        }
+    }
+
+    // how far an axis of length n is rotated: n/2 forward, and -(n/2) mod n back
+    static private int by(int n, boolean inverse) {
+        return inverse ? n - n/2 : n/2;
+    }
+
+    // Multiply a spectrum by the phase ramp that shifts its inverse transform the same way shift does. A transfer
+    // function treated this way gives shifted convolutions without a separate shift. Even axes only flip signs.
+    static public void foldShift(Complex_Volume vol) {
+        double[][] sAxis = ramp(vol.slices);
+        double[][] hAxis = ramp(vol.height);
+        double[][] wAxis = ramp(vol.width);
+        float[] data = vol.data;
+        int idx = 0;
+        for (int i = 0; i < vol.slices; i++)
+            for (int j = 0; j < vol.height; j++) {
+                double re1 = sAxis[0][i] * hAxis[0][j] - sAxis[1][i] * hAxis[1][j];
+                double im1 = sAxis[0][i] * hAxis[1][j] + sAxis[1][i] * hAxis[0][j];
+                for (int k = 0; k < vol.width; k++, idx += 2) {
+                    double re2 = re1 * wAxis[0][k] - im1 * wAxis[1][k];
+                    double im2 = re1 * wAxis[1][k] + im1 * wAxis[0][k];
+                    double re = data[idx];
+                    double im = data[idx + 1];
+                    data[idx] = (float)(re * re2 - im * im2);
+                    data[idx + 1] = (float)(re * im2 + im * re2);
+                }
+            }
+    }
+
+    // exp(-2 pi i k (n/2) / n) for k = 0 to n-1, as {cos, sin}. Exactly +-1 when n is even
+    static private double[][] ramp(int n) {
+        double[][] ret = new double[2][n];
+        int half = n / 2;
+        for (int k = 0; k < n; k++) {
+            if (n % 2 == 0)
+                ret[0][k] = k % 2 == 0 ? 1 : -1;
+            else {
+                double angle = -2 * Math.PI * (((long)k * half) % n) / n;
+                ret[0][k] = Math.cos(angle);
+                ret[1][k] = Math.sin(angle);
+            }
+        }
+        return ret;
+    }
+
+    // rotate count blocks of blockLength floats starting at start so that block i moves to (i + by) % count
+    static private void rotate(float[] data, int start, int count, int blockLength, int by) {
+        if (by == 0 || by == count)
+            return;
+        if (count % 2 == 0 && by * 2 == count) {
+            swap(data, start, start + by*blockLength, by*blockLength);
+            return;
+        }
+        reverse(data, start, count, blockLength);
+        reverse(data, start, by, blockLength);
+        reverse(data, start + by*blockLength, count - by, blockLength);
+    }
+
+    static private void reverse(float[] data, int start, int count, int blockLength) {
+        for (int a = 0, b = count - 1; a < b; a++, b--)
+            swap(data, start + a*blockLength, start + b*blockLength, blockLength);
+    }
+
+    static private void swap(float[] data, int a, int b, int length) {
+        float placehold;
+        for (int n = 0; n < length; n++) {
+            placehold = data[a + n];
+            data[a + n] = data[b + n];
+            data[b + n] = placehold;
+        }
+    }
+
+    // the same rotation on references
+    static private <T> void rotate(T[] array, int by) {
+        int count = array.length;
+        if (by == 0 || by == count)
+            return;
+        reverse(array, 0, count);
+        reverse(array, 0, by);
+        reverse(array, by, count - by);
+    }
+
+    static private <T> void reverse(T[] array, int start, int count) {
+        T placehold;
+        for (int a = start, b = start + count - 1; a < b; a++, b--) {
+            placehold = array[a];
+            array[a] = array[b];
+            array[b] = placehold;
+        }
+    }
+}
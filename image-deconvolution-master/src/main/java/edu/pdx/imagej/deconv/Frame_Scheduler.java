@@ -0,0 +1,91 @@
+package edu.pdx.imagej.deconv;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Runs independent per-frame work on a ForkJoinPool. At most maxInFlight frames are being computed or waiting to be
+// delivered at any time, so memory use stays flat no matter how many frames there are. Results are handed to the
+// consumer in frame order on the calling thread, which is where progress bars and other ImageJ calls belong. A task can
+// also pass something to the calling thread before its frame is finished with report.
+public class Frame_Scheduler {
+
+    public interface Frame_Task<T> {
+        T compute(int frame);
+    }
+
+    public interface Frame_Consumer<T> {
+        void accept(int frame, T result);
+    }
+
+    private ForkJoinPool pool;
+    private int maxInFlight;
+    private final LinkedBlockingQueue<Runnable> reports = new LinkedBlockingQueue<Runnable>();
+
+    // use the common pool with one frame in flight per worker
+    public Frame_Scheduler() {
+        this(ForkJoinPool.commonPool(), ForkJoinPool.commonPool().getParallelism());
+    }
+
+    // use pool, which the caller keeps and shuts down
+    public Frame_Scheduler(ForkJoinPool i_pool, int i_maxInFlight) {
+        if (i_maxInFlight < 1)
+            throw new IllegalArgumentException("At least one frame must be allowed in flight.");
+        pool = i_pool;
+        maxInFlight = i_maxInFlight;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    // compute every frame with task and pass each result to consumer, in order. If a frame fails, the frames still
+    // pending are cancelled and the exception is rethrown here
+    public <T> void run(int frames, Frame_Task<T> task, Frame_Consumer<T> consumer) {
+        ArrayDeque<ForkJoinTask<T>> pending = new ArrayDeque<ForkJoinTask<T>>();
+        int next = 0;
+        try {
+            for (int i = 0; i < frames; i++) {
+                if (pending.size() == maxInFlight)
+                    consumer.accept(next++, await(pending.poll()));
+
+                final int frame = i;
+                pending.add(pool.submit(() -> task.compute(frame)));
+            }
+            while (!pending.isEmpty())
+                consumer.accept(next++, await(pending.poll()));
+        }
+        finally {
+            for (ForkJoinTask<T> t : pending)
+                t.cancel(false);
+            reports.clear();
+        }
+    }
+
+    // Run report on the thread that called run while it waits for frames. Reports run in the order they were made,
+    // and the reports a task makes all run before its frame is passed to the consumer. Only for use by tasks of a run
+    // that is in progress
+    public void report(Runnable report) {
+        reports.add(report);
+    }
+
+    // the result of t, running reports until it is done
+    private <T> T await(ForkJoinTask<T> t) {
+        try {
+            while (!t.isDone()) {
+                Runnable report = reports.poll(10, TimeUnit.MILLISECONDS);
+                if (report != null)
+                    report.run();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        T result = t.join();
+        for (Runnable report = reports.poll(); report != null; report = reports.poll())
+            report.run();
+        return result;
+    }
+}
@@ -48,13 +48,15 @@ public class Hyper_Wiener_Filter implements PlugInFilter {
     private boolean decon_hyper;
     private boolean save_files;
     private boolean intensity;
+    private boolean record_metrics;
     private float SNR;
-    private float[][][][] ampMat;
-    private float[][][][] phaseMat;
+    private float error;
     private float[][][][] imgMat;
     private float[][][][] imgMatPhase;
     private float[][][] psfMat;
     private float[][][] psfPhaseMat;
+    private Wiener_Deconvolver deconvolver;
+    private Run_Metrics metrics = Run_Metrics.NONE;
     
     private Deconvolve_Image_Utils diu = new Deconvolve_Image_Utils();
 
@@ -93,6 +95,7 @@ public class Hyper_Wiener_Filter implements PlugInFilter {
         gd.addCheckbox("Display error?", false);
         gd.addCheckbox("Deconvolve from files?", false);
         gd.addCheckbox("Save by frame?", false);
+        gd.addCheckbox("Record run metrics?", false);
 
         gd.showDialog();
         if (gd.wasCanceled())
@@ -111,6 +114,7 @@ public class Hyper_Wiener_Filter implements PlugInFilter {
         get_error = gd.getNextBoolean();
         decon_hyper = !gd.getNextBoolean();
         save_files = gd.getNextBoolean();   
+        record_metrics = gd.getNextBoolean();
         
         // ensure required images are entered
         if (amp_selection == "<none>" || PSF_amp_selection == "<none>") {
@@ -232,14 +236,22 @@ public class Hyper_Wiener_Filter implements PlugInFilter {
             diu.normalize(psfMat);
         if (normalizePSF && decon_choice == "Complex (Rectangular)")
             diu.normalize(psfMat, psfPhaseMat);
+        
+        deconvolver = new Wiener_Deconvolver(psfMat, psfPhaseMat, decon_choice, 1/SNR, intensity, get_error);
+        deconvolver.setProgressListener(IJ::showProgress);
+        deconvolver.setMetricsListener((name, frame, iteration, value) -> {
+            if (name == "error")
+                error = (float) value;
+        });
+        if (record_metrics)
+            metrics = new Run_Metrics();
+        deconvolver.setRunMetrics(metrics);
             
         // decide which deconvolution procedure to follow based on user preferences
         if (decon_hyper) {
-            // get imaginary/phase image if doing complex deconvolution
-            if (decon_choice != "Standard") {
+            // get imaginary/phase image if doing complex deconvolution. Its frames are read as they are needed
+            if (decon_choice != "Standard")
                 image_phase = WindowManager.getImage(diu.getImageTitle(phase_selection));
-                phaseMat = diu.getMatrix4D(image_phase);
-            }
             
             if (save_files)
                 save_from_hyperstack();
@@ -251,201 +263,158 @@ public class Hyper_Wiener_Filter implements PlugInFilter {
                 save_from_files();
             else
                 show_from_files();
-        }       
+        }
+        
+        // stage totals, saved in full with the results
+        if (record_metrics) {
+            metrics.toResultsTable().show("Run Metrics");
+            if (save_files)
+                metrics.save(save_path);
+        }
     }
     
-    // save frames from a hyperstack
+    // save frames from a hyperstack. Each frame is read, deconvolved, and saved on its own, so the hyperstack is
+    // never copied as a whole
     public void save_from_hyperstack() {
-        ampMat = diu.getMatrix4D(image_amp);
-        Wiener_Utils wu = new Wiener_Utils(width, height, slices, frames, 1/SNR, intensity);
         IJ.showStatus("Deconvolving hyperstack...");
         
-        // deconvolve using proper strategy
-        if (decon_choice == "Standard")
-            wu.deconvolve(ampMat, psfMat, get_error);
-        else if (decon_choice == "Complex (Polar)")
-            wu.deconvolve(ampMat, phaseMat, psfMat, psfPhaseMat, get_error, "Polar");
-        else
-            wu.deconvolve(ampMat, phaseMat, psfMat, psfPhaseMat, get_error, "Rectangular");
-        
-        // loop over the frames of the deconvolved image and save them in the appropriate folders
-        IJ.showStatus("Saving images...");
-        for (int i = 0; i < frames; i++) {
-            ImagePlus tempImg = diu.reassign(wu.imgComplex[i], choice, Integer.toString(i));
-            tempImg.setCalibration(cal);
+        // save each deconvolved frame in the appropriate folders as soon as it is ready
+        deconvolveHyperstack((i, result) -> {
+            ImagePlus[] images = new ImagePlus[result.length];
+            Run_Metrics.Span span = metrics.start("reassign", i, -1);
+            for (int j = 0; j < result.length; j++) {
+                images[j] = diu.reassign(result[j], choice, Integer.toString(i));
+                images[j].setCalibration(cal);
+            }
+            span.stop();
             
+            span = metrics.start("save", i, -1);
             if (decon_choice == "Standard")
-                IJ.saveAsTiff(tempImg, save_path + Integer.toString(i) + ".tif");
+                IJ.saveAsTiff(images[0], save_path + Integer.toString(i) + ".tif");
             else if (decon_choice == "Complex (Polar)") {
-                IJ.saveAsTiff(tempImg, save_path + "Amplitude" + divisor + Integer.toString(i) + ".tif");
-                
-                tempImg = diu.reassign(wu.imgPhase[i], choice, Integer.toString(i));
-                tempImg.setCalibration(cal);
-                IJ.saveAsTiff(tempImg, save_path + "Phase" + divisor + Integer.toString(i) + ".tif");
+                IJ.saveAsTiff(images[0], save_path + "Amplitude" + divisor + Integer.toString(i) + ".tif");
+                IJ.saveAsTiff(images[1], save_path + "Phase" + divisor + Integer.toString(i) + ".tif");
             }
             else {
-                IJ.saveAsTiff(tempImg, save_path + "Real" + divisor + Integer.toString(i) + ".tif");
-                
-                tempImg = diu.reassign(wu.imgPhase[i], choice, Integer.toString(i));
-                tempImg.setCalibration(cal);
-                IJ.saveAsTiff(tempImg, save_path + "Imaginary" + divisor + Integer.toString(i) + ".tif");
-            }               
-        }
+                IJ.saveAsTiff(images[0], save_path + "Real" + divisor + Integer.toString(i) + ".tif");
+                IJ.saveAsTiff(images[1], save_path + "Imaginary" + divisor + Integer.toString(i) + ".tif");
+            }
+            span.stop();
+        });
     }
     
-    // save by frames from images stored in a folder
+    // save by frames from images stored in a folder. Loading, deconvolution, and saving run at the same time
     public void save_from_files() {
-        ampMat = new float[1][slices][height][width];
-        if (decon_choice != "Standard")
-            phaseMat = new float[1][slices][height][width];
-        
-        Wiener_Utils wu = new Wiener_Utils(width, height, slices, 1, 1/SNR, intensity);
+        String[] prefixes;
+        if (decon_choice == "Standard")
+            prefixes = new String[] {""};
+        else if (decon_choice == "Complex (Polar)")
+            prefixes = new String[] {"Amplitude" + divisor, "Phase" + divisor};
+        else
+            prefixes = new String[] {"Real" + divisor, "Imaginary" + divisor};
         
-        // loop over images in stack
-        for (int i = 0; i < stack_list.length; i++) {
+        // at most two frames wait between each pair of stages
+        Frame_Pipeline<float[][][][][], ImagePlus[]> pipeline = new Frame_Pipeline<float[][][][][], ImagePlus[]>(2);
+        pipeline.run(stack_list.length, i -> {
+            // amplitude/real image and the corresponding phase/imaginary image, if any
+            Run_Metrics.Span span = metrics.start("load", i, -1);
+            float[][][][][] input = new float[2][][][][];
+            input[0] = diu.openMatrix4D(stack_path + stack_list[i]);
+            if (decon_choice != "Standard")
+                input[1] = diu.openMatrix4D(stack_path_phase + stack_list_phase[i]);
+            span.stop();
+            return input;
+        }, (i, input) -> {
             IJ.showStatus("Processing frame " + Integer.toString(i + 1) + " of " + Integer.toString(stack_list.length) + "...");
-            ImagePlus tempImg = IJ.openImage(stack_path + stack_list[i]);
-            ampMat = diu.getMatrix4D(tempImg);
-            tempImg.close();
-            
-            // deconvolve and save
-            if (decon_choice == "Standard") {
-                wu.deconvolve(ampMat, psfMat, get_error);
-                
-                tempImg = diu.reassign(wu.imgComplex, choice, Integer.toString(i));
-                tempImg.setCalibration(cal);
-                IJ.saveAsTiff(tempImg, save_path + Integer.toString(i) + ".tif");
-                tempImg.close();
+            metrics.setFrameOffset(i);
+            float[][][][] result = deconvolveFile(input);
+            Run_Metrics.Span span = metrics.start("reassign", i, -1);
+            ImagePlus[] images = new ImagePlus[result.length];
+            for (int j = 0; j < result.length; j++)
+                images[j] = diu.reassign(new float[][][][] {result[j]}, choice, Integer.toString(i));
+            span.stop();
+            return images;
+        }, (i, results) -> {
+            Run_Metrics.Span span = metrics.start("save", i, -1);
+            for (int j = 0; j < results.length; j++) {
+                results[j].setCalibration(cal);
+                IJ.saveAsTiff(results[j], save_path + prefixes[j] + Integer.toString(i) + ".tif");
+                results[j].close();
             }
-            else if (decon_choice == "Complex (Polar)") {
-                // get corresponding phase image
-                ImagePlus phaseImg = IJ.openImage(stack_path_phase + stack_list_phase[i]);
-                phaseMat = diu.getMatrix4D(phaseImg);
-                phaseImg.close();
-                
-                wu.deconvolve(ampMat, phaseMat, psfMat, psfPhaseMat, get_error, "Polar");
-                
-                tempImg = diu.reassign(wu.imgComplex, choice, Integer.toString(i));
-                tempImg.setCalibration(cal);
-                IJ.saveAsTiff(tempImg, save_path + "Amplitude" + divisor + Integer.toString(i) + ".tif");
-                
-                tempImg = diu.reassign(wu.imgPhase, choice, Integer.toString(i));
-                tempImg.setCalibration(cal);
-                IJ.saveAsTiff(tempImg, save_path + "Phase" + divisor + Integer.toString(i) + ".tif");
-                tempImg.close();
-            }
-            else {
-                // get corresponding complex image
-                ImagePlus imImg = IJ.openImage(stack_path_phase + stack_list_phase[i]);
-                phaseMat = diu.getMatrix4D(imImg);
-                imImg.close();
-                
-                wu.deconvolve(ampMat, phaseMat, psfMat, psfPhaseMat, get_error, "Rectangular");
-                
-                tempImg = diu.reassign(wu.imgComplex, choice, Integer.toString(i));
-                tempImg.setCalibration(cal);
-                IJ.saveAsTiff(tempImg, save_path + "Real" + divisor + Integer.toString(i) + ".tif");
-                
-                tempImg = diu.reassign(wu.imgPhase, choice, Integer.toString(i));
-                tempImg.setCalibration(cal);
-                IJ.saveAsTiff(tempImg, save_path + "Imaginary" + divisor + Integer.toString(i) + ".tif");
-                tempImg.close();
-            }       
-        }
+            span.stop();
+        });
     }
     
-    // open a deconvolved hyperstack from a hyperstack
+    // open a deconvolved hyperstack from a hyperstack. Frames are read from the image as they are needed. If the results
+    // would not fit in the memory ImageJ has left, they are kept in a Volume_Store on disk and shown as a virtual stack
     public void show_from_hyperstack() {
-        ampMat = diu.getMatrix4D(image_amp);
-        Wiener_Utils wu = new Wiener_Utils(width, height, slices, frames, 1/SNR, intensity);
+        String[] titles;
+        if (decon_choice == "Standard")
+            titles = new String[] {"Result"};
+        else if (decon_choice == "Complex (Polar)")
+            titles = new String[] {"Amplitude", "Phase"};
+        else
+            titles = new String[] {"Real", "Imaginary"};
+        
+        // the results and the images built from them are both about this size
+        long bytes = 4L * titles.length * frames * slices * height * width;
+        boolean offHeap = !diu.fitsInMemory(2*bytes);
+        Volume_Store[] stores = new Volume_Store[titles.length];
+        float[][][][][] results = new float[titles.length][frames][][][];
+        if (offHeap) {
+            IJ.log("Deconvolution results do not fit in memory and will be kept on disk.");
+            for (int k = 0; k < titles.length; k++)
+                stores[k] = new Volume_Store(frames, slices, height, width);
+        }
+        
         IJ.showStatus("Deconvolving hyperstack...");
+        deconvolveHyperstack((i, result) -> {
+            for (int k = 0; k < result.length; k++)
+                if (offHeap)
+                    stores[k].write(i, result[k]);
+                else
+                    results[k][i] = result[k];
+        });
         
-        if (decon_choice == "Standard") {
-            wu.deconvolve(ampMat, psfMat, get_error);
-            
-            IJ.showStatus("Constructing result...");
-            ImagePlus tempImage = diu.reassign(wu.imgComplex, choice, "Result");
+        IJ.showStatus("Constructing result...");
+        Run_Metrics.Span span = metrics.start("reassign", -1, -1);
+        for (int k = 0; k < titles.length; k++) {
+            ImagePlus tempImage = offHeap ? diu.reassign(stores[k], choice, titles[k]) : diu.reassign(results[k], choice, titles[k]);
             tempImage.setCalibration(cal);
-        
             tempImage.show();
         }
-        
-        else if (decon_choice == "Complex (Polar)") {
-            wu.deconvolve(ampMat, phaseMat, psfMat, psfPhaseMat, get_error, "Polar");
-            
-            IJ.showStatus("Constructing result...");
-            ImagePlus ampImage = diu.reassign(wu.imgComplex, choice, "Amplitude");
-            ampImage.setCalibration(cal);
-            ampImage.show();
-            
-            ImagePlus phaseImage = diu.reassign(wu.imgPhase, choice, "Phase");
-            phaseImage.setCalibration(cal);
-            phaseImage.show();
-        }
-        
-        else {
-            wu.deconvolve(ampMat, phaseMat, psfMat, psfPhaseMat, get_error, "Rectangular");
-            
-            IJ.showStatus("Constructing result...");
-            ImagePlus reImage = diu.reassign(wu.imgComplex, choice, "Real");
-            reImage.setCalibration(cal);
-            reImage.show();
-            
-            ImagePlus imImage = diu.reassign(wu.imgPhase, choice, "Imaginary");
-            imImage.setCalibration(cal);
-            imImage.show();
-        }   
+        span.stop();
         
         if (get_error)
-            IJ.showMessage("Error: " + Float.toString(wu.error * 100) + "%");
+            IJ.showMessage("Error: " + Float.toString(error * 100) + "%");
     }
     
     // open a deconvolved hyperstack from saved images
     public void show_from_files() {
-        imgMat = new float[stack_list.length][slices][height][width];
-        ampMat = new float[1][slices][height][width];
-        
-        if (decon_choice != "Standard") {
-            imgMatPhase = new float[stack_list.length][slices][height][width];
-            phaseMat = new float[1][slices][height][width];
-        }
-        
-        Wiener_Utils wu = new Wiener_Utils(width, height, slices, 1, 1/SNR, intensity);
+        imgMat = new float[stack_list.length][][][];
+        if (decon_choice != "Standard")
+            imgMatPhase = new float[stack_list.length][][][];
         
         // loop through frames in folder and deconvolve
         for (int i = 0; i < stack_list.length; i++) {
             IJ.showStatus("Processing frame " + Integer.toString(i + 1) + " of " + Integer.toString(stack_list.length) + "...");
-            ImagePlus tempImg = IJ.openImage(stack_path + stack_list[i]);
-            ampMat = diu.getMatrix4D(tempImg);
-            tempImg.close();
+            Run_Metrics.Span span = metrics.start("load", i, -1);
+            float[][][][][] input = new float[2][][][][];
+            input[0] = diu.openMatrix4D(stack_path + stack_list[i]);
+            if (decon_choice != "Standard")
+                input[1] = diu.openMatrix4D(stack_path_phase + stack_list_phase[i]);
+            span.stop();
             
             // put deconvolved frame in ith slot of hyperstack matrix
-            if (decon_choice == "Standard") {
-                wu.deconvolve(ampMat, psfMat, get_error);
-                imgMat[i] = wu.imgComplex[0];
-                tempImg.close();
-            }
-            else if (decon_choice == "Complex (Polar)") {
-                ImagePlus phaseImg = IJ.openImage(stack_path_phase + stack_list_phase[i]);
-                phaseMat = diu.getMatrix4D(phaseImg);
-                phaseImg.close();
-                
-                wu.deconvolve(ampMat, phaseMat, psfMat, psfPhaseMat, get_error, "Polar");
-                imgMat[i] = wu.imgComplex[0];
-                imgMatPhase[i] = wu.imgPhase[0];
-            }
-            else {
-                ImagePlus imImg = IJ.openImage(stack_path_phase + stack_list_phase[i]);
-                phaseMat = diu.getMatrix4D(imImg);
-                imImg.close();
-                
-                wu.deconvolve(ampMat, phaseMat, psfMat, psfPhaseMat, get_error, "Rectangular");
-                imgMat[i] = wu.imgComplex[0];
-                imgMatPhase[i] = wu.imgPhase[0];
-            }       
+            metrics.setFrameOffset(i);
+            float[][][][] result = deconvolveFile(input);
+            imgMat[i] = result[0];
+            if (decon_choice != "Standard")
+                imgMatPhase[i] = result[1];
         }
         
         // show final images
+        Run_Metrics.Span span = metrics.start("reassign", -1, -1);
         if (decon_choice == "Standard") {
             ImagePlus tempImage = diu.reassign(imgMat, choice, "Result");
             tempImage.setCalibration(cal);
@@ -470,12 +439,30 @@ public class Hyper_Wiener_Filter implements PlugInFilter {
             imImage.setCalibration(cal);
             imImage.show();
         }
+        span.stop();
         
         if (get_error)
-            IJ.showMessage("Error: " + Float.toString(wu.error * 100) + "%");
+            IJ.showMessage("Error: " + Float.toString(error * 100) + "%");
     }
-
     
+    // deconvolve every frame of the open hyperstack. output receives the amplitude/real part of each result and, for
+    // complex deconvolution, the phase/imaginary part, in frame order
+    private void deconvolveHyperstack(Frame_Pipeline.Writer<float[][][][]> output) {
+        if (decon_choice == "Standard")
+            deconvolver.deconvolve(frames, i -> new float[][][][] {diu.getFrame(image_amp, i)}, output);
+        else
+            deconvolver.deconvolve(frames, i -> new float[][][][] {diu.getFrame(image_amp, i), diu.getFrame(image_phase, i)}, output);
+    }
+    
+    // deconvolve the first frame of an image opened from a file, given as the amplitude/real matrix and, for complex
+    // deconvolution, the phase/imaginary matrix. The result has the same parts
+    private float[][][][] deconvolveFile(float[][][][][] input) {
+        float[][][][] frame = decon_choice == "Standard" ? new float[][][][] {input[0][0]} : new float[][][][] {input[0][0], input[1][0]};
+        float[][][][][] result = new float[1][][][][];
+        deconvolver.deconvolve(1, i -> frame, (i, parts) -> result[0] = parts);
+        return result[0];
+    }
+
     public void showAbout() {
         IJ.showMessage("DeconvolveImage",
             "Deconvolves DHM images using the Wiener filter."
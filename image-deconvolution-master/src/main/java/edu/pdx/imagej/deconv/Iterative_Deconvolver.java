@@ -0,0 +1,366 @@
+package edu.pdx.imagej.deconv;
+
+import java.util.Arrays;
+
+// Iterative deconvolution as a Deconvolver. Each iteration multiplies the guess by image * conj(blurred) /
+// (|blurred|^2 + beta), where blurred is the guess convolved with the PSF. Frames do not affect each other, so they are
+// deconvolved in parallel, and "Standard" frames go in pairs that share one complex transform. If accelerated, each
+// frame is moved along its last step before each iteration with Vector_Extrapolation, which reaches the same error in
+// fewer iterations.
+//
+// If asked, the error of each iteration is summed in the same pass that updates the guess. The error of a frame is
+// reported as the "frame error" metric as soon as each iteration is done, and the error after each iteration over all
+// frames as the "error" metric once every frame is done. With a Stopping_Rule, a frame stops once it converges, and the iterations
+// it ran are reported as the "iterations" metric just before it is written. Frames that stopped count with their last
+// error in the iterations after. A "Standard" pair runs until both frames have stopped, but a stopped frame is not
+// updated any more. How long each frame took, from being read to being ready, is reported in ms as the "frame time"
+// metric just before it is written, and both frames of a pair report the time of the pair
+public class Iterative_Deconvolver implements Deconvolver {
+    private float[][][] psfMat;
+    private float[][][] psfPhaseMat;
+    private String style;
+    private int iterations;
+    private float beta;
+    private boolean getError;
+    private Progress_Listener progress = (done, total) -> {};
+    private Metrics_Listener metrics = (name, frame, iteration, value) -> {};
+    private Run_Metrics runMetrics = Run_Metrics.NONE;
+    private Stopping_Rule stopping = Stopping_Rule.NONE;
+    private boolean accelerated = false;
+    private double maxAlpha = Vector_Extrapolation.DEFAULT_MAX_ALPHA;
+
+    private Deconvolve_Image_Utils diu = new Deconvolve_Image_Utils();
+
+    public Frame_Scheduler scheduler = new Frame_Scheduler();
+
+    // psfMat and psfPhaseMat are the parts of the PSF, which is not normalized here. psfPhaseMat is only used by the
+    // complex styles. style is "Standard", "Complex (Polar)", or "Complex (Rectangular)"
+    public Iterative_Deconvolver(float[][][] i_psfMat, float[][][] i_psfPhaseMat, String i_style, int i_iterations, float i_beta, boolean i_getError) {
+        psfMat = i_psfMat;
+        psfPhaseMat = i_psfPhaseMat;
+        style = i_style;
+        iterations = i_iterations;
+        beta = i_beta;
+        getError = i_getError;
+    }
+
+    // stop frames once they converge, at most after the iteration count
+    public void setStoppingRule(Stopping_Rule rule) {
+        stopping = rule;
+    }
+
+    // extrapolate each iteration from the ones before, as in Biggs & Andrews 1997
+    public void setAccelerated(boolean i_accelerated) {
+        setAccelerated(i_accelerated, Vector_Extrapolation.DEFAULT_MAX_ALPHA);
+    }
+
+    // the same, with each step extrapolated by at most i_maxAlpha times the last, between 0 and 1
+    public void setAccelerated(boolean i_accelerated, double i_maxAlpha) {
+        if (!(i_maxAlpha >= 0 && i_maxAlpha <= 1))
+            throw new IllegalArgumentException("The largest alpha must be between 0 and 1.");
+        accelerated = i_accelerated;
+        maxAlpha = i_maxAlpha;
+    }
+
+    @Override
+    public void deconvolve(int frames, Frame_Pipeline.Reader<float[][][][]> input, Frame_Pipeline.Writer<float[][][][]> output) {
+        // the PSF never changes, so transform it once
+        Transfer_Function psfTF;
+        if (style == "Standard")
+            psfTF = new Transfer_Function(diu.toFFTform(psfMat));
+        else if (style == "Complex (Polar)")
+            psfTF = new Transfer_Function(diu.toFFTform(psfMat, psfPhaseMat));
+        else
+            psfTF = new Transfer_Function(diu.toFFTformRect(psfMat, psfPhaseMat));
+        psfTF.foldShift();
+
+        // {difference, originalTotal} of each frame after each iteration, combined in frame order at the end, and the
+        // iterations each frame ran
+        int batch = style == "Standard" ? 2 : 1;
+        int batches = (frames + batch - 1) / batch;
+        double[][][] errorTerms = new double[frames][iterations][2];
+        int[] done = new int[frames];
+        scheduler.run(batches, b -> {
+            long start = System.nanoTime();
+            int first = b*batch;
+            Run_Metrics.Position previous = runMetrics.enter(first, -1);
+            Run_Metrics.Span span = Run_Metrics.start("load");
+            float[][][][][] parts = new float[Math.min(batch, frames - first)][][][][];
+            for (int i = 0; i < parts.length; i++)
+                parts[i] = input.read(first + i);
+            span.stop();
+
+            if (style == "Standard") {
+                Real_Volume[] image = new Real_Volume[parts.length];
+                for (int i = 0; i < parts.length; i++)
+                    image[i] = Real_Volume.fromMatrix(parts[i][0]);
+                Real_Volume[] guess = deconvolveReal(image, psfTF, Arrays.copyOfRange(errorTerms, first, first + parts.length), done, first);
+                Run_Metrics.iteration(-1);
+                span = Run_Metrics.start("formatIFFT");
+                for (int i = 0; i < parts.length; i++) {
+                    absolute(guess[i].data);
+                    parts[i] = new float[][][][] {guess[i].toMatrix()};
+                }
+                span.stop();
+            }
+            else {
+                span = Run_Metrics.start("toFFTform");
+                float[][][] amp = parts[0][0];
+                Complex_Volume image = new Complex_Volume(amp.length, amp[0].length, amp[0][0].length);
+                if (style == "Complex (Polar)")
+                    image.setPolar(parts[0][0], parts[0][1]);
+                else
+                    image.setRect(parts[0][0], parts[0][1]);
+                span.stop();
+                Complex_Volume guess = deconvolveComplex(image, psfTF, errorTerms[first], done, first);
+                Run_Metrics.iteration(-1);
+                span = Run_Metrics.start("formatIFFT");
+                if (style == "Complex (Polar)")
+                    parts[0] = new float[][][][] {guess.getAmplitude().toMatrix(), guess.getPhase().toMatrix()};
+                else
+                    parts[0] = new float[][][][] {guess.getRe().toMatrix(), guess.getIm().toMatrix()};
+                span.stop();
+            }
+            Run_Metrics.restore(previous);
+            double time = (System.nanoTime() - start) / 1e6;
+            scheduler.report(() -> {
+                for (int i = 0; i < parts.length; i++)
+                    metrics.metric("frame time", first + i, -1, time);
+            });
+            return parts;
+        }, (b, results) -> {
+            for (int i = 0; i < results.length; i++) {
+                int frame = b*batch + i;
+                metrics.metric("iterations", frame, -1, done[frame]);
+                output.write(frame, results[i]);
+            }
+            progress.progress(b*batch + results.length, frames);
+        });
+
+        int ran = 0;
+        for (int n : done)
+            ran = Math.max(ran, n);
+        if (getError)
+            for (int i = 0; i < ran; i++) {
+                double difference = 0;
+                double originalTotal = 0;
+                for (int f = 0; f < frames; f++) {
+                    double[] terms = errorTerms[f][Math.min(i, done[f] - 1)];
+                    difference += terms[0];
+                    originalTotal += terms[1];
+                }
+                metrics.metric("error", -1, i, (float)(difference / originalTotal));
+            }
+    }
+
+    // complex iterative deconvolution of one frame. The iterations it ran are put in done[frame]
+    private Complex_Volume deconvolveComplex(Complex_Volume image, Transfer_Function psfTF, double[][] errorTerms, int[] done, int frame) {
+        Complex_Volume guess = image.copy();
+        Complex_Volume blurred = psfTF.newWorkVolume();
+        Complex_Volume blurredConj = psfTF.newWorkVolume();
+        Vector_Extrapolation extrapolation = accelerated ? new Vector_Extrapolation(image.data.length, maxAlpha) : null;
+        float[] previous = stopping.tracksEstimate() && !accelerated ? new float[image.data.length] : null;
+        // the amplitude range the blurred guess is fitted to never changes
+        float[] range = Deconvolve_Image_Utils.amplitudeRange(image);
+
+        done[frame] = iterations;
+        for (int i = 0; i < iterations; i++) {
+            Run_Metrics.iteration(i);
+            if (extrapolation != null)
+                predict(extrapolation, guess.data);
+            else if (previous != null)
+                System.arraycopy(guess.data, 0, previous, 0, previous.length);
+            psfTF.convolve(guess, blurred);
+
+            Run_Metrics.Span span = Run_Metrics.start("update");
+            updateComplex(guess, image, blurred, blurredConj, range, getError || stopping.tracksError() ? errorTerms[i] : null);
+            span.stop();
+            if (extrapolation != null)
+                correct(extrapolation, guess.data);
+            reportError(frame, i, errorTerms[i]);
+
+            if (converged(guess.data, extrapolation != null ? extrapolation.last() : previous, errorTerms, i)) {
+                done[frame] = i + 1;
+                break;
+            }
+        }
+        return guess;
+    }
+
+    // "Standard" deconvolution of one or two real frames. The PSF is real, so the two frames are convolved with one
+    // complex transform pair and every working volume is half the size of its complex form. errorTerms holds the terms
+    // of each frame, and the iterations each ran are put in done from first on
+    private Real_Volume[] deconvolveReal(Real_Volume[] image, Transfer_Function psfTF, double[][][] errorTerms, int[] done, int first) {
+        int n = image.length;
+        int length = image[0].data.length;
+        Real_Volume[] guess = new Real_Volume[n];
+        Real_Volume[] blurred = new Real_Volume[n];
+        float[][] range = new float[n][];
+        Vector_Extrapolation[] extrapolation = new Vector_Extrapolation[n];
+        for (int k = 0; k < n; k++) {
+            guess[k] = image[k].copy();
+            blurred[k] = new Real_Volume(image[k].slices, image[k].height, image[k].width);
+            range[k] = Deconvolve_Image_Utils.absoluteRange(image[k]);
+            if (accelerated)
+                extrapolation[k] = new Vector_Extrapolation(length, maxAlpha);
+        }
+        float[] unfitted = new float[length];
+        float[] previous = stopping.tracksEstimate() && !accelerated ? new float[length] : null;
+        boolean trackError = getError || stopping.tracksError();
+
+        Complex_Volume work = psfTF.newWorkVolume();
+        int running = n;
+        for (int k = 0; k < n; k++)
+            done[first + k] = iterations;
+        for (int i = 0; i < iterations && running > 0; i++) {
+            Run_Metrics.iteration(i);
+            for (int k = 0; k < n; k++)
+                if (accelerated && done[first + k] > i)
+                    predict(extrapolation[k], guess[k].data);
+            if (n == 2)
+                psfTF.convolvePair(guess[0], guess[1], blurred[0], blurred[1], work);
+            else
+                psfTF.convolvePair(guess[0], null, blurred[0], null, work);
+
+            for (int k = 0; k < n; k++) {
+                if (done[first + k] <= i)
+                    continue;
+                if (previous != null)
+                    System.arraycopy(guess[k].data, 0, previous, 0, length);
+                Run_Metrics.Span span = Run_Metrics.start("update");
+                updateReal(guess[k], image[k], blurred[k], range[k], unfitted, trackError ? errorTerms[k][i] : null);
+                span.stop();
+                if (accelerated)
+                    correct(extrapolation[k], guess[k].data);
+                reportError(first + k, i, errorTerms[k][i]);
+
+                if (converged(guess[k].data, accelerated ? extrapolation[k].last() : previous, errorTerms[k], i)) {
+                    done[first + k] = i + 1;
+                    running--;
+                }
+            }
+        }
+        return guess;
+    }
+
+    static private void predict(Vector_Extrapolation extrapolation, float[] guess) {
+        Run_Metrics.Span span = Run_Metrics.start("extrapolate");
+        extrapolation.predict(guess);
+        span.stop();
+    }
+
+    static private void correct(Vector_Extrapolation extrapolation, float[] guess) {
+        Run_Metrics.Span span = Run_Metrics.start("extrapolate");
+        extrapolation.correct(guess);
+        span.stop();
+    }
+
+    // pass the error of a frame after iteration i to the calling thread, if asked
+    private void reportError(int frame, int i, double[] terms) {
+        if (!getError)
+            return;
+        float error = (float)(terms[0] / terms[1]);
+        scheduler.report(() -> metrics.metric("frame error", frame, i, error));
+    }
+
+    // whether a frame is done after iteration i, given its guess before the iteration, if the change is tracked, and
+    // its error terms
+    private boolean converged(float[] guess, float[] previous, double[][] errorTerms, int i) {
+        if (stopping == Stopping_Rule.NONE)
+            return false;
+        double change = previous == null || !stopping.tracksEstimate() ? Double.NaN : Stopping_Rule.change(guess, previous);
+        double error = errorTerms[i][0] / errorTerms[i][1];
+        double previousError = i == 0 ? Double.NaN : errorTerms[i - 1][0] / errorTerms[i - 1][1];
+        return stopping.converged(change, previousError, error);
+    }
+
+    // guess = guess * image * blurred / (fitted * blurred + beta), the real form of the update in deconvolveComplex,
+    // where fitted is blurred after fitConvolution to range. As there, blurred is left holding the denominator, and its
+    // error terms are added to errorTerms, if not null, as each element is finished. unfitted is scratch
+    private void updateReal(Real_Volume guess, Real_Volume image, Real_Volume blurred, float[] range, float[] unfitted, double[] errorTerms) {
+        float[] g = guess.data;
+        float[] o = image.data;
+        float[] b = blurred.data;
+        for (int n = 0; n < g.length; n++) {
+            g[n] = g[n] * o[n] * b[n];
+            unfitted[n] = b[n];
+        }
+
+        Deconvolve_Image_Utils.fitConvolutionReal(blurred, range);
+        for (int n = 0; n < g.length; n++) {
+            b[n] = b[n] * unfitted[n] + beta;
+            g[n] = b[n] == 0 ? 0 : g[n] / b[n];
+            if (errorTerms != null) {
+                errorTerms[1] += Math.abs(o[n]);
+                errorTerms[0] += Math.abs(Math.abs(b[n]) - Math.abs(o[n]));
+            }
+        }
+    }
+
+    // guess = guess * image * conj(blurred) / (fitted * conj(blurred) + beta), where fitted is blurred after
+    // fitConvolution to range. blurred is left holding the denominator. Once blurred is fitted, the denominator, the
+    // division, and the error terms, if errorTerms is not null, are done row by row in one pass. blurredConj is scratch
+    private void updateComplex(Complex_Volume guess, Complex_Volume image, Complex_Volume blurred, Complex_Volume blurredConj, float[] range, double[] errorTerms) {
+        guess.multiply(image, guess);
+        blurred.conj(blurredConj);
+        guess.multiply(blurredConj, guess);
+        Deconvolve_Image_Utils.fitConvolution(blurred, range);
+
+        float[] g = guess.data;
+        float[] o = image.data;
+        float[] b = blurred.data;
+        float[] c = blurredConj.data;
+        int height = guess.height;
+        int width = guess.width;
+        double[] differences = errorTerms == null ? null : new double[guess.slices * height];
+        double[] totals = errorTerms == null ? null : new double[guess.slices * height];
+        Parallel_Utils.forEachRow(guess.slices, height, 2*width, (i, j) -> {
+            int row = i*height + j;
+            int start = row * width;
+            int end = start + width;
+            Complex_Kernel.multiply(b, c, b, start, end);
+            for (int k = start; k < end; k++)
+                b[2*k] += beta;
+            Complex_Kernel.divide(g, b, g, start, end);
+            if (differences == null)
+                return;
+
+            // the amplitudes of the denominator and the original image
+            double difference = 0;
+            double total = 0;
+            for (int n = 2*start; n < 2*end; n += 2) {
+                float blurredAmp = (float)Math.sqrt((double)b[n] * (double)b[n] + (double)b[n + 1] * (double)b[n + 1]);
+                float originalAmp = (float)Math.sqrt((double)o[n] * (double)o[n] + (double)o[n + 1] * (double)o[n + 1]);
+                total += originalAmp;
+                difference += Math.abs(blurredAmp - originalAmp);
+            }
+            differences[row] = difference;
+            totals[row] = total;
+        });
+        if (errorTerms != null) {
+            errorTerms[0] += Parallel_Utils.total(differences);
+            errorTerms[1] += Parallel_Utils.total(totals);
+        }
+    }
+
+    // the amplitude of a real result is its absolute value
+    static private void absolute(float[] data) {
+        for (int n = 0; n < data.length; n++)
+            data[n] = Math.abs(data[n]);
+    }
+
+    @Override
+    public void setProgressListener(Progress_Listener listener) {
+        progress = listener;
+    }
+
+    @Override
+    public void setMetricsListener(Metrics_Listener listener) {
+        metrics = listener;
+    }
+
+    @Override
+    public void setRunMetrics(Run_Metrics i_metrics) {
+        runMetrics = i_metrics;
+    }
+}
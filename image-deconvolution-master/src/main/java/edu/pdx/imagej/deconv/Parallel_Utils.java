@@ -0,0 +1,86 @@
+package edu.pdx.imagej.deconv;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Splits the element-wise loops over a [slices][height][width] matrix into runs of rows on a shared ForkJoinPool.
+// Matrices with fewer elements than threshold stay on the calling thread, where splitting would cost more than it
+// saves. Reductions keep one partial result per row and combine them in row order afterwards, so they give the same
+// result on every run, split or not.
+public class Parallel_Utils {
+
+    public interface Row_Task {
+        void run(int slice, int row);
+    }
+
+    public interface Row_Sum {
+        double sum(int slice, int row);
+    }
+
+    // the pool every parallel loop runs on
+    static public final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    // matrices with fewer elements than this are done serially
+    static public int threshold = 1 << 15;
+
+    // a task is split until it has about this many elements left
+    static private final int GRAIN = 1 << 12;
+
+    // run task on every row of a matrix with the given dimensions. Rows are independent, so task must only write to
+    // its own row
+    static public void forEachRow(int slices, int height, int width, Row_Task task) {
+        int rows = slices * height;
+        if ((long) rows * width < threshold || pool.getParallelism() < 2) {
+            for (int i = 0; i < slices; i++)
+                for (int j = 0; j < height; j++)
+                    task.run(i, j);
+            return;
+        }
+        pool.invoke(new Rows(task, height, 0, rows, Math.max(1, GRAIN / Math.max(1, width))));
+    }
+
+    // sum over the rows of a matrix. Each row is summed on its own and the row sums are added in order
+    static public double sum(int slices, int height, int width, Row_Sum rowSum) {
+        double[] partial = new double[slices * height];
+        forEachRow(slices, height, width, (i, j) -> partial[i*height + j] = rowSum.sum(i, j));
+        return total(partial);
+    }
+
+    // add partial sums in order
+    static public double total(double[] partial) {
+        double total = 0;
+        for (double p : partial)
+            total += p;
+        return total;
+    }
+
+    // rows [start, end) of the matrix, numbered slice by slice
+    static private class Rows extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Row_Task task;
+        private final int height;
+        private final int start;
+        private final int end;
+        private final int grain;
+
+        Rows(Row_Task i_task, int i_height, int i_start, int i_end, int i_grain) {
+            task = i_task;
+            height = i_height;
+            start = i_start;
+            end = i_end;
+            grain = i_grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= grain) {
+                for (int n = start; n < end; n++)
+                    task.run(n / height, n % height);
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(new Rows(task, height, start, middle, grain), new Rows(task, height, middle, end, grain));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package edu.pdx.imagej.deconv;
+
+// A real 3D matrix stored in one contiguous array. Element (i, j, k) is at data[i*sliceStride + j*rowStride + k].
+// This is the flat equivalent of a float[slices][height][width] matrix.
+public class Real_Volume {
+    public final int slices;
+    public final int height;
+    public final int width;
+    public final int rowStride;
+    public final int sliceStride;
+    public final float[] data;
+
+    public Real_Volume(int i_slices, int i_height, int i_width) {
+        this(i_slices, i_height, i_width, new float[length(i_slices, i_height, i_width, 1, "volume")]);
+    }
+
+    // wrap an existing array without copying it
+    public Real_Volume(int i_slices, int i_height, int i_width, float[] i_data) {
+        if (i_data.length != length(i_slices, i_height, i_width, 1, "volume"))
+            throw new IllegalArgumentException("Array of length " + i_data.length + " does not hold a "
+                + i_slices + "x" + i_height + "x" + i_width + " volume.");
+        slices = i_slices;
+        height = i_height;
+        width = i_width;
+        rowStride = width;
+        sliceStride = height * width;
+        data = i_data;
+    }
+
+    // the length of an array holding values floats for each of slices*height*width elements. Java arrays stop a little
+    // short of Integer.MAX_VALUE, so larger volumes are rejected here instead of wrapping around to a wrong length
+    static int length(int slices, int height, int width, int values, String what) {
+        long length = (long)slices * height * width * values;
+        if (slices < 0 || height < 0 || width < 0 || length > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("A " + slices + "x" + height + "x" + width + " " + what
+                + " needs " + length + " floats, more than fit in one array (" + (Integer.MAX_VALUE - 8) + ").");
+        return (int)length;
+    }
+
+    public int size() {
+        return data.length;
+    }
+
+    public int index(int i, int j, int k) {
+        return i*sliceStride + j*rowStride + k;
+    }
+
+    public float get(int i, int j, int k) {
+        return data[index(i, j, k)];
+    }
+
+    public void set(int i, int j, int k, float value) {
+        data[index(i, j, k)] = value;
+    }
+
+    public Real_Volume copy() {
+        return new Real_Volume(slices, height, width, data.clone());
+    }
+
+    static public Real_Volume fromMatrix(float[][][] mat) {
+        Real_Volume vol = new Real_Volume(mat.length, mat[0].length, mat[0][0].length);
+        vol.copyFrom(mat);
+        return vol;
+    }
+
+    public void copyFrom(float[][][] mat) {
+        for (int i = 0; i < slices; i++)
+            for (int j = 0; j < height; j++)
+                System.arraycopy(mat[i][j], 0, data, i*sliceStride + j*rowStride, width);
+    }
+
+    public void copyTo(float[][][] mat) {
+        for (int i = 0; i < slices; i++)
+            for (int j = 0; j < height; j++)
+                System.arraycopy(data, i*sliceStride + j*rowStride, mat[i][j], 0, width);
+    }
+
+    public float[][][] toMatrix() {
+        float[][][] mat = new float[slices][height][width];
+        copyTo(mat);
+        return mat;
+    }
+
+    // complex copy with a phase of zero
+    public Complex_Volume toComplex() {
+        Complex_Volume ret = new Complex_Volume(slices, height, width);
+        for (int n = 0; n < data.length; n++)
+            ret.data[2*n] = data[n];
+        return ret;
+    }
+}
@@ -27,10 +27,17 @@ public class Regularization implements PlugInFilter {
     protected ImagePlus image_phase;
     protected ImagePlus PSF_phase;
 
-    private int tildeCount = 2;
+    private int tildeIteration = -1;
+    private ArrayList<Double> tildeCounts;
+    private ArrayList<Double> tildeErrors;
+    private PlotWindow tildeWindow;
     private float smooth;
     private float nonlinearity;
     private int iterations;
+    private int[] stops;
+    private int file;
+    private float estimate_tolerance;
+    private float error_tolerance;
     private float lateral_spacing;
     private float axial_spacing;
     private String choice;
@@ -49,10 +56,11 @@ public class Regularization implements PlugInFilter {
     private boolean normalizePSF;
     private boolean decon_hyper;
     private boolean save_files;
+    private boolean fourier_filters;
+    private boolean independent_frames;
+    private boolean record_metrics;
     private float[][][] psfPhaseMat;
-    private float[][][][] imgMat = new float[1][1][1][1];
-    private float[][][][] imgMatPhase = new float[1][1][1][1];
-    private float[][][][] phaseMat;
+    private Run_Metrics metrics = Run_Metrics.NONE;
     
     private Deconvolve_Image_Utils diu = new Deconvolve_Image_Utils();
 
@@ -88,11 +96,16 @@ public class Regularization implements PlugInFilter {
         gd.addNumericField("Smoothness Factor: ", 2, 0);
         gd.addNumericField("Nonlinearity Factor: ", 0.1, 1);
         gd.addNumericField("# Iterations: ", 3, 0);
+        gd.addNumericField("Estimate Tolerance (0 = off): ", 0, 4);
+        gd.addNumericField("Energy Tolerance (0 = off): ", 0, 4);
         gd.addNumericField("Lateral Spacing (o.u.): ", 0.178223, 3);
         gd.addNumericField("Axial Spacing (o.u.): ", 10, 0);
         gd.addCheckbox("Normalize PSF?", true);
         gd.addCheckbox("Deconvolve from files?", false);
         gd.addCheckbox("Save by frames?", false);
+        gd.addCheckbox("Filter in Fourier space?", true);
+        gd.addCheckbox("Deconvolve frames independently?", false);
+        gd.addCheckbox("Record run metrics?", false);
 
         gd.showDialog();
         if (gd.wasCanceled())
@@ -108,11 +121,16 @@ public class Regularization implements PlugInFilter {
         smooth = (float) gd.getNextNumber();
         nonlinearity = (float) gd.getNextNumber();
         iterations = (int) gd.getNextNumber();
+        estimate_tolerance = (float) gd.getNextNumber();
+        error_tolerance = (float) gd.getNextNumber();
         lateral_spacing = (float) gd.getNextNumber();
         axial_spacing = (float) gd.getNextNumber();
         normalizePSF = gd.getNextBoolean();
         decon_hyper = !gd.getNextBoolean();
         save_files = gd.getNextBoolean();
+        fourier_filters = gd.getNextBoolean();
+        independent_frames = gd.getNextBoolean();
+        record_metrics = gd.getNextBoolean();
         
         // ensure required images are entered
         if (amp_selection == "<none>" || PSF_amp_selection == "<none>") {
@@ -123,6 +141,10 @@ public class Regularization implements PlugInFilter {
             IJ.showMessage("Phase/Imaginary images are required for complex deconvolution.");
             return showDialog();
         }
+        if (!(estimate_tolerance >= 0) || !(error_tolerance >= 0)) {
+            IJ.showMessage("Stopping tolerances must be at least 0.");
+            return showDialog();
+        }
         
         if (choice == "8-bit")
             choice = "GRAY8";
@@ -206,245 +228,216 @@ public class Regularization implements PlugInFilter {
         if (normalizePSF && decon_choice == "Complex (Rectangular)")
             diu.normalize(psfMat, psfPhaseMat);
         
-        // put PSF into correct FFT form
-        if (decon_choice == "Standard")
-            psfMat = diu.toFFTform(psfMat);
-        else if (decon_choice == "Complex (Polar)")
-            psfMat = diu.toFFTform(psfMat, psfPhaseMat);
+        Regularization_Deconvolver deconvolver = new Regularization_Deconvolver(psfMat, psfPhaseMat, decon_choice, iterations,
+            lateral_spacing, axial_spacing, smooth, nonlinearity, fourier_filters, independent_frames);
+        deconvolver.setProgressListener(IJ::showProgress);
+        deconvolver.setStoppingRule(new Stopping_Rule(estimate_tolerance, error_tolerance));
+        stops = new int[decon_hyper ? image_amp.getNFrames() : stack_list.length];
+        deconvolver.setMetricsListener((name, frame, iteration, value) -> {
+            if (name == "iterations")
+                frameDone(frame, (int) value);
+            else
+                showTildeCheck(name, frame, iteration, value);
+        });
+        if (record_metrics)
+            metrics = new Run_Metrics();
+        deconvolver.setRunMetrics(metrics);
+        
+        if (decon_hyper)
+            deconvolve_hyperstack(deconvolver, cal);
         else
-            psfMat = diu.toFFTformRect(psfMat, psfPhaseMat);
+            deconvolve_files(deconvolver, cal);
         
-        int decon_loops = 1;
-        float[][][][] ampMat = new float[1][1][1][1];
-        ImagePlus tempImg = IJ.createHyperStack("blank", 1, 1, 1, 1, 1, 32);
-        // convert image stacks to matrices
-        if (decon_hyper) {
-            ampMat = diu.getMatrix4D(image_amp);
-            for (int i = 0; i < ampMat.length; i++)
-                diu.linearShift(ampMat[i], 0, 1);
+        // stage totals, saved in full with the results
+        if (record_metrics) {
+            metrics.toResultsTable().show("Run Metrics");
+            if (save_files)
+                metrics.save(save_path);
         }
-        else
-            decon_loops = stack_list.length;
+    }
+    
+    // Deconvolve the open hyperstack, with its amplitudes shifted to [0, 1]. Frames are read as they are needed, and
+    // finished frames are saved or, if the result would not fit in the memory ImageJ has left, kept in a Volume_Store
+    // on disk. Frames deconvolved independently are done several at a time and only those in flight are held in memory
+    private void deconvolve_hyperstack(Regularization_Deconvolver deconvolver, Calibration cal) {
+        int frames = image_amp.getNFrames();
+        if (decon_choice != "Standard")
+            image_phase = WindowManager.getImage(diu.getImageTitle(phase_selection));
         
-        // initialize the regularization
-        for (int j = 0; j < decon_loops; j++) {
-            if (!decon_hyper) {
-                tempImg = IJ.openImage(stack_path + stack_list[j]);
-                ampMat = diu.getMatrix4D(tempImg);
-                if (decon_choice == "Standard")
-                    ampMat = diu.toFFTform(ampMat);
-                tempImg.close();
-                if (decon_choice != "Standard") {
-                    tempImg = IJ.openImage(stack_path_phase + stack_list_phase[j]);
-                    if (decon_choice == "Complex (Polar)") {
-                        ampMat = diu.toFFTform(ampMat, diu.getMatrix4D(tempImg));
-                        tempImg.close();
-                    }
-                    else {
-                        ampMat = diu.toFFTformRect(ampMat, diu.getMatrix4D(tempImg));
-                        tempImg.close();
-                    }
-                }
-            }
-            else {
-                if (decon_choice == "Standard")
-                    ampMat = diu.toFFTform(ampMat);
-                else {
-                    image_phase = WindowManager.getImage(diu.getImageTitle(phase_selection));
-                    phaseMat = diu.getMatrix4D(image_phase);
-                    
-                    if (decon_choice == "Complex (Polar)")
-                        ampMat = diu.toFFTform(ampMat, phaseMat);
-                    else
-                        ampMat = diu.toFFTformRect(ampMat, phaseMat);
-                    
-                    tempImg.close();
-                }
-            }
-            Regularization_Utils ru = new Regularization_Utils(ampMat, psfMat, lateral_spacing, axial_spacing, smooth, nonlinearity);
-            // deconvolve according to the flow chart in Arigovindan+ 2013 (supplementary information)
-            for (int i = 0; i < iterations; i++) {
-                IJ.showStatus("Processing iteration " + Integer.toString(i+1) + " of " + Integer.toString(iterations) + "...");
-            
-                ru.get_dMat();
-                ru.get_uMat();
-            
-                ru.get_guessTilde();
-                ru.getEnergyMeasure(true);
-                ArrayList<Double> errors = new ArrayList<Double>();
-                errors.add((double)(ru.error - ru.errorTilde));
-                ArrayList<Double> tildeCounts = new ArrayList<Double>();
-                tildeCounts.add(1.0);
-                while (!ru.checkTilde()) {
-                    Plot plot = new Plot("Error Plot (Iteration " + Integer.toString(i+1) + ")", "Tilde Check", "Error Difference");
-                    plot.addPoints(tildeCounts, errors, Plot.CIRCLE);
-                    plot.addPoints(tildeCounts, errors, Plot.LINE);
-                    if (Math.abs(errors.get(0)) > 1000)
-                        plot.setAxisYLog(true);
-                    PlotWindow plotwindow = plot.show();
-                    
-                    IJ.showStatus("Tilde check #" + Integer.toString(tildeCount) + " on iteration " + Integer.toString(i + 1) + "...");
-                    ru.damping = (float) (0.7 * ru.damping);
-                    ru.get_guessTilde();
-                    ru.getEnergyMeasure(true);
-                    tildeCounts.add((double)tildeCount);
-                    errors.add((double)(ru.error - ru.errorTilde));
-                    plotwindow.close();
-                    
-                    tildeCount += 1;
+        String[] titles = titles();
+        String[] prefixes = prefixes();
+        int slices = PSF_amp.getNSlices();
+        int height = PSF_amp.getHeight();
+        int width = PSF_amp.getWidth();
+        
+        // the results and the images built from them are both about this size
+        long bytes = 4L * titles.length * frames * slices * height * width;
+        boolean offHeap = !save_files && !diu.fitsInMemory(2*bytes);
+        Volume_Store[] stores = new Volume_Store[titles.length];
+        float[][][][][] results = new float[titles.length][frames][][][];
+        if (offHeap) {
+            IJ.log("Deconvolution results do not fit in memory and will be kept on disk.");
+            for (int k = 0; k < titles.length; k++)
+                stores[k] = new Volume_Store(frames, slices, height, width);
+        }
+        
+        IJ.showStatus("Deconvolving hyperstack...");
+        deconvolver.deconvolve(frames, i -> {
+            float[][][] amp = diu.getFrame(image_amp, i);
+            diu.linearShift(amp, 0, 1);
+            if (decon_choice == "Standard")
+                return new float[][][][] {amp};
+            return new float[][][][] {amp, diu.getFrame(image_phase, i)};
+        }, (i, result) -> {
+            if (independent_frames)
+                IJ.showStatus("Finished frame " + Integer.toString(i + 1) + " of " + Integer.toString(frames) + "...");
+            for (int k = 0; k < result.length; k++) {
+                if (save_files) {
+                    Run_Metrics.Span span = metrics.start("reassign", i, -1);
+                    ImagePlus tempImg = diu.reassign(result[k], choice, Integer.toString(i));
+                    tempImg.setCalibration(cal);
+                    tempImg.setProperty("Info", Stopping_Rule.info(stops[i], iterations));
+                    span.stop();
+                    span = metrics.start("save", i, -1);
+                    IJ.saveAsTiff(tempImg, save_path + prefixes[k] + Integer.toString(i) + ".tif");
+                    span.stop();
                 }
-                tildeCount = 2;
-                
-                ru.update();
+                else if (offHeap)
+                    stores[k].write(i, result[k]);
+                else
+                    results[k][i] = result[k];
             }
+        });
+        
+        if (save_files)
+            return;
+        
+        IJ.showStatus("Constructing result...");
+        Run_Metrics.Span span = metrics.start("reassign", -1, -1);
+        for (int k = 0; k < titles.length; k++) {
+            ImagePlus tempImage = offHeap ? diu.reassign(stores[k], choice, titles[k]) : diu.reassign(results[k], choice, titles[k]);
+            tempImage.setCalibration(cal);
+            tempImage.setProperty("Info", Stopping_Rule.info(stops, iterations));
+            tempImage.show();
+        }
+        span.stop();
+    }
+    
+    // Deconvolve each stored image on its own and keep the first frame of each result. The frames are saved as they
+    // are finished, or shown together as a hyperstack
+    private void deconvolve_files(Regularization_Deconvolver deconvolver, Calibration cal) {
+        String[] titles = titles();
+        String[] prefixes = prefixes();
+        float[][][][][] results = new float[titles.length][stack_list.length][][][];
+        
+        for (int j = 0; j < stack_list.length; j++) {
+            IJ.showStatus("Processing frame " + Integer.toString(j + 1) + " of " + Integer.toString(stack_list.length) + "...");
+            Run_Metrics.Span load = metrics.start("load", j, -1);
+            float[][][][] amp = diu.openMatrix4D(stack_path + stack_list[j]);
+            float[][][][] phase = decon_choice == "Standard" ? null : diu.openMatrix4D(stack_path_phase + stack_list_phase[j]);
+            load.stop();
             
-            if (decon_choice == "Standard") {
-                ampMat = diu.getAmplitudeMat(ru.guess);
-                diu.formatIFFT(ampMat);
-                
-                diu.resliceER(ampMat);
-            }
-            else if (decon_choice == "Complex (Polar)") {
-                ampMat = diu.getAmplitudeMat(ru.guess);
-                phaseMat = diu.getPhaseMat(ru.guess);
-                diu.formatIFFT(ampMat);
-                diu.formatIFFT(phaseMat);
-                
-                diu.resliceER(ampMat);
-                diu.resliceER(phaseMat);
-            }
-            else {
-                ampMat = diu.getReMat(ru.guess);
-                phaseMat = diu.getImMat(ru.guess);
-                diu.formatIFFT(ampMat);
-                diu.formatIFFT(phaseMat);
-                
-                diu.resliceER(ampMat);
-                diu.resliceER(phaseMat);
-            }
+            // the frames of each file are numbered from the file's own number in the metrics
+            file = j;
+            tildeIteration = -1;
+            metrics.setFrameOffset(j);
             
-            if (decon_hyper) {
-                if (!save_files) {
-                    if (decon_choice == "Standard") {
-                        ImagePlus result = diu.reassign(ampMat, choice, "Result");
-                        result.setCalibration(cal); 
+            // only the first frame is kept. Independent frames do not affect it, so only it is deconvolved, while
+            // coupled frames all share its damping and error
+            int frames = independent_frames ? 1 : amp.length;
+            deconvolver.deconvolve(frames, i -> phase == null ? new float[][][][] {amp[i]} : new float[][][][] {amp[i], phase[i]}, (i, result) -> {
+                if (i != 0)
+                    return;
                 
-                        result.show();
-                    }
-                    else if (decon_choice == "Complex (Polar)") {
-                        ImagePlus amp = diu.reassign(ampMat, choice, "Amplitude");
-                        amp.setCalibration(cal);
-                        amp.show();
-                        
-                        ImagePlus phase = diu.reassign(phaseMat, choice, "Phase");
-                        phase.setCalibration(cal);
-                        phase.show();
-                    }
-                    else {
-                        ImagePlus real = diu.reassign(ampMat, choice, "Real");
-                        real.setCalibration(cal);
-                        real.show();
-                        
-                        ImagePlus imag = diu.reassign(phaseMat, choice, "Imaginary");
-                        imag.setCalibration(cal);
-                        imag.show();
-                    }
-                }
-                else {
-                    if (decon_choice == "Standard") {
-                        for (int i = 0; i < ampMat.length; i++) {
-                            ImagePlus result = diu.reassign(ampMat[i], choice, Integer.toString(i));
-                            result.setCalibration(cal);
-                            IJ.saveAsTiff(result, save_path + Integer.toString(i) + ".tif");
-                        }
-                    }
-                    else if (decon_choice == "Complex (Polar)") {
-                        for (int i = 0; i < ampMat.length; i++) {
-                            ImagePlus amp = diu.reassign(ampMat[i], choice, Integer.toString(i));
-                            amp.setCalibration(cal);
-                            IJ.saveAsTiff(amp, save_path + "Amplitude" + divisor + Integer.toString(i) + ".tif");
-                            
-                            ImagePlus phase = diu.reassign(phaseMat[i], choice, Integer.toString(i));
-                            phase.setCalibration(cal);
-                            IJ.saveAsTiff(phase, save_path + "Phase" + divisor + Integer.toString(i) + ".tif");
-                        }
-                    }
-                    else {
-                        for (int i = 0; i < ampMat.length; i++) {
-                            ImagePlus real = diu.reassign(ampMat[i], choice, Integer.toString(i));
-                            real.setCalibration(cal);
-                            IJ.saveAsTiff(real, save_path + "Real" + divisor + Integer.toString(i) + ".tif");
-                            
-                            ImagePlus imag = diu.reassign(phaseMat[i], choice, Integer.toString(i));
-                            imag.setCalibration(cal);
-                            IJ.saveAsTiff(imag, save_path + "Imaginary" + divisor + Integer.toString(i) + ".tif");
-                        }
-                    }
-                }       
-            }
-            else {
-                if (!save_files) {
-                    imgMat[j] = ampMat[0];
-                    if (decon_choice != "Standard")
-                        imgMatPhase[j] = phaseMat[0];
-                }
-                else {
-                    if (decon_choice == "Standard") {
-                        ImagePlus result = diu.reassign(ampMat[0], choice, Integer.toString(j));
-                        result.setCalibration(cal);
-                        IJ.saveAsTiff(result, save_path + Integer.toString(j) + ".tif");
-                    }
-                    else if (decon_choice == "Complex (Polar)") {
-                        ImagePlus amp = diu.reassign(ampMat[0], choice, Integer.toString(j));
-                        amp.setCalibration(cal);
-                        IJ.saveAsTiff(amp, save_path + "Amplitude" + divisor + Integer.toString(j) + ".tif");
-                        
-                        ImagePlus phase = diu.reassign(phaseMat[0], choice, Integer.toString(j));
-                        phase.setCalibration(cal);
-                        IJ.saveAsTiff(phase, save_path + "Phase" + divisor + Integer.toString(j) + ".tif");
-                    }
-                    else {
-                        ImagePlus real = diu.reassign(ampMat[0], choice, Integer.toString(j));
-                        real.setCalibration(cal);
-                        IJ.saveAsTiff(real, save_path + "Real" + divisor + Integer.toString(j) + ".tif");
-                        
-                        ImagePlus imag = diu.reassign(phaseMat[0], choice, Integer.toString(j));
-                        imag.setCalibration(cal);
-                        IJ.saveAsTiff(imag, save_path + "Imaginary" + divisor + Integer.toString(j) + ".tif");
+                for (int k = 0; k < result.length; k++) {
+                    if (save_files) {
+                        Run_Metrics.Span span = metrics.start("reassign", file, -1);
+                        ImagePlus tempImg = diu.reassign(result[k], choice, Integer.toString(file));
+                        tempImg.setCalibration(cal);
+                        tempImg.setProperty("Info", Stopping_Rule.info(stops[file], iterations));
+                        span.stop();
+                        span = metrics.start("save", file, -1);
+                        IJ.saveAsTiff(tempImg, save_path + prefixes[k] + Integer.toString(file) + ".tif");
+                        span.stop();
                     }
+                    else
+                        results[k][file] = result[k];
                 }
-            }
+            });
         }
         
-        if (!decon_hyper && !save_files) {
-            diu.resliceER(imgMat);
-            diu.resliceER(imgMatPhase);
-            
-            if (decon_choice == "Standard") {
-                ImagePlus result = diu.reassign(imgMat, choice, "Result");
-                result.setCalibration(cal); 
+        if (save_files)
+            return;
         
-                result.show();
-            }
-            else if (decon_choice == "Complex (Polar)") {
-                ImagePlus amp = diu.reassign(imgMat, choice, "Amplitude");
-                amp.setCalibration(cal);
-                amp.show();
-                
-                ImagePlus phase = diu.reassign(imgMatPhase, choice, "Phase");
-                phase.setCalibration(cal);
-                phase.show();
-            }
-            else {
-                ImagePlus real = diu.reassign(imgMat, choice, "Real");
-                real.setCalibration(cal);
-                real.show();
-                
-                ImagePlus imag = diu.reassign(imgMatPhase, choice, "Imaginary");
-                imag.setCalibration(cal);
-                imag.show();
-            }
+        Run_Metrics.Span span = metrics.start("reassign", -1, -1);
+        for (int k = 0; k < titles.length; k++) {
+            ImagePlus tempImage = diu.reassign(results[k], choice, titles[k]);
+            tempImage.setCalibration(cal);
+            tempImage.setProperty("Info", Stopping_Rule.info(stops, iterations));
+            tempImage.show();
+        }
+        span.stop();
+    }
+    
+    // note the iterations a frame ran just before it is written. Only the first frame of each stored image is kept
+    private void frameDone(int frame, int done) {
+        if (decon_hyper)
+            stops[frame] = done;
+        else if (frame == 0)
+            stops[file] = done;
+        else
+            return;
+        if (done < iterations)
+            IJ.log("Frame " + Integer.toString((decon_hyper ? frame : file) + 1) + " " + Stopping_Rule.info(done, iterations));
+    }
+    
+    // Plot the error differences of the tilde checks in an iteration while they keep failing and the damping is
+    // lowered. The plot of an iteration is replaced after each check and closed once one passes
+    private void showTildeCheck(String name, int frame, int iteration, double value) {
+        if (name != "error difference")
+            return;
+        
+        if (iteration != tildeIteration) {
+            tildeIteration = iteration;
+            tildeCounts = new ArrayList<Double>();
+            tildeErrors = new ArrayList<Double>();
+            IJ.showStatus("Processing iteration " + Integer.toString(iteration + 1) + " of " + Integer.toString(iterations) + "...");
+        }
+        if (tildeWindow != null) {
+            tildeWindow.close();
+            tildeWindow = null;
         }
+        
+        tildeCounts.add((double)(tildeCounts.size() + 1));
+        tildeErrors.add(value);
+        if (value > 0)
+            return;
+        
+        Plot plot = new Plot("Error Plot (Iteration " + Integer.toString(iteration + 1) + ")", "Tilde Check", "Error Difference");
+        plot.addPoints(tildeCounts, tildeErrors, Plot.CIRCLE);
+        plot.addPoints(tildeCounts, tildeErrors, Plot.LINE);
+        if (Math.abs(tildeErrors.get(0)) > 1000)
+            plot.setAxisYLog(true);
+        tildeWindow = plot.show();
+        
+        IJ.showStatus("Tilde check #" + Integer.toString(tildeCounts.size() + 1) + " on iteration " + Integer.toString(iteration + 1) + "...");
+    }
+    
+    private String[] titles() {
+        if (decon_choice == "Standard")
+            return new String[] {"Result"};
+        else if (decon_choice == "Complex (Polar)")
+            return new String[] {"Amplitude", "Phase"};
+        return new String[] {"Real", "Imaginary"};
+    }
+    
+    // the save folder of each part of a result
+    private String[] prefixes() {
+        if (decon_choice == "Standard")
+            return new String[] {""};
+        else if (decon_choice == "Complex (Polar)")
+            return new String[] {"Amplitude" + divisor, "Phase" + divisor};
+        return new String[] {"Real" + divisor, "Imaginary" + divisor};
     }
     
     public void showAbout() {
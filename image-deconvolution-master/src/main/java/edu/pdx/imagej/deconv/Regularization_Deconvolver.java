@@ -0,0 +1,235 @@
+package edu.pdx.imagej.deconv;
+
+import java.util.Arrays;
+
+// ER-Decon (Arigovindan+ 2013) as a Deconvolver. By default every frame shares one damping factor and error, as in the
+// paper, so all frames are held at once. If frames are independent, each has its own damping and they are deconvolved
+// in parallel, holding only the frames in flight. Frames are used as given; ER-Decon expects amplitudes between 0 and 1.
+//
+// Metrics: when frames are coupled, "error difference" is error - error(~) after each tilde check, which is positive
+// once the check passes, and "error" is the error after each iteration. Independent frames report "error" after each
+// iteration of each frame. Every frame reports the iterations it ran as "iterations" and how long it took as "frame
+// time", in ms, just before it is written. Independent frames are timed from being read to being ready. Coupled frames
+// are only done together, so each reports the time of the shared run plus that of turning its own result into parts.
+//
+// With a Stopping_Rule, coupled frames stop together once the change of all of them, or of their shared energy, is
+// small enough, and independent frames each stop on their own, which frees their thread for the next frame.
+public class Regularization_Deconvolver implements Deconvolver {
+    private float[][][] psfFFT;
+    private String style;
+    private int iterations;
+    private float dx;
+    private float dz;
+    private float smooth;
+    private float nonlinearity;
+    private boolean fourier;
+    private boolean independent;
+    private Regularization_Utils shared;
+    private Progress_Listener progress = (done, total) -> {};
+    private Metrics_Listener metrics = (name, frame, iteration, value) -> {};
+    private Run_Metrics runMetrics = Run_Metrics.NONE;
+    private Stopping_Rule stopping = Stopping_Rule.NONE;
+
+    private Deconvolve_Image_Utils diu = new Deconvolve_Image_Utils();
+
+    public Frame_Scheduler scheduler = new Frame_Scheduler();
+
+    // psfMat and psfPhaseMat are the parts of the PSF, which is not normalized here. psfPhaseMat is only used by the
+    // complex styles. style is "Standard", "Complex (Polar)", or "Complex (Rectangular)"
+    public Regularization_Deconvolver(float[][][] psfMat, float[][][] psfPhaseMat, String i_style, int i_iterations, float img_dx, float img_dz,
+            float smooth_p, float nonlinearity_p, boolean fourier_filters, boolean independent_frames) {
+        style = i_style;
+        iterations = i_iterations;
+        dx = img_dx;
+        dz = img_dz;
+        smooth = smooth_p;
+        nonlinearity = nonlinearity_p;
+        fourier = fourier_filters;
+        independent = independent_frames;
+
+        if (style == "Standard")
+            psfFFT = diu.toFFTform(psfMat);
+        else if (style == "Complex (Polar)")
+            psfFFT = diu.toFFTform(psfMat, psfPhaseMat);
+        else
+            psfFFT = diu.toFFTformRect(psfMat, psfPhaseMat);
+    }
+
+    // stop once the frames converge, at most after the iteration count
+    public void setStoppingRule(Stopping_Rule rule) {
+        stopping = rule;
+    }
+
+    @Override
+    public void deconvolve(int frames, Frame_Pipeline.Reader<float[][][][]> input, Frame_Pipeline.Writer<float[][][][]> output) {
+        if (independent)
+            deconvolveIndependent(frames, input, output);
+        else
+            deconvolveCoupled(frames, input, output);
+    }
+
+    // the flow chart in Arigovindan+ 2013 (supplementary information) over all frames at once
+    private void deconvolveCoupled(int frames, Frame_Pipeline.Reader<float[][][][]> input, Frame_Pipeline.Writer<float[][][][]> output) {
+        long start = System.nanoTime();
+        Complex_Volume[] image = new Complex_Volume[frames];
+        for (int i = 0; i < frames; i++) {
+            Run_Metrics.Position previous = runMetrics.enter(i, -1);
+            Run_Metrics.Span span = Run_Metrics.start("load");
+            float[][][][] parts = input.read(i);
+            span.stop();
+            span = Run_Metrics.start("toFFTform");
+            image[i] = toFFTform(parts);
+            span.stop();
+            Run_Metrics.restore(previous);
+        }
+
+        // every step works on all frames at once
+        Run_Metrics.Position previous = runMetrics.enter(-1, -1);
+        Regularization_Utils ru = new Regularization_Utils(image, psfFFT, dx, dz, smooth, nonlinearity, fourier);
+        int done = iterations;
+        for (int i = 0; i < iterations; i++) {
+            Run_Metrics.iteration(i);
+            progress.progress(i, iterations);
+            ru.get_dMat();
+            ru.get_uMat();
+            ru.get_guessTilde();
+            ru.getEnergyMeasure(true);
+            metrics.metric("error difference", -1, i, ru.error - ru.errorTilde);
+
+            // lower the damping until guess(~) is better. Once it reaches 0, guess(~) cannot change any more
+            boolean stuck = false;
+            while (!ru.checkTilde() && !stuck) {
+                ru.damping = (float) (0.7 * ru.damping);
+                stuck = ru.damping == 0;
+                ru.get_guessTilde();
+                ru.getEnergyMeasure(true);
+                metrics.metric("error difference", -1, i, ru.error - ru.errorTilde);
+            }
+            if (stuck) {
+                done = i;
+                break;
+            }
+
+            float previousError = ru.error;
+            ru.update();
+            metrics.metric("error", -1, i, ru.error);
+            if (stopping.converged(ru.estimateChange, previousError, ru.error)) {
+                done = i + 1;
+                break;
+            }
+        }
+        progress.progress(iterations, iterations);
+        Run_Metrics.restore(previous);
+
+        long shared = System.nanoTime() - start;
+        for (int i = 0; i < frames; i++) {
+            long formatStart = System.nanoTime();
+            previous = runMetrics.enter(i, -1);
+            Run_Metrics.Span span = Run_Metrics.start("formatIFFT");
+            float[][][][] parts = toParts(ru.guess[i]);
+            span.stop();
+            Run_Metrics.restore(previous);
+            metrics.metric("iterations", i, -1, done);
+            metrics.metric("frame time", i, -1, (shared + System.nanoTime() - formatStart) / 1e6);
+            output.write(i, parts);
+        }
+    }
+
+    // each frame on its own, sharing the kernels, which are built the first time they are needed
+    private void deconvolveIndependent(int frames, Frame_Pipeline.Reader<float[][][][]> input, Frame_Pipeline.Writer<float[][][][]> output) {
+        if (shared == null)
+            shared = new Regularization_Utils(psfFFT, dx, dz, smooth, nonlinearity, fourier);
+
+        // the errors of each iteration are passed on with the frame, so metrics are reported on the calling thread
+        scheduler.run(frames, i -> {
+            long start = System.nanoTime();
+            Run_Metrics.Position previous = runMetrics.enter(i, -1);
+            Run_Metrics.Span span = Run_Metrics.start("load");
+            float[][][][] parts = input.read(i);
+            span.stop();
+            span = Run_Metrics.start("toFFTform");
+            Complex_Volume frame = toFFTform(parts);
+            span.stop();
+            Regularization_Utils ru = shared.forFrame(frame);
+            float[] errors = new float[iterations];
+            int done = 0;
+            Run_Metrics.iteration(0);
+            float previousError = ru.error;
+            while (done < iterations && ru.iterate() != 0) {
+                errors[done++] = ru.error;
+                Run_Metrics.iteration(done);
+                if (stopping.converged(ru.estimateChange, previousError, ru.error))
+                    break;
+                previousError = ru.error;
+            }
+            Run_Metrics.iteration(-1);
+            span = Run_Metrics.start("formatIFFT");
+            parts = toParts(ru.guess[0]);
+            span.stop();
+            Run_Metrics.restore(previous);
+            return new Frame_Result(parts, Arrays.copyOf(errors, done), (System.nanoTime() - start) / 1e6);
+        }, (i, result) -> {
+            for (int k = 0; k < result.errors.length; k++)
+                metrics.metric("error", i, k, result.errors[k]);
+            metrics.metric("iterations", i, -1, result.errors.length);
+            metrics.metric("frame time", i, -1, result.time);
+            output.write(i, result.parts);
+            progress.progress(i + 1, frames);
+        });
+    }
+
+    // the parts of a finished frame, its error after each iteration it ran, and how long it took in ms
+    static private class Frame_Result {
+        final float[][][][] parts;
+        final float[] errors;
+        final double time;
+
+        Frame_Result(float[][][][] i_parts, float[] i_errors, double i_time) {
+            parts = i_parts;
+            errors = i_errors;
+            time = i_time;
+        }
+    }
+
+    // a frame in FFT form
+    private Complex_Volume toFFTform(float[][][][] parts) {
+        Complex_Volume frame = new Complex_Volume(psfFFT.length, psfFFT[0].length, psfFFT[0][0].length / 2);
+        if (style == "Standard")
+            frame.setReal(parts[0]);
+        else if (style == "Complex (Polar)")
+            frame.setPolar(parts[0], parts[1]);
+        else
+            frame.setRect(parts[0], parts[1]);
+        return frame;
+    }
+
+    // the parts of a result, with the planes and slices put back in order
+    private float[][][][] toParts(Complex_Volume guess) {
+        float[][][][] parts;
+        if (style == "Standard")
+            parts = new float[][][][] {guess.getAmplitude().toMatrix()};
+        else if (style == "Complex (Polar)")
+            parts = new float[][][][] {guess.getAmplitude().toMatrix(), guess.getPhase().toMatrix()};
+        else
+            parts = new float[][][][] {guess.getRe().toMatrix(), guess.getIm().toMatrix()};
+
+        diu.formatPlanesER(parts);
+        diu.resliceER(parts);
+        return parts;
+    }
+
+    @Override
+    public void setProgressListener(Progress_Listener listener) {
+        progress = listener;
+    }
+
+    @Override
+    public void setMetricsListener(Metrics_Listener listener) {
+        metrics = listener;
+    }
+
+    @Override
+    public void setRunMetrics(Run_Metrics i_metrics) {
+        runMetrics = i_metrics;
+    }
+}
@@ -1,11 +1,12 @@
 package edu.pdx.imagej.deconv;
 
+import java.util.Arrays;
+
 import org.jtransforms.fft.FloatFFT_3D;
 
 public class Regularization_Utils {
     
     private Deconvolve_Image_Utils diu = new Deconvolve_Image_Utils();
-    private FloatFFT_3D fft3D;
     private int width;
     private int height;
     private int slices;
@@ -30,36 +31,75 @@ public class Regularization_Utils {
     private float[][][] psfMat;
     private float[][][] pMatFT;
     private float[][][] piMatFT;
-    private float[][][][] imgMat;
-    private float[][][][] wMat;
-    private float[][][][] energyMeasure;
-    private float[][][][] nPrime;
-    private float[][][][] dMat;
-    private float[][][][] uMat;
-    private float[][][][] guessTilde;
-    private float[][][][] energyMeasureTilde;
-    private float[][][][] wMatTilde;
-    private float[][][][] nPrimeTilde;
+    
+    // the state of each frame, as flat volumes in FFT form
+    private Complex_Volume identity;
+    private Complex_Volume[] imgMat;
+    private Complex_Volume[] wMat;
+    private Complex_Volume[] energyMeasure;
+    private Complex_Volume[] nPrime;
+    private Complex_Volume[] dMat;
+    private Complex_Volume[] uMat;
+    private Complex_Volume[] guessTilde;
+    private Complex_Volume[] energyMeasureTilde;
+    private Complex_Volume[] wMatTilde;
+    private Complex_Volume[] nPrimeTilde;
+    
+    // transforms of the kernels that stay fixed during the iterations
+    private Transfer_Function[] filterTF;
+    private Transfer_Function[] mirroredTF;
+    private Transfer_Function[] productTF;
+    private Transfer_Function psfTF;
+    private Transfer_Function negPsfTF;
+    private Transfer_Function piTF;
+    private Complex_Volume guessFilter;
+    
+    // scratch space for convolutions, reused so the iterations don't allocate
+    private Complex_Volume work1;
+    private Complex_Volume convMat;
+    private Complex_Volume convMat2;
+    private Complex_Volume auxMat;
+    
+    // state for the frequency-domain engine, only used when fourier is true
+    private boolean fourier;
+    private Transfer_Function dFilterTF;
+    private Complex_Volume[] backProjected;
+    private Complex_Volume[] filtered;
+    private Complex_Volume guessFT;
+    private Complex_Volume sumFT;
     
     public float damping = (float) 0.8;
     public float error;
     public float errorTilde;
-    public float[][][][] guess;
+    public Complex_Volume[] guess;
+    // sum |guess - old guess| / sum |old guess| over every frame after the last update, as in Stopping_Rule.change
+    public double estimateChange = Double.NaN;
     
-    // mass initialization, assume image_mat and psf_mat are in FFT form
-    public Regularization_Utils(float[][][][] image_mat, float[][][] psf_mat, float img_dx, float img_dz, float smooth_p, float nonlinearity_p) {
-        imgMat = image_mat;
+    // mass initialization, assume psf_mat is in FFT form
+    public Regularization_Utils(Complex_Volume[] image_mat, float[][][] psf_mat, float img_dx, float img_dz, float smooth_p, float nonlinearity_p) {
+        this(image_mat, psf_mat, img_dx, img_dz, smooth_p, nonlinearity_p, false);
+    }
+    
+    // if fourier_filters is true, the filters stay in Fourier space and are applied to one transform of the guess,
+    // which needs far fewer FFTs per iteration. The math is the same as the spatial version.
+    public Regularization_Utils(Complex_Volume[] image_mat, float[][][] psf_mat, float img_dx, float img_dz, float smooth_p, float nonlinearity_p, boolean fourier_filters) {
+        this(psf_mat, img_dx, img_dz, smooth_p, nonlinearity_p, fourier_filters);
+        setImage(image_mat);
+    }
+    
+    // Set up only the kernels, which do not depend on the image. forFrame then makes an independent deconvolution of a
+    // single frame that shares them, so frames can be run one at a time or in parallel. psf_mat is in FFT form
+    public Regularization_Utils(float[][][] psf_mat, float img_dx, float img_dz, float smooth_p, float nonlinearity_p, boolean fourier_filters) {
+        fourier = fourier_filters;
         psfMat = psf_mat;
-        width = imgMat[0][0][0].length / 2;
-        height = imgMat[0][0].length;
-        slices = imgMat[0].length;
-        frames = imgMat.length;
+        width = psfMat[0][0].length / 2;
+        height = psfMat[0].length;
+        slices = psfMat.length;
         dx = img_dx;
         dz = img_dz;
         spacing_ratio = dx / dz;
         smooth = smooth_p;
         nonlinearity = nonlinearity_p;
-        fft3D = new FloatFFT_3D((long)slices, (long)height, (long)width);
         
         L1 = new float[slices][height][2*width];
         L2 = new float[slices][height][2*width];
@@ -68,17 +108,6 @@ public class Regularization_Utils {
         L5 = new float[slices][height][2*width];
         L6 = new float[slices][height][2*width];
         identityMat = new float[slices][height][2*width];
-        wMat = new float[frames][slices][height][2*width];
-        dMat = new float[frames][slices][height][2*width];
-        uMat = new float[frames][slices][height][2*width];
-        guessTilde = new float[frames][slices][height][2*width];
-        energyMeasureTilde = new float[frames][slices][height][2*width];
-        wMatTilde = new float[frames][slices][height][2*width];
-        nPrimeTilde = new float[frames][slices][height][2*width];
-        
-        guess = new float[frames][slices][height][2*width];
-        energyMeasure = new float[frames][slices][height][2*width];
-        nPrime = new float[frames][slices][height][2*width];
         pMatFT = new float[slices][height][2*width];
         piMatFT = new float[slices][height][2*width];
         
@@ -115,24 +144,179 @@ public class Regularization_Utils {
                     L6[i][j][2*k + 1] = (float) (Math.sqrt(2) * spacing_ratio * (Math.sin(wx) + Math.sin(wz) - Math.sin(wx + wz)));
                 }
         
-        // initialize the P matrix, P_I matrix, and guess according to the paper
-        // psfMat and imgMat are both out of Fourier space after these calls.
+        // initialize the P matrix, P_I matrix, and the filter that gives the first guess according to the paper
+        // psfMat is out of Fourier space after these calls.
         initializePmatFT();
-        initializeGuess();
+        initializeGuessFilter();
         
         // get filters out of Fourier space
-        fft3D.complexInverse(L1, true);
-        fft3D.complexInverse(L2, true);
-        fft3D.complexInverse(L3, true);
-        fft3D.complexInverse(L4, true);
-        fft3D.complexInverse(L5, true);
-        fft3D.complexInverse(L6, true);
-
+        fft().complexInverse(L1, true);
+        fft().complexInverse(L2, true);
+        fft().complexInverse(L3, true);
+        fft().complexInverse(L4, true);
+        fft().complexInverse(L5, true);
+        fft().complexInverse(L6, true);
+        
+        filterTF = new Transfer_Function[] {new Transfer_Function(L1), new Transfer_Function(L2), new Transfer_Function(L3),
+            new Transfer_Function(L4), new Transfer_Function(L5), new Transfer_Function(L6)};
+        identity = Complex_Volume.fromMatrix(identityMat);
+        allocateScratch();
+        psfTF = new Transfer_Function(psfMat);
+        negPsfTF = new Transfer_Function(negativeIndex(psfMat));
+        piTF = new Transfer_Function(piMatFT);
+        initializeMirroredFilters();
+        
+        if (fourier)
+            initializeFourier();
+        foldShifts();
+    }
+    
+    // a deconvolution of its own that shares the kernels of shared. Every field that changes during the iterations is
+    // left for setImage and allocateScratch, so the two never touch the same arrays
+    private Regularization_Utils(Regularization_Utils shared) {
+        width = shared.width;
+        height = shared.height;
+        slices = shared.slices;
+        smooth = shared.smooth;
+        nonlinearity = shared.nonlinearity;
+        dx = shared.dx;
+        dz = shared.dz;
+        spacing_ratio = shared.spacing_ratio;
+        H0 = shared.H0;
+        identity = shared.identity;
+        filterTF = shared.filterTF;
+        mirroredTF = shared.mirroredTF;
+        productTF = shared.productTF;
+        psfTF = shared.psfTF;
+        negPsfTF = shared.negPsfTF;
+        piTF = shared.piTF;
+        guessFilter = shared.guessFilter;
+        fourier = shared.fourier;
+        dFilterTF = shared.dFilterTF;
+        damping = shared.damping;
+        allocateScratch();
+    }
+    
+    // independent deconvolution of a single frame in FFT form, with its own guess, damping, and error. It only holds
+    // state for that frame, which is released with it. Several may run at once
+    public Regularization_Utils forFrame(Complex_Volume frame) {
+        Regularization_Utils ru = new Regularization_Utils(this);
+        ru.setImage(new Complex_Volume[] {frame});
+        return ru;
+    }
+    
+    // allocate the per-frame state, take the first guess, and find its energy
+    private void setImage(Complex_Volume[] image_mat) {
+        Run_Metrics.Span span = Run_Metrics.start("initial guess");
+        imgMat = image_mat;
+        frames = imgMat.length;
+        wMat = volumes(frames);
+        dMat = volumes(frames);
+        uMat = volumes(frames);
+        guessTilde = volumes(frames);
+        energyMeasureTilde = volumes(frames);
+        wMatTilde = volumes(frames);
+        nPrimeTilde = volumes(frames);
+        
+        guess = volumes(frames);
+        energyMeasure = volumes(frames);
+        nPrime = volumes(frames);
+        
+        initializeGuess();
+        if (fourier)
+            initializeBackProjection();
         getEnergyMeasure(false);
+        span.stop();
+    }
+    
+    // scratch space used by a single deconvolution
+    private void allocateScratch() {
+        work1 = new Complex_Volume(slices, height, width);
+        convMat = new Complex_Volume(slices, height, width);
+        convMat2 = new Complex_Volume(slices, height, width);
+        auxMat = new Complex_Volume(slices, height, width);
+        if (fourier) {
+            filtered = volumes(6);
+            guessFT = new Complex_Volume(slices, height, width);
+            sumFT = new Complex_Volume(slices, height, width);
+        }
+    }
+    
+    private Complex_Volume[] volumes(int n) {
+        Complex_Volume[] ret = new Complex_Volume[n];
+        for (int i = 0; i < n; i++)
+            ret[i] = new Complex_Volume(slices, height, width);
+        return ret;
+    }
+    
+    // One iteration of the flow chart in Arigovindan+ 2013 (supplementary information) without any display. The damping
+    // is cut until guess(~) lowers the error. Returns the number of tilde checks it took, or 0 if the damping ran out
+    // first, in which case the guess is left alone
+    public int iterate() {
+        get_dMat();
+        get_uMat();
+        get_guessTilde();
+        getEnergyMeasure(true);
+        int checks = 1;
+        while (!checkTilde()) {
+            damping = (float) (0.7 * damping);
+            if (damping == 0)
+                return 0;
+            get_guessTilde();
+            getEnergyMeasure(true);
+            checks++;
+        }
+        update();
+        return checks;
+    }
+    
+    // the mirrored filters L(-) and the products L(-) L(-) used by get_dMat never change, so they are
+    // transformed once here instead of being rebuilt for every frame
+    private void initializeMirroredFilters() {
+        float[][][][] filters = {L1, L2, L3, L4, L5, L6};
+        float[][][] mirrored;
+        float[][][] product = new float[slices][height][2*width];
+        mirroredTF = new Transfer_Function[filters.length];
+        productTF = new Transfer_Function[filters.length];
+        for (int k = 0; k < filters.length; k++) {
+            mirrored = negativeIndex(filters[k]);
+            diu.matrixOperations(mirrored, mirrored, product, "multiply");
+            mirroredTF[k] = new Transfer_Function(mirrored);
+            productTF[k] = new Transfer_Function(product);
+        }
+    }
+    
+    // every convolution is followed by a shift, so fold it into the transfer functions once
+    private void foldShifts() {
+        for (int k = 0; k < filterTF.length; k++) {
+            filterTF[k].foldShift();
+            mirroredTF[k].foldShift();
+            productTF[k].foldShift();
+        }
+        psfTF.foldShift();
+        negPsfTF.foldShift();
+        piTF.foldShift();
+        if (dFilterTF != null)
+            dFilterTF.foldShift();
+    }
+    
+    // the filters in get_dMat are all convolved with W, so they can be summed beforehand
+    private void initializeFourier() {
+        Complex_Volume dFilterFT = new Complex_Volume(slices, height, width);
+        for (int k = 0; k < productTF.length; k++)
+            dFilterFT.add(productTF[k].getSpectrum(), dFilterFT);
+        dFilterTF = new Transfer_Function(dFilterFT);
+    }
+    
+    // the back-projected image does not depend on the guess, so the frequency-domain engine keeps it
+    private void initializeBackProjection() {
+        backProjected = volumes(frames);
+        for (int i = 0; i < frames; i++)
+            negPsfTF.convolve(imgMat[i], backProjected[i]);
     }
     
     private void initializePmatFT() {
-        fft3D.complexForward(psfMat);
+        fft().complexForward(psfMat);
         float[][][] auxiliaryMat = new float[slices][height][2*width];
         float[][][] auxiliaryMat2 = new float[slices][height][2*width];
         for (int i = 0; i < slices; i++)
@@ -174,236 +358,240 @@ public class Regularization_Utils {
                     piMatFT[i][j][2*k + 1] = sqrt[1];
                 }
         diu.matrixOperations(identityMat, piMatFT, piMatFT, "divide");
-        fft3D.complexInverse(piMatFT, true);
+        fft().complexInverse(piMatFT, true);
     }
     
-    // get g0
-    private void initializeGuess() {
+    // the first guess is g0 = conj(P) I / P, the same for every frame, so the filter is built once. psfMat is in
+    // Fourier space here and is taken back out
+    private void initializeGuessFilter() {
         float[][][] auxiliaryMat = new float[slices][height][2*width];
+        float[][][] filter = new float[slices][height][2*width];
         diu.complexConj(psfMat, auxiliaryMat);
+        diu.matrixOperations(identityMat, pMatFT, filter, "divide");
+        diu.matrixOperations(filter, auxiliaryMat, filter, "multiply");
+        guessFilter = Complex_Volume.fromMatrix(filter);
+        fft().complexInverse(psfMat, true);
+    }
+    
+    // get g0
+    private void initializeGuess() {
         for (int i = 0; i < frames; i++) {
-            fft3D.complexForward(imgMat[i]);
-            diu.matrixOperations(identityMat, pMatFT, guess[i], "divide");
-            diu.matrixOperations(guess[i], auxiliaryMat, guess[i], "multiply");
-            diu.matrixOperations(guess[i], imgMat[i], guess[i], "multiply");
-            fft3D.complexInverse(guess[i], true);
-            fft3D.complexInverse(imgMat[i], true);
+            imgMat[i].forward(fft());
+            guessFilter.multiply(imgMat[i], guess[i]);
+            guess[i].inverse(fft());
+            imgMat[i].inverse(fft());
         }
-        fft3D.complexInverse(psfMat, true);
     }
     
     // get N' matrix if tilde is false or N'(~) matrix if tilde is true
     private void get_nPrime(boolean tilde) {
-        for (int i = 0; i < frames; i++)
-            for (int j = 0; j < slices; j++)
-                for (int k = 0; k < height; k++)
-                    for (int l = 0; l < width; l++) {
-                        if (tilde) {
-                            nPrimeTilde[i][j][k][2*l] = 0;
-                            nPrimeTilde[i][j][k][2*l + 1] = 0;
-                            if (guessTilde[i][j][k][2*l] < 0)
-                                nPrimeTilde[i][j][k][2*l] = 1;
-                        }
-                        else {
-                            nPrime[i][j][k][2*l] = 0;
-                            nPrime[i][j][k][2*l + 1] = 0;
-                            if (guess[i][j][k][2*l] < 0)
-                                nPrime[i][j][k][2*l] = 1;
-                        }
-                    }
+        Complex_Volume[] x = tilde ? guessTilde : guess;
+        Complex_Volume[] n = tilde ? nPrimeTilde : nPrime;
+        for (int i = 0; i < frames; i++) {
+            float[] guessData = x[i].data;
+            float[] data = n[i].data;
+            for (int l = 0; l < data.length; l += 2) {
+                data[l] = guessData[l] < 0 ? 1 : 0;
+                data[l + 1] = 0;
+            }
+        }
     }
     
     // get W matrix if tilde is false or W(~) matrix if tilde is true
     private void get_wMat(boolean tilde) {
-        float[][][] auxiliaryMat;
+        Complex_Volume[] x = tilde ? guessTilde : guess;
+        Complex_Volume[] w = tilde ? wMatTilde : wMat;
         for (int i = 0; i < frames; i++) {
-            if (tilde) {
-                diu.matrixOperations(guessTilde[i], guessTilde[i], wMatTilde[i], "multiply");
-                
-                auxiliaryMat = diu.fourierConvolve(L1, guessTilde[i]);
-                diu.matrixOperations(auxiliaryMat, auxiliaryMat, auxiliaryMat, "multiply");
-                diu.matrixOperations(wMatTilde[i], auxiliaryMat, wMatTilde[i], "add");
-                
-                auxiliaryMat = diu.fourierConvolve(L2, guessTilde[i]);
-                diu.matrixOperations(auxiliaryMat, auxiliaryMat, auxiliaryMat, "multiply");
-                diu.matrixOperations(wMatTilde[i], auxiliaryMat, wMatTilde[i], "add");
-                
-                auxiliaryMat = diu.fourierConvolve(L3, guessTilde[i]);
-                diu.matrixOperations(auxiliaryMat, auxiliaryMat, auxiliaryMat, "multiply");
-                diu.matrixOperations(wMatTilde[i], auxiliaryMat, wMatTilde[i], "add");
-                
-                auxiliaryMat = diu.fourierConvolve(L4, guessTilde[i]);
-                diu.matrixOperations(auxiliaryMat, auxiliaryMat, auxiliaryMat, "multiply");
-                diu.matrixOperations(wMatTilde[i], auxiliaryMat, wMatTilde[i], "add");
-                
-                auxiliaryMat = diu.fourierConvolve(L5, guessTilde[i]);
-                diu.matrixOperations(auxiliaryMat, auxiliaryMat, auxiliaryMat, "multiply");
-                diu.matrixOperations(wMatTilde[i], auxiliaryMat, wMatTilde[i], "add");
-                
-                auxiliaryMat = diu.fourierConvolve(L6, guessTilde[i]);
-                diu.matrixOperations(auxiliaryMat, auxiliaryMat, auxiliaryMat, "multiply");
-                diu.matrixOperations(wMatTilde[i], auxiliaryMat, wMatTilde[i], "add");
-                
-                diu.incrementComplex(wMatTilde[i], wMatTilde[i], nonlinearity);
-                diu.matrixOperations(identityMat, wMatTilde[i], wMatTilde[i], "divide");
-            }
-            else {
-                diu.matrixOperations(guess[i], guess[i], wMat[i], "multiply");
+            x[i].multiply(x[i], w[i]);
             
-                auxiliaryMat = diu.fourierConvolve(L1, guess[i]);
-                diu.matrixOperations(auxiliaryMat, auxiliaryMat, auxiliaryMat, "multiply");
-                diu.matrixOperations(wMat[i], auxiliaryMat, wMat[i], "add");
+            for (int k = 0; k < filterTF.length; k++)
+                addSquaredConvolution(filterTF[k], x[i], w[i]);
             
-                auxiliaryMat = diu.fourierConvolve(L2, guess[i]);
-                diu.matrixOperations(auxiliaryMat, auxiliaryMat, auxiliaryMat, "multiply");
-                diu.matrixOperations(wMat[i], auxiliaryMat, wMat[i], "add");
-            
-                auxiliaryMat = diu.fourierConvolve(L3, guess[i]);
-                diu.matrixOperations(auxiliaryMat, auxiliaryMat, auxiliaryMat, "multiply");
-                diu.matrixOperations(wMat[i], auxiliaryMat, wMat[i], "add");
-            
-                auxiliaryMat = diu.fourierConvolve(L4, guess[i]);
-                diu.matrixOperations(auxiliaryMat, auxiliaryMat, auxiliaryMat, "multiply");
-                diu.matrixOperations(wMat[i], auxiliaryMat, wMat[i], "add");
-            
-                auxiliaryMat = diu.fourierConvolve(L5, guess[i]);
-                diu.matrixOperations(auxiliaryMat, auxiliaryMat, auxiliaryMat, "multiply");
-                diu.matrixOperations(wMat[i], auxiliaryMat, wMat[i], "add");
-            
-                auxiliaryMat = diu.fourierConvolve(L6, guess[i]);
-                diu.matrixOperations(auxiliaryMat, auxiliaryMat, auxiliaryMat, "multiply");
-                diu.matrixOperations(wMat[i], auxiliaryMat, wMat[i], "add");
-            
-                diu.incrementComplex(wMat[i], wMat[i], nonlinearity);
-                diu.matrixOperations(identityMat, wMat[i], wMat[i], "divide");
-            }
+            w[i].incrementReal(nonlinearity);
+            identity.divide(w[i], w[i]);
         }   
     }
     
+    // retMat += (filter * mat)^2, where * is convolution
+    private void addSquaredConvolution(Transfer_Function filter, Complex_Volume mat, Complex_Volume retMat) {
+        filter.convolve(mat, convMat);
+        convMat.multiply(convMat, convMat);
+        retMat.add(convMat, retMat);
+    }
+    
     // get e if tilde is false or e(~) if tilde is true
     private void get_error(boolean tilde) {
+        Complex_Volume[] r = tilde ? energyMeasureTilde : energyMeasure;
+        float sum = 0;
+        for (int i = 0; i < frames; i++) {
+            float[] data = r[i].data;
+            for (int l = 0; l < data.length; l += 2)
+                sum += data[l] * data[l] + data[l + 1] * data[l + 1];
+        }
+        
         if (tilde)
-            errorTilde = 0;
+            errorTilde = sum;
         else
-            error = 0;
-        
-        for (int i = 0; i < frames; i++)
-            for (int j = 0; j < slices; j++)
-                for (int k = 0; k < height; k++)
-                    for (int l = 0; l < width; l++) {
-                        if (tilde)
-                            errorTilde += energyMeasureTilde[i][j][k][2*l] * energyMeasureTilde[i][j][k][2*l] + energyMeasureTilde[i][j][k][2*l + 1] * energyMeasureTilde[i][j][k][2*l + 1];
-                        else
-                            error += energyMeasure[i][j][k][2*l] * energyMeasure[i][j][k][2*l] + energyMeasure[i][j][k][2*l + 1] * energyMeasure[i][j][k][2*l + 1];
-                    }
+            error = sum;
     }
     
     // get R matrix if tilde is false, R(~) matrix if tilde is true
     public void getEnergyMeasure(boolean tilde) {
+        Run_Metrics.Span span = Run_Metrics.start("energy");
+        if (fourier)
+            getEnergyMeasureFourier(tilde);
+        else
+            getEnergyMeasureSpatial(tilde);
+        span.stop();
+    }
+    
+    // spatial version of getEnergyMeasure, which convolves with each filter separately
+    private void getEnergyMeasureSpatial(boolean tilde) {
         get_wMat(tilde);
         get_nPrime(tilde);
-        float[][][] auxiliaryMat;
-        float[][][] auxiliaryMat2 = new float[slices][height][2*width];
+        Complex_Volume[] x = tilde ? guessTilde : guess;
+        Complex_Volume[] w = tilde ? wMatTilde : wMat;
+        Complex_Volume[] r = tilde ? energyMeasureTilde : energyMeasure;
+        Complex_Volume[] n = tilde ? nPrimeTilde : nPrime;
+        Complex_Volume auxiliaryMat = auxMat;
+        Complex_Volume auxiliaryMat2 = convMat2;
         
         for (int i = 0; i < frames; i++) {
-            if (tilde == false) {
-                diu.matrixOperations(wMat[i], diu.fourierConvolve(L1, guess[i]), auxiliaryMat2, "multiply");
-                auxiliaryMat = diu.fourierConvolve(negativeIndex(L1), auxiliaryMat2);
-                diu.matrixOperations(wMat[i], diu.fourierConvolve(L2, guess[i]), auxiliaryMat2, "multiply");
-                diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(negativeIndex(L2), auxiliaryMat2), auxiliaryMat, "add");
-                diu.matrixOperations(wMat[i], diu.fourierConvolve(L3, guess[i]), auxiliaryMat2, "multiply");
-                diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(negativeIndex(L3), auxiliaryMat2), auxiliaryMat, "add");
-                diu.matrixOperations(wMat[i], diu.fourierConvolve(L4, guess[i]), auxiliaryMat2, "multiply");
-                diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(negativeIndex(L4), auxiliaryMat2), auxiliaryMat, "add");
-                diu.matrixOperations(wMat[i], diu.fourierConvolve(L5, guess[i]), auxiliaryMat2, "multiply");
-                diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(negativeIndex(L5), auxiliaryMat2), auxiliaryMat, "add");
-                diu.matrixOperations(wMat[i], diu.fourierConvolve(L6, guess[i]), auxiliaryMat2, "multiply");
-                diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(negativeIndex(L6), auxiliaryMat2), auxiliaryMat, "add");
+            filterTF[0].convolve(x[i], convMat);
+            w[i].multiply(convMat, auxiliaryMat2);
+            mirroredTF[0].convolve(auxiliaryMat2, auxiliaryMat);
+            for (int k = 1; k < filterTF.length; k++)
+                addFilterTerm(k, x[i], w[i], auxiliaryMat);
+        
+            negPsfTF.convolve(imgMat[i], r[i]);
+            psfTF.convolve(x[i], convMat);
+            negPsfTF.convolve(convMat, convMat);
+            r[i].subtract(convMat, r[i]);
+            subtractPenalties(x[i], w[i], n[i], auxiliaryMat, r[i]);
+        }
+        
+        get_error(tilde);
+    }
+    
+    // frequency-domain version of getEnergyMeasure. Each guess is transformed once and all six filters are applied to
+    // that spectrum. The mirrored filter terms are summed in Fourier space, so they need a single inverse transform.
+    private void getEnergyMeasureFourier(boolean tilde) {
+        get_nPrime(tilde);
+        Complex_Volume[] x = tilde ? guessTilde : guess;
+        Complex_Volume[] w = tilde ? wMatTilde : wMat;
+        Complex_Volume[] r = tilde ? energyMeasureTilde : energyMeasure;
+        Complex_Volume[] n = tilde ? nPrimeTilde : nPrime;
+        
+        for (int i = 0; i < frames; i++) {
+            guessFT.copyFrom(x[i]);
+            guessFT.forward(fft());
             
-                energyMeasure[i] = diu.fourierConvolve(negativeIndex(psfMat), imgMat[i]);
-                diu.matrixOperations(energyMeasure[i], diu.fourierConvolve(negativeIndex(psfMat), diu.fourierConvolve(psfMat, guess[i])), energyMeasure[i], "subtract");
-                diu.matrixOperations(nPrime[i], guess[i], auxiliaryMat2, "multiply");
-                diu.scaleMat(auxiliaryMat2, auxiliaryMat2, 100*smooth);
-                diu.matrixOperations(energyMeasure[i], auxiliaryMat2, energyMeasure[i], "subtract");
-                diu.matrixOperations(wMat[i], guess[i], auxiliaryMat2, "multiply");
-                diu.scaleMat(auxiliaryMat2, auxiliaryMat2, smooth);
-                diu.matrixOperations(energyMeasure[i], auxiliaryMat2, energyMeasure[i], "subtract");
-                diu.scaleMat(auxiliaryMat, auxiliaryMat, smooth);
-                diu.matrixOperations(energyMeasure[i], auxiliaryMat, energyMeasure[i], "subtract");
+            // W matrix, keeping the filtered guesses for the terms below
+            x[i].multiply(x[i], w[i]);
+            for (int k = 0; k < filterTF.length; k++) {
+                filtered[k].copyFrom(guessFT);
+                filterTF[k].blur(filtered[k]);
+                filtered[k].multiply(filtered[k], convMat);
+                w[i].add(convMat, w[i]);
             }
-            else {
-                diu.matrixOperations(wMatTilde[i], diu.fourierConvolve(L1, guessTilde[i]), auxiliaryMat2, "multiply");
-                auxiliaryMat = diu.fourierConvolve(negativeIndex(L1), auxiliaryMat2);
-                diu.matrixOperations(wMatTilde[i], diu.fourierConvolve(L2, guessTilde[i]), auxiliaryMat2, "multiply");
-                diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(negativeIndex(L2), auxiliaryMat2), auxiliaryMat, "add");
-                diu.matrixOperations(wMatTilde[i], diu.fourierConvolve(L3, guessTilde[i]), auxiliaryMat2, "multiply");
-                diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(negativeIndex(L3), auxiliaryMat2), auxiliaryMat, "add");
-                diu.matrixOperations(wMatTilde[i], diu.fourierConvolve(L4, guessTilde[i]), auxiliaryMat2, "multiply");
-                diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(negativeIndex(L4), auxiliaryMat2), auxiliaryMat, "add");
-                diu.matrixOperations(wMatTilde[i], diu.fourierConvolve(L5, guessTilde[i]), auxiliaryMat2, "multiply");
-                diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(negativeIndex(L5), auxiliaryMat2), auxiliaryMat, "add");
-                diu.matrixOperations(wMatTilde[i], diu.fourierConvolve(L6, guessTilde[i]), auxiliaryMat2, "multiply");
-                diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(negativeIndex(L6), auxiliaryMat2), auxiliaryMat, "add");
+            w[i].incrementReal(nonlinearity);
+            identity.divide(w[i], w[i]);
             
-                energyMeasureTilde[i] = diu.fourierConvolve(negativeIndex(psfMat), imgMat[i]);
-                diu.matrixOperations(energyMeasureTilde[i], diu.fourierConvolve(negativeIndex(psfMat), diu.fourierConvolve(psfMat, guessTilde[i])), energyMeasureTilde[i], "subtract");
-                diu.matrixOperations(nPrimeTilde[i], guessTilde[i], auxiliaryMat2, "multiply");
-                diu.scaleMat(auxiliaryMat2, auxiliaryMat2, 100*smooth);
-                diu.matrixOperations(energyMeasureTilde[i], auxiliaryMat2, energyMeasureTilde[i], "subtract");
-                diu.matrixOperations(wMatTilde[i], guessTilde[i], auxiliaryMat2, "multiply");
-                diu.scaleMat(auxiliaryMat2, auxiliaryMat2, smooth);
-                diu.matrixOperations(energyMeasureTilde[i], auxiliaryMat2, energyMeasureTilde[i], "subtract");
-                diu.scaleMat(auxiliaryMat, auxiliaryMat, smooth);
-                diu.matrixOperations(energyMeasureTilde[i], auxiliaryMat, energyMeasureTilde[i], "subtract");
+            // sum of L(-) * (W (L * guess)) over all six filters. The mirrored spectra already carry the shift
+            Arrays.fill(sumFT.data, 0);
+            for (int k = 0; k < filterTF.length; k++) {
+                w[i].multiply(filtered[k], work1);
+                work1.forward(fft());
+                mirroredTF[k].getSpectrum().multiply(work1, work1);
+                sumFT.add(work1, sumFT);
             }
+            sumFT.inverse(fft());
+            
+            r[i].copyFrom(backProjected[i]);
+            work1.copyFrom(guessFT);
+            psfTF.blur(work1);
+            negPsfTF.convolve(work1, convMat);
+            r[i].subtract(convMat, r[i]);
+            subtractPenalties(x[i], w[i], n[i], sumFT, r[i]);
         }
         
         get_error(tilde);
     }
     
+    // r -= smooth * (100 N' x + W x + filterSum). filterSum is overwritten
+    private void subtractPenalties(Complex_Volume x, Complex_Volume w, Complex_Volume n, Complex_Volume filterSum, Complex_Volume r) {
+        Complex_Volume auxiliaryMat2 = convMat2;
+        n.multiply(x, auxiliaryMat2);
+        auxiliaryMat2.scale(100*smooth, auxiliaryMat2);
+        r.subtract(auxiliaryMat2, r);
+        w.multiply(x, auxiliaryMat2);
+        auxiliaryMat2.scale(smooth, auxiliaryMat2);
+        r.subtract(auxiliaryMat2, r);
+        filterSum.scale(smooth, filterSum);
+        r.subtract(filterSum, r);
+    }
+    
+    // retMat += L(-) * (W (L * mat)), where * is convolution and L(-) is the mirrored filter
+    private void addFilterTerm(int k, Complex_Volume mat, Complex_Volume w, Complex_Volume retMat) {
+        filterTF[k].convolve(mat, convMat);
+        w.multiply(convMat, convMat);
+        mirroredTF[k].convolve(convMat, convMat);
+        retMat.add(convMat, retMat);
+    }
+    
     // get D matrix
     public void get_dMat() {
-        float[][][] auxiliaryMat;
-        float[][][] auxiliaryMat2 = new float[slices][height][2*width];
+        Run_Metrics.Span span = Run_Metrics.start("d");
+        Complex_Volume auxiliaryMat = auxMat;
         for (int i = 0; i < frames; i++) {
-            diu.matrixOperations(negativeIndex(L1), negativeIndex(L1), auxiliaryMat2, "multiply");
-            auxiliaryMat = diu.fourierConvolve(auxiliaryMat2, wMat[i]);
-            diu.matrixOperations(negativeIndex(L2), negativeIndex(L2), auxiliaryMat2, "multiply");
-            diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(auxiliaryMat2, wMat[i]), auxiliaryMat, "add");
-            diu.matrixOperations(negativeIndex(L3), negativeIndex(L3), auxiliaryMat2, "multiply");
-            diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(auxiliaryMat2, wMat[i]), auxiliaryMat, "add");
-            diu.matrixOperations(negativeIndex(L4), negativeIndex(L4), auxiliaryMat2, "multiply");
-            diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(auxiliaryMat2, wMat[i]), auxiliaryMat, "add");
-            diu.matrixOperations(negativeIndex(L5), negativeIndex(L5), auxiliaryMat2, "multiply");
-            diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(auxiliaryMat2, wMat[i]), auxiliaryMat, "add");
-            diu.matrixOperations(negativeIndex(L6), negativeIndex(L6), auxiliaryMat2, "multiply");
-            diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(auxiliaryMat2, wMat[i]), auxiliaryMat, "add");
+            if (fourier) {
+                // all six filter products were summed into one kernel beforehand
+                dFilterTF.convolve(wMat[i], auxiliaryMat);
+                finish_dMat(i, auxiliaryMat);
+                continue;
+            }
+            
+            productTF[0].convolve(wMat[i], auxiliaryMat);
+            for (int k = 1; k < productTF.length; k++) {
+                productTF[k].convolve(wMat[i], convMat);
+                auxiliaryMat.add(convMat, auxiliaryMat);
+            }
             
-            diu.scaleMat(nPrime[i], dMat[i], 100*smooth);
-            diu.scaleMat(wMat[i], auxiliaryMat2, smooth);
-            diu.matrixOperations(dMat[i], wMat[i], dMat[i], "add");
-            diu.scaleMat(auxiliaryMat, auxiliaryMat, smooth);
-            diu.matrixOperations(dMat[i], auxiliaryMat, dMat[i], "add");
-            diu.incrementComplex(dMat[i], dMat[i], H0);
+            finish_dMat(i, auxiliaryMat);
         }
+        span.stop();
+    }
+    
+    // D = 100 smooth N' + W + smooth filterSum + H0. filterSum is overwritten
+    private void finish_dMat(int i, Complex_Volume filterSum) {
+        nPrime[i].scale(100*smooth, dMat[i]);
+        dMat[i].add(wMat[i], dMat[i]);
+        filterSum.scale(smooth, filterSum);
+        dMat[i].add(filterSum, dMat[i]);
+        dMat[i].incrementReal(H0);
     }
     
     // get U matrix
     public void get_uMat() {
+        Run_Metrics.Span span = Run_Metrics.start("u");
         for (int i = 0; i < frames; i++) {
-            diu.matrixOperations(identityMat, dMat[i], uMat[i], "divide");
-            diu.matrixOperations(uMat[i], diu.fourierConvolve(piMatFT, energyMeasure[i]), uMat[i], "multiply");
-            uMat[i] = diu.fourierConvolve(piMatFT, uMat[i]);
+            identity.divide(dMat[i], uMat[i]);
+            piTF.convolve(energyMeasure[i], convMat);
+            uMat[i].multiply(convMat, uMat[i]);
+            piTF.convolve(uMat[i], uMat[i]);
         }
+        span.stop();
     }
     
-    // get guess(~)
+    // get guess(~) = guess + damping U. The scaled U is built in guess(~) itself, so the damping search can call this
+    // again and again without allocating
     public void get_guessTilde() {
-        float[][][] auxiliaryMat = new float[slices][height][2*width];
+        Run_Metrics.Span span = Run_Metrics.start("guess tilde");
         for (int i = 0; i < frames; i++) {
-            diu.scaleMat(uMat[i], auxiliaryMat, damping);
-            diu.matrixOperations(guess[i], auxiliaryMat, guessTilde[i], "add");
+            uMat[i].scale(damping, guessTilde[i]);
+            guess[i].add(guessTilde[i], guessTilde[i]);
         }
+        span.stop();
     }
     
     // check if guess(~) is better than guess
@@ -414,23 +602,25 @@ public class Regularization_Utils {
             return false;               
     }
     
-    // update guess accordingly when guess(~) is better
+    // update guess accordingly when guess(~) is better, noting how much it changed on the way
     public void update() {
-        for (int i = 0; i < frames; i++)
-            for (int j = 0; j < slices; j++)
-                for (int k = 0; k < height; k++)
-                    for (int l = 0; l < width; l++) {
-                        guess[i][j][k][2*l] = guessTilde[i][j][k][2*l];
-                        guess[i][j][k][2*l + 1] = guessTilde[i][j][k][2*l + 1];
-                        
-                        wMat[i][j][k][2*l] = wMatTilde[i][j][k][2*l];
-                        wMat[i][j][k][2*l + 1] = wMatTilde[i][j][k][2*l + 1];
-                        
-                        energyMeasure[i][j][k][2*l] = energyMeasureTilde[i][j][k][2*l];
-                        energyMeasure[i][j][k][2*l + 1] = energyMeasureTilde[i][j][k][2*l + 1];
-                        
-                        error = errorTilde;
-                    }
+        Run_Metrics.Span span = Run_Metrics.start("update");
+        double difference = 0;
+        double total = 0;
+        for (int i = 0; i < frames; i++) {
+            float[] x = guess[i].data;
+            float[] xTilde = guessTilde[i].data;
+            for (int l = 0; l < x.length; l += 2) {
+                difference += Math.abs(xTilde[l] - x[l]) + Math.abs(xTilde[l + 1] - x[l + 1]);
+                total += Math.abs(x[l]) + Math.abs(x[l + 1]);
+            }
+            guess[i].copyFrom(guessTilde[i]);
+            wMat[i].copyFrom(wMatTilde[i]);
+            energyMeasure[i].copyFrom(energyMeasureTilde[i]);
+        }
+        error = errorTilde;
+        estimateChange = difference / total;
+        span.stop();
     }
     
     // take square root of complex number, return as {re, im}
@@ -456,4 +646,9 @@ public class Regularization_Utils {
                 }
         return retMat;
     }
+    
+    // the plan for this size on the calling thread, since frames may be deconvolved on several threads at once
+    private FloatFFT_3D fft() {
+        return FFT_Cache.get(slices, height, width);
+    }
 }
@@ -0,0 +1,254 @@
+package edu.pdx.imagej.deconv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import ij.measure.ResultsTable;
+
+// Wall time, CPU time, and bytes allocated by each stage of a deconvolution run (load, toFFTform, forward FFT, filter,
+// inverse FFT, formatIFFT, reassign, save, and the steps of each method), by frame and iteration, plus the number of
+// times Complex_Kernel fell back to double precision during the run.
+//
+// Engines bind the run to the thread working on a frame with enter, and the code doing the work records stages with
+// the static start, so nothing below the engines needs to know about the run. Threads with no run bound record
+// nothing, and NONE records nothing at all. CPU time and allocations are those of the recording thread, so work a
+// stage hands to other threads (Parallel_Utils) only shows in its wall time. Stages may contain other stages, e.g.
+// an ER-Decon step contains its convolutions, so stage times do not add up to the run time.
+public class Run_Metrics {
+
+    // where a thread is in a run
+    static public final class Position {
+        private final Run_Metrics metrics;
+        private final int frame;
+        private final int iteration;
+
+        private Position(Run_Metrics i_metrics, int i_frame, int i_iteration) {
+            metrics = i_metrics;
+            frame = i_frame;
+            iteration = i_iteration;
+        }
+    }
+
+    // a stage being timed on the thread that started it
+    public final class Span {
+        private final String stage;
+        private final int frame;
+        private final int iteration;
+        private final long wall;
+        private final long cpu;
+        private final long bytes;
+
+        private Span(String i_stage, int i_frame, int i_iteration) {
+            stage = i_stage;
+            frame = i_frame;
+            iteration = i_iteration;
+            cpu = cpuTime();
+            bytes = allocatedBytes();
+            wall = System.nanoTime();
+        }
+
+        // the no-op span has no stage and records nothing
+        public void stop() {
+            if (stage == null)
+                return;
+            long wallNow = System.nanoTime();
+            long bytesNow = allocatedBytes();
+            records.add(new Record(stage, frame, iteration, wallNow - wall, cpuTime() - cpu, bytes < 0 ? -1 : bytesNow - bytes));
+        }
+    }
+
+    static private final class Record {
+        final String stage;
+        final int frame;
+        final int iteration;
+        final long wall;
+        final long cpu;
+        final long bytes;
+
+        Record(String i_stage, int i_frame, int i_iteration, long i_wall, long i_cpu, long i_bytes) {
+            stage = i_stage;
+            frame = i_frame;
+            iteration = i_iteration;
+            wall = i_wall;
+            cpu = i_cpu;
+            bytes = i_bytes;
+        }
+    }
+
+    // a run that records nothing, for when metrics are off
+    static public final Run_Metrics NONE = new Run_Metrics(false);
+
+    static private final ThreadLocal<Position> position = new ThreadLocal<Position>();
+    static private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    static private final Span noSpan = NONE.new Span(null, -1, -1);
+
+    private final boolean enabled;
+    private final long fallbacksAtStart;
+    private final ConcurrentLinkedQueue<Record> records = new ConcurrentLinkedQueue<Record>();
+    private int frameOffset = 0;
+
+    public Run_Metrics() {
+        this(true);
+    }
+
+    private Run_Metrics(boolean i_enabled) {
+        enabled = i_enabled;
+        fallbacksAtStart = Complex_Kernel.fallbacks.sum();
+    }
+
+    // frames bound with enter are numbered from offset, for runs that deconvolve one file at a time
+    public void setFrameOffset(int offset) {
+        frameOffset = offset;
+    }
+
+    // bind this run to the calling thread at a frame and iteration, either -1 if it does not apply. Returns the binding
+    // it replaces, which must be given back to restore once the thread is done with the frame. Binding NONE unbinds
+    public Position enter(int frame, int iteration) {
+        Position previous = position.get();
+        if (enabled)
+            position.set(new Position(this, frame < 0 ? frame : frame + frameOffset, iteration));
+        else
+            position.remove();
+        return previous;
+    }
+
+    static public void restore(Position previous) {
+        if (previous == null)
+            position.remove();
+        else
+            position.set(previous);
+    }
+
+    // move the run bound to the calling thread, if there is one, on to another iteration of the same frame
+    static public void iteration(int iteration) {
+        Position p = position.get();
+        if (p != null)
+            position.set(new Position(p.metrics, p.frame, iteration));
+    }
+
+    // time a stage of the run bound to the calling thread, if there is one
+    static public Span start(String stage) {
+        Position p = position.get();
+        if (p == null)
+            return noSpan;
+        return p.metrics.new Span(stage, p.frame, p.iteration);
+    }
+
+    // time a stage of this run at the given frame and iteration, whatever is bound to the calling thread
+    public Span start(String stage, int frame, int iteration) {
+        if (!enabled)
+            return noSpan;
+        return new Span(stage, frame, iteration);
+    }
+
+    // Complex_Kernel fallbacks since this run was created, including those of any run at the same time
+    public long fallbacks() {
+        return Complex_Kernel.fallbacks.sum() - fallbacksAtStart;
+    }
+
+    // every record as one line: stage, frame, iteration, wall time, CPU time, bytes allocated (-1 if unknown), and a
+    // count of 1. The last line counts the fallbacks
+    public void writeCSV(String path) throws IOException {
+        try (PrintWriter out = new PrintWriter(path)) {
+            out.println("stage,frame,iteration,wall_ms,cpu_ms,allocated_bytes,count");
+            for (Record r : records)
+                out.println(r.stage + "," + r.frame + "," + r.iteration + "," + ms(r.wall) + "," + ms(r.cpu) + "," + r.bytes + ",1");
+            out.println("complex fallbacks,-1,-1,0,0,0," + fallbacks());
+        }
+    }
+
+    // the totals of each stage, the fallback count, and every record
+    public void writeJSON(String path) throws IOException {
+        try (PrintWriter out = new PrintWriter(path)) {
+            out.println("{");
+            out.println("  \"complexFallbacks\": " + fallbacks() + ",");
+            out.println("  \"stages\": [");
+            LinkedHashMap<String, long[]> byStage = totals();
+            ArrayList<String> stages = new ArrayList<String>(byStage.keySet());
+            for (int i = 0; i < stages.size(); i++) {
+                long[] t = byStage.get(stages.get(i));
+                out.println("    {\"stage\": \"" + stages.get(i) + "\", \"calls\": " + t[0] + ", \"wallMs\": " + ms(t[1]) + ", \"cpuMs\": "
+                    + ms(t[2]) + ", \"allocatedBytes\": " + t[3] + "}" + (i + 1 < stages.size() ? "," : ""));
+            }
+            out.println("  ],");
+            out.println("  \"records\": [");
+            int n = 0;
+            int count = records.size();
+            for (Record r : records)
+                out.println("    {\"stage\": \"" + r.stage + "\", \"frame\": " + r.frame + ", \"iteration\": " + r.iteration + ", \"wallMs\": "
+                    + ms(r.wall) + ", \"cpuMs\": " + ms(r.cpu) + ", \"allocatedBytes\": " + r.bytes + "}" + (++n < count ? "," : ""));
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+
+    // write metrics.csv and metrics.json to a folder, e.g. next to saved results
+    public void save(String folder) {
+        try {
+            writeCSV(new File(folder, "metrics.csv").getPath());
+            writeJSON(new File(folder, "metrics.json").getPath());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Could not save run metrics to " + folder + ".", e);
+        }
+    }
+
+    // one row per stage with its totals, then a row with the fallback count
+    public ResultsTable toResultsTable() {
+        ResultsTable table = new ResultsTable();
+        LinkedHashMap<String, long[]> totals = totals();
+        for (String stage : totals.keySet()) {
+            long[] t = totals.get(stage);
+            table.incrementCounter();
+            table.addValue("Stage", stage);
+            table.addValue("Calls", t[0]);
+            table.addValue("Wall (ms)", t[1] / 1e6);
+            table.addValue("CPU (ms)", t[2] / 1e6);
+            table.addValue("Allocated (MB)", t[3] < 0 ? Double.NaN : t[3] / 1048576.0);
+        }
+        table.incrementCounter();
+        table.addValue("Stage", "complex fallbacks");
+        table.addValue("Calls", fallbacks());
+        return table;
+    }
+
+    // {calls, wall, CPU, bytes} of each stage in the order the stages first finished
+    private LinkedHashMap<String, long[]> totals() {
+        LinkedHashMap<String, long[]> totals = new LinkedHashMap<String, long[]>();
+        for (Record r : records) {
+            long[] t = totals.get(r.stage);
+            if (t == null) {
+                t = new long[4];
+                totals.put(r.stage, t);
+            }
+            t[0]++;
+            t[1] += r.wall;
+            t[2] += r.cpu;
+            t[3] = t[3] < 0 || r.bytes < 0 ? -1 : t[3] + r.bytes;
+        }
+        return totals;
+    }
+
+    static private String ms(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    static private long cpuTime() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+    }
+
+    // bytes allocated by the calling thread so far, or -1 where the JVM cannot tell
+    static private long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+}
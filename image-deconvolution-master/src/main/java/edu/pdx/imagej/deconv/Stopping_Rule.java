@@ -0,0 +1,58 @@
+package edu.pdx.imagej.deconv;
+
+// When an iterative engine may stop a frame before its iteration count, which is then the most iterations any frame
+// gets. A frame stops after an iteration once the relative change of its estimate, sum |x - x'| / sum |x'|, or the
+// relative change of its error or energy, |e - e'| / |e'|, falls below its tolerance. A tolerance of 0 is off, so
+// NONE runs every frame for the full count. Engines report the iterations each frame ran as the "iterations" metric.
+public class Stopping_Rule {
+    public final float estimateTolerance;
+    public final float errorTolerance;
+
+    static public final Stopping_Rule NONE = new Stopping_Rule(0, 0);
+
+    public Stopping_Rule(float i_estimateTolerance, float i_errorTolerance) {
+        if (!(i_estimateTolerance >= 0) || !(i_errorTolerance >= 0))
+            throw new IllegalArgumentException("Stopping tolerances must be at least 0.");
+        estimateTolerance = i_estimateTolerance;
+        errorTolerance = i_errorTolerance;
+    }
+
+    public boolean tracksEstimate() {
+        return estimateTolerance > 0;
+    }
+
+    public boolean tracksError() {
+        return errorTolerance > 0;
+    }
+
+    // whether a frame is done after an iteration that changed its estimate by estimateChange, as given by change, and
+    // its error from previousError to error. Changes that are not tracked, or not known yet, are NaN and never stop it
+    public boolean converged(double estimateChange, double previousError, double error) {
+        if (tracksEstimate() && estimateChange < estimateTolerance)
+            return true;
+        return tracksError() && Math.abs(error - previousError) / Math.abs(previousError) < errorTolerance;
+    }
+
+    // the relative change sum |a - b| / sum |b| of two volumes of the same size, e.g. the data of Complex_Volumes
+    static public double change(float[] a, float[] b) {
+        double difference = 0;
+        double total = 0;
+        for (int n = 0; n < a.length; n++) {
+            difference += Math.abs(a[n] - b[n]);
+            total += Math.abs(b[n]);
+        }
+        return difference / total;
+    }
+
+    // the iterations each frame ran, for the "Info" property of a result
+    static public String info(int[] done, int iterations) {
+        StringBuilder info = new StringBuilder();
+        for (int i = 0; i < done.length; i++)
+            info.append("Frame " + Integer.toString(i + 1) + ": " + info(done[i], iterations) + "\n");
+        return info.toString();
+    }
+
+    static public String info(int done, int iterations) {
+        return "ran " + Integer.toString(done) + " of " + Integer.toString(iterations) + " iterations";
+    }
+}
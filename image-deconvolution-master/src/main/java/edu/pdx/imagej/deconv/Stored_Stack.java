@@ -0,0 +1,68 @@
+package edu.pdx.imagej.deconv;
+
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+// A virtual stack that shows the frames of a Volume_Store. Planes are read from the store only when ImageJ asks for
+// them, so a result larger than the heap can still be viewed and saved. 8- and 16-bit planes are scaled with the range
+// of the whole store, like Deconvolve_Image_Utils.reassign does for a matrix. Like any virtual stack, edits to a plane
+// are not kept once another plane is shown.
+public class Stored_Stack extends VirtualStack {
+    private Volume_Store store;
+    private String impType;
+
+    public Stored_Stack(Volume_Store i_store, String i_impType) {
+        super(i_store.width, i_store.height);
+        store = i_store;
+        impType = i_impType;
+    }
+
+    // n is 1-based and runs through the slices of each frame in turn, the order of a hyperstack with one channel
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        float[] pixels = store.readPlane((n - 1) / store.slices, (n - 1) % store.slices);
+        int width = store.width;
+        int height = store.height;
+        if (impType == "GRAY16")
+            return new ShortProcessor(width, height, Deconvolve_Image_Utils.toShort(pixels, store.getMin(), store.getMax()), null);
+        if (impType == "GRAY8")
+            return new ByteProcessor(width, height, Deconvolve_Image_Utils.toByte(pixels, store.getMin(), store.getMax()));
+        return new FloatProcessor(width, height, pixels);
+    }
+
+    @Override
+    public Object getPixels(int n) {
+        return getProcessor(n).getPixels();
+    }
+
+    // the store is the only copy, so planes cannot be replaced
+    @Override
+    public void setPixels(Object pixels, int n) {
+    }
+
+    @Override
+    public int getSize() {
+        return store.frames * store.slices;
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        return null;
+    }
+
+    @Override
+    public int getBitDepth() {
+        if (impType == "GRAY16")
+            return 16;
+        if (impType == "GRAY8")
+            return 8;
+        return 32;
+    }
+
+    public Volume_Store getStore() {
+        return store;
+    }
+}
@@ -0,0 +1,92 @@
+package edu.pdx.imagej.deconv;
+
+// The forward FFT of a fixed convolution kernel. Convolving against a Transfer_Function only transforms the image
+// side, so repeated convolutions with the same kernel (e.g. the PSF in every iteration) cost one forward and one
+// inverse FFT instead of two forward and one inverse. The spectrum is never modified after construction, so one
+// Transfer_Function can be shared by several threads as long as each uses its own work volume. The steps of each
+// convolution are recorded in the Run_Metrics bound to the calling thread, if there is one.
+public class Transfer_Function {
+    private Complex_Volume spectrum;
+    private boolean folded = false;
+
+    // kernel is a complex matrix in FFT form, in the spatial domain
+    public Transfer_Function(float[][][] kernel) {
+        spectrum = Complex_Volume.fromMatrix(kernel);
+        spectrum.forward(spectrum.plan());
+    }
+
+    // wrap a kernel that is already in the frequency domain
+    public Transfer_Function(Complex_Volume kernelFT) {
+        spectrum = kernelFT;
+    }
+
+    // fold the shift that follows every convolution into the spectrum as a phase ramp, so convolve and blur skip
+    // the separate shift pass. Results agree with the unfolded version up to rounding
+    public void foldShift() {
+        if (!folded) {
+            FFT_Shift.foldShift(spectrum);
+            folded = true;
+        }
+    }
+
+    public boolean isFolded() {
+        return folded;
+    }
+
+    public Complex_Volume getSpectrum() {
+        return spectrum;
+    }
+
+    // a work volume the size of the kernel
+    public Complex_Volume newWorkVolume() {
+        return new Complex_Volume(spectrum.slices, spectrum.height, spectrum.width);
+    }
+
+    // ret = kernel * vol for a volume in FFT form. ret may be vol
+    public void convolve(Complex_Volume vol, Complex_Volume ret) {
+        ret.copyFrom(vol);
+        Run_Metrics.Span span = Run_Metrics.start("forward FFT");
+        ret.forward(ret.plan());
+        span.stop();
+        blur(ret);
+    }
+
+    // Convolve two real volumes with a single transform pair, one as the real part and one as the imaginary part of
+    // the input. Only valid for a kernel that is real in the spatial domain: its spectrum is then Hermitian, so the two
+    // convolutions come back in the real and imaginary parts without mixing. b and retB may be null to convolve a
+    // single real volume
+    public void convolvePair(Real_Volume a, Real_Volume b, Real_Volume retA, Real_Volume retB, Complex_Volume work) {
+        Run_Metrics.Span span = Run_Metrics.start("toFFTform");
+        work.setRealPair(a, b);
+        span.stop();
+        span = Run_Metrics.start("forward FFT");
+        work.forward(work.plan());
+        span.stop();
+        span = Run_Metrics.start("filter");
+        spectrum.multiply(work, work);
+        span.stop();
+        span = Run_Metrics.start("inverse FFT");
+        work.inverse(work.plan());
+        span.stop();
+        span = Run_Metrics.start("formatIFFT");
+        if (!folded)
+            FFT_Shift.shift(work.data, work.slices, work.height, work.width, 2);
+        work.getRealPair(retA, retB);
+        span.stop();
+    }
+
+    // finish a convolution whose image side is already transformed, leaving the result in matFT
+    public void blur(Complex_Volume matFT) {
+        Run_Metrics.Span span = Run_Metrics.start("filter");
+        spectrum.multiply(matFT, matFT);
+        span.stop();
+        span = Run_Metrics.start("inverse FFT");
+        matFT.inverse(matFT.plan());
+        span.stop();
+        if (!folded) {
+            span = Run_Metrics.start("formatIFFT");
+            FFT_Shift.shift(matFT.data, matFT.slices, matFT.height, matFT.width, 2);
+            span.stop();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package edu.pdx.imagej.deconv;
+
+// Biggs-Andrews vector extrapolation (Biggs & Andrews 1997) of one frame of a multiplicative iteration. Before each
+// iteration the guess x is moved along its last step to y = x + alpha*(x - x'), and after it the step g = phi(y) - y
+// that the iteration took is compared with the one before, alpha = sum g*g' / sum g'*g', kept between 0 and a maximum
+// of at most 1. Guesses are the data of a Real_Volume or a Complex_Volume. Complex ones work as they are, since the sum
+// over their interleaved parts is Re sum g*conj(g').
+public class Vector_Extrapolation {
+    // Biggs & Andrews keep alpha between 0 and 1. The fitted update of Iterative_Deconvolver is less regular than
+    // Richardson-Lucy, and steps that long overshoot once the error is low, so the default is lower. On the synthetic
+    // volume of Vector_Extrapolation_Test it converges in fewer iterations than 0.5 or 1
+    static public final double DEFAULT_MAX_ALPHA = 0.7;
+
+    private float[] last;
+    private float[] predicted;
+    private float[] step;
+    private double maxAlpha;
+    private double alpha = 0;
+
+    // for volumes of this many floats, real or complex
+    public Vector_Extrapolation(int length) {
+        this(length, DEFAULT_MAX_ALPHA);
+    }
+
+    // with alpha kept at or below i_maxAlpha, between 0 and 1
+    public Vector_Extrapolation(int length, double i_maxAlpha) {
+        if (!(i_maxAlpha >= 0 && i_maxAlpha <= 1))
+            throw new IllegalArgumentException("The largest alpha must be between 0 and 1.");
+        last = new float[length];
+        predicted = new float[length];
+        step = new float[length];
+        maxAlpha = i_maxAlpha;
+    }
+
+    // move guess to y before an iteration, keeping the guess it had
+    public void predict(float[] guess) {
+        for (int n = 0; n < guess.length; n++) {
+            float x = guess[n];
+            float y = x + (float) alpha * (x - last[n]);
+            last[n] = x;
+            predicted[n] = y;
+            guess[n] = y;
+        }
+    }
+
+    // take the guess an iteration made from y and work out alpha for the next. The first step has nothing to be
+    // compared with, so alpha stays 0
+    public void correct(float[] guess) {
+        double product = 0;
+        double norm = 0;
+        for (int n = 0; n < guess.length; n++) {
+            float g = guess[n] - predicted[n];
+            product += (double) g * step[n];
+            norm += (double) step[n] * step[n];
+            step[n] = g;
+        }
+        alpha = norm > 0 ? Math.max(0, Math.min(maxAlpha, product / norm)) : 0;
+        if (Double.isNaN(alpha))
+            alpha = 0;
+    }
+
+    // the guess before the last prediction
+    public float[] last() {
+        return last;
+    }
+
+    public double alpha() {
+        return alpha;
+    }
+}
@@ -0,0 +1,156 @@
+package edu.pdx.imagej.deconv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+// Off-heap storage for a 4D matrix that may not fit on the Java heap. Frames live in a temporary file and are copied
+// in and out one plane at a time with positional reads and writes, through a direct buffer of one plane that each
+// thread reuses. Nothing is mapped, so the only memory outside the heap is those buffers and whatever the operating
+// system chooses to cache. Frames may be read and written from several threads at once.
+public class Volume_Store implements AutoCloseable {
+    public final int frames;
+    public final int slices;
+    public final int height;
+    public final int width;
+
+    private final long planeBytes;
+    private final long frameBytes;
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final ThreadLocal<ByteBuffer> buffers;
+
+    // range of the finite values written so far, for scaling to 8 or 16 bits
+    private float min = Float.POSITIVE_INFINITY;
+    private float max = Float.NEGATIVE_INFINITY;
+
+    // back the store with a temporary file in the default temporary directory
+    public Volume_Store(int i_frames, int i_slices, int i_height, int i_width) {
+        this(i_frames, i_slices, i_height, i_width, null);
+    }
+
+    // back the store with a temporary file in directory, e.g. a disk with more room than the default
+    public Volume_Store(int i_frames, int i_slices, int i_height, int i_width, File directory) {
+        frames = i_frames;
+        slices = i_slices;
+        height = i_height;
+        width = i_width;
+        planeBytes = 4L * height * width;
+        frameBytes = planeBytes * slices;
+        if (planeBytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("A " + height + "x" + width + " plane is too large to store.");
+        buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect((int) planeBytes).order(ByteOrder.nativeOrder()));
+
+        try {
+            file = File.createTempFile("deconvolve", ".vol", directory);
+            file.deleteOnExit();
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(frameBytes * frames);
+            channel = raf.getChannel();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Could not create a volume store for " + frames + " frames.", e);
+        }
+    }
+
+    // write a [slices][height][width] matrix to frame
+    public void write(int frame, float[][][] mat) {
+        ByteBuffer buffer = buffers.get();
+        float frameMin = Float.POSITIVE_INFINITY;
+        float frameMax = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < slices; i++) {
+            buffer.clear();
+            FloatBuffer floats = buffer.asFloatBuffer();
+            for (float[] row : mat[i]) {
+                floats.put(row);
+                for (float value : row)
+                    if (!Float.isInfinite(value)) {
+                        if (value < frameMin) frameMin = value;
+                        if (value > frameMax) frameMax = value;
+                    }
+            }
+            writePlane(buffer, frame * frameBytes + i * planeBytes);
+        }
+        updateRange(frameMin, frameMax);
+    }
+
+    public float[][][] read(int frame) {
+        float[][][] mat = new float[slices][height][width];
+        for (int i = 0; i < slices; i++) {
+            FloatBuffer floats = readPlane(frame * frameBytes + i * planeBytes);
+            for (float[] row : mat[i])
+                floats.get(row);
+        }
+        return mat;
+    }
+
+    // one plane as a flat pixel array, the way ImageJ stores it
+    public float[] readPlane(int frame, int slice) {
+        float[] pixels = new float[height * width];
+        readPlane(frame * frameBytes + slice * planeBytes).get(pixels);
+        return pixels;
+    }
+
+    // smallest and largest finite values written, skipping infinite values the way FloatProcessor does
+    public synchronized float getMin() {
+        return min;
+    }
+
+    public synchronized float getMax() {
+        return max;
+    }
+
+    // release the file. The store cannot be used afterwards
+    @Override
+    public void close() {
+        try {
+            channel.close();
+            raf.close();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    // the plane at position, in this thread's buffer
+    private FloatBuffer readPlane(long position) {
+        ByteBuffer buffer = buffers.get();
+        buffer.clear();
+        try {
+            while (buffer.hasRemaining())
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    throw new IOException("Unexpected end of file.");
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Could not read " + file + ".", e);
+        }
+        buffer.flip();
+        return buffer.asFloatBuffer();
+    }
+
+    // write a full plane from buffer, ignoring its position
+    private void writePlane(ByteBuffer buffer, long position) {
+        buffer.clear();
+        try {
+            while (buffer.hasRemaining())
+                channel.write(buffer, position + buffer.position());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Could not write " + file + ".", e);
+        }
+    }
+
+    private synchronized void updateRange(float frameMin, float frameMax) {
+        if (frameMin < min) min = frameMin;
+        if (frameMax > max) max = frameMax;
+    }
+}
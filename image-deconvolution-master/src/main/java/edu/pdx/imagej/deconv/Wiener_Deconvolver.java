@@ -0,0 +1,68 @@
+package edu.pdx.imagej.deconv;
+
+// The Wiener filter as a Deconvolver. Frames are deconvolved independently and in parallel by Wiener_Utils. If asked,
+// the error of the whole run, worked out by Error_Estimator, is reported as the "error" metric once every frame is done.
+// How long each frame took, from being read to being ready, is reported in ms as the "frame time" metric just before
+// it is written. "Standard" frames are done in pairs, and both frames of a pair report the time of the pair
+public class Wiener_Deconvolver implements Deconvolver {
+    private float[][][] psfMat;
+    private float[][][] psfPhaseMat;
+    private String style;
+    private float beta;
+    private boolean intensity;
+    private boolean getError;
+    private double errorSample = 1;
+    private long errorSeed = 0;
+    private Progress_Listener progress = (done, total) -> {};
+    private Metrics_Listener metrics = (name, frame, iteration, value) -> {};
+    private Run_Metrics runMetrics = Run_Metrics.NONE;
+
+    // psfMat and psfPhaseMat are the parts of the PSF, which is not normalized here. psfPhaseMat is only used by the
+    // complex styles. style is "Standard", "Complex (Polar)", or "Complex (Rectangular)"
+    public Wiener_Deconvolver(float[][][] i_psfMat, float[][][] i_psfPhaseMat, String i_style, float i_beta, boolean i_intensity, boolean i_getError) {
+        psfMat = i_psfMat;
+        psfPhaseMat = i_psfPhaseMat;
+        style = i_style;
+        beta = i_beta;
+        intensity = i_intensity;
+        getError = i_getError;
+    }
+
+    @Override
+    public void deconvolve(int frames, Frame_Pipeline.Reader<float[][][][]> input, Frame_Pipeline.Writer<float[][][][]> output) {
+        Wiener_Utils wu = new Wiener_Utils(psfMat[0][0].length, psfMat[0].length, psfMat.length, frames, beta, intensity);
+        wu.progress = progress;
+        wu.listener = metrics;
+        wu.metrics = runMetrics;
+        wu.errorSample = errorSample;
+        wu.errorSeed = errorSeed;
+        if (style == "Standard")
+            wu.deconvolve(i -> input.read(i)[0], psfMat, (i, result) -> output.write(i, new float[][][][] {result}), getError);
+        else
+            wu.deconvolve(input, psfMat, psfPhaseMat, output, getError, style == "Complex (Polar)" ? "Polar" : "Rectangular");
+
+        if (getError)
+            metrics.metric("error", -1, -1, wu.error);
+    }
+
+    // estimate the error from about fraction of the voxels, chosen by seed, as in Error_Estimator.setSampling
+    public void setErrorSampling(double fraction, long seed) {
+        errorSample = fraction;
+        errorSeed = seed;
+    }
+
+    @Override
+    public void setProgressListener(Progress_Listener listener) {
+        progress = listener;
+    }
+
+    @Override
+    public void setMetricsListener(Metrics_Listener listener) {
+        metrics = listener;
+    }
+
+    @Override
+    public void setRunMetrics(Run_Metrics i_metrics) {
+        runMetrics = i_metrics;
+    }
+}
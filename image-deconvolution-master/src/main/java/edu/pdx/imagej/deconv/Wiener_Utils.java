@@ -1,25 +1,28 @@
 package edu.pdx.imagej.deconv;
 
-import org.jtransforms.fft.FloatFFT_3D;
-
-import ij.IJ;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class Wiener_Utils {
     
     private Deconvolve_Image_Utils diu = new Deconvolve_Image_Utils();
-    private FloatFFT_3D fft3D;
     private float beta;
     private int width;
     private int height;
     private int slices;
     private int frames;
-    private float[][][] psfComplex;
     private boolean get_intensity;
+    private ConcurrentLinkedQueue<Complex_Volume> workspaces = new ConcurrentLinkedQueue<Complex_Volume>();
     
     public float[][][][] imgComplex;
     public float[][][][] imgPhase;
     public float scale = 1;
     public float error;
+    public Frame_Scheduler scheduler = new Frame_Scheduler();
+    public Deconvolver.Progress_Listener progress = (done, total) -> {};
+    public Deconvolver.Metrics_Listener listener = (name, frame, iteration, value) -> {};
+    public Run_Metrics metrics = Run_Metrics.NONE;
+    public double errorSample = 1;
+    public long errorSeed = 0;
     
     // initialize object
     public Wiener_Utils(int i_width, int i_height, int i_slices, int i_frames, float i_beta, boolean intensity) {
@@ -29,112 +32,248 @@ public class Wiener_Utils {
         frames = i_frames;
         beta = i_beta;
         get_intensity = intensity;
-        fft3D = new FloatFFT_3D((long)slices, (long)height, (long)width);
-        imgComplex = new float[frames][slices][height][width];
+        imgComplex = new float[frames][][][];
     }
     
     // assumes imgMat and psfMat are not in FFT form. This method deconvolves real data
     public void deconvolve(float[][][][] imgMat, float[][][] psfMat, boolean getError) {
-        // put image into FFT form and transform
-        for (int i = 0; i < frames; i++) {
-            imgComplex[i] = diu.toFFTform(imgMat[i]);
-            if (get_intensity)
-                diu.matrixOperations(imgComplex[i], imgComplex[i], imgComplex[i], "multiply");
-            fft3D.complexForward(imgComplex[i]);
-        }
-            
-        // do the same with PSF
-        diu.scaleMat(psfMat, psfComplex, scale);
-        psfComplex = diu.toFFTform(psfComplex);
+        deconvolve(i -> imgMat[i], psfMat, (i, result) -> imgComplex[i] = result, getError);
+    }
+    
+    // The same, one frame at a time, so that nothing the size of the whole hyperstack is held here. input may be called
+    // from several threads at once. Results are passed to output in frame order on the calling thread
+    public void deconvolve(Frame_Pipeline.Reader<float[][][]> input, float[][][] psfMat, Frame_Pipeline.Writer<float[][][]> output, boolean getError) {
+        // put PSF into FFT form and transform. Its spectrum is shared by every frame
+        Complex_Volume psf = new Complex_Volume(slices, height, width);
+        psf.setReal(psfMat);
+        psf.scale(scale);
         if (get_intensity)
-            diu.matrixOperations(psfComplex, psfComplex, psfComplex, "multiply");
-        fft3D.complexForward(psfComplex);   
-        float[][][] psfConj = new float[slices][height][width*2];
-        diu.complexConj(psfComplex, psfConj);
+            psf.multiply(psf, psf);
+        psf.forward(psf.plan());
         
-        float[][][] psf2 = new float[slices][height][width*2];
-        diu.matrixOperations(psfComplex, psfConj, psf2, "multiply");
-        diu.incrementComplex(psf2, psf2, beta);
-        for (int i = 0; i < frames; i++) {
-            // perform deconvolution operations
-            diu.matrixOperations(psfConj, imgComplex[i], imgComplex[i], "multiply");    
-            diu.matrixOperations(imgComplex[i], psf2, imgComplex[i], "divide");
-            fft3D.complexInverse(imgComplex[i], true);
-            
-            // put complex matrices back into real matrices and format image
-            imgComplex[i] = diu.getAmplitudeMat(imgComplex[i]);
-            imgComplex[i] = diu.formatIFFT(imgComplex[i]);
-            diu.linearShift(imgComplex[i], 0, 1);
-            IJ.showProgress(i+1, frames);
-        }
+        // the filter is conj(psf) / (|psf|^2 + beta). The denominator is real, so only its reciprocal is kept, and
+        // shifting the result is folded into the numerator
+        Complex_Volume psfConj = new Complex_Volume(slices, height, width);
+        psf.conj(psfConj);
+        float[] invDenom = inverseDenominator(psf);
+        FFT_Shift.foldShift(psfConj);
+        
+        // the error of each frame is worked out with it, and the sums are combined in frame order at the end
+        Error_Estimator estimator = getError ? estimator(diu.toFFTform(psfMat)) : null;
+        double[][] errorTerms = new double[frames][];
         
-        // return PSF matrix to original state
-        fft3D.complexInverse(psfComplex, true);
-        psfComplex = diu.getAmplitudeMat(psfComplex);
+        // frames are independent once the PSF is ready, so they are deconvolved in parallel. The filter is Hermitian
+        // for a real PSF, so two real frames share one transform pair as the real and imaginary parts of a workspace
+        int pairs = (frames + 1) / 2;
+        scheduler.run(pairs, p -> {
+            long start = System.nanoTime();
+            int first = 2*p;
+            boolean both = first + 1 < frames;
+            Run_Metrics.Position previous = metrics.enter(first, -1);
+            Run_Metrics.Span span = Run_Metrics.start("load");
+            float[][][][] frame = new float[both ? 2 : 1][][][];
+            for (int i = 0; i < frame.length; i++)
+                frame[i] = input.read(first + i);
+            span.stop();
+            
+            span = Run_Metrics.start("toFFTform");
+            Complex_Volume img = takeWorkspace();
+            img.setRealPair(frame[0], both ? frame[1] : null);
+            if (get_intensity)
+                realSquare(img);
+            span.stop();
+            span = Run_Metrics.start("forward FFT");
+            img.forward(img.plan());
+            span.stop();
+            
+            // perform deconvolution in a single pass over the spectrum
+            span = Run_Metrics.start("filter");
+            psfConj.multiplyScaled(img, invDenom, img);
+            span.stop();
+            span = Run_Metrics.start("inverse FFT");
+            img.inverse(img.plan());
+            span.stop();
+            
+            // the amplitude of a real result is its absolute value
+            span = Run_Metrics.start("formatIFFT");
+            float[][][][] result = new float[both ? 2 : 1][slices][height][width];
+            img.getRealPair(result[0], both ? result[1] : null);
+            workspaces.offer(img);
+            for (int i = 0; i < result.length; i++) {
+                absolute(result[i]);
+                diu.linearShift(result[i], 0, 1);
+            }
+            span.stop();
+            // the results are real, so they are blurred as a pair too
+            if (getError) {
+                span = Run_Metrics.start("error");
+                Complex_Volume work = takeWorkspace();
+                double[][] terms = estimator.termsReal(result[0], both ? result[1] : null,
+                    Error_Estimator.amplitude(frame[0], null), both ? Error_Estimator.amplitude(frame[1], null) : null, work);
+                workspaces.offer(work);
+                System.arraycopy(terms, 0, errorTerms, first, terms.length);
+                span.stop();
+            }
+            Run_Metrics.restore(previous);
+            reportTime(first, result.length, start);
+            return result;
+        }, (p, result) -> {
+            for (int i = 0; i < result.length; i++)
+                output.write(2*p + i, result[i]);
+            progress.progress(2*p + result.length, frames);
+        });
         
         if (getError)
-            error = (float) diu.getError(diu.toFFTform(imgComplex), diu.toFFTform(imgMat), psfMat);
+            error = (float) Error_Estimator.error(errorTerms);
     }
     
     // treats deconvolution with complex numbers
     public void deconvolve(float[][][][] imgAmpMat, float[][][][] imgPhaseMat, float[][][] psfAmpMat, float[][][] psfPhaseMat, boolean getError, String style) {
-        imgPhase = new float[frames][slices][height][width];
-        float[][][] psfConj = new float[slices][height][width*2];
+        imgPhase = new float[frames][][][];
+        deconvolve(i -> new float[][][][] {imgAmpMat[i], imgPhaseMat[i]}, psfAmpMat, psfPhaseMat, (i, result) -> {
+            imgComplex[i] = result[0];
+            imgPhase[i] = result[1];
+        }, getError, style);
+    }
+    
+    // The same, one frame at a time. input gives the amplitude/real and phase/imaginary parts of a frame, and output
+    // receives the same pair for the result
+    public void deconvolve(Frame_Pipeline.Reader<float[][][][]> input, float[][][] psfAmpMat, float[][][] psfPhaseMat, Frame_Pipeline.Writer<float[][][][]> output, boolean getError, String style) {
+        // construct complex PSF based on form of input data
+        Complex_Volume psf = new Complex_Volume(slices, height, width);
+        if (style == "Polar")
+            psf.setPolar(psfAmpMat, psfPhaseMat);
+        else
+            psf.setRect(psfAmpMat, psfPhaseMat);
         
-        // construct complex matrices based on form of input data
-        for (int i = 0; i < frames; i++) {
+        if (get_intensity) {
+            Complex_Volume conj = new Complex_Volume(slices, height, width);
+            psf.conj(conj);
+            psf.multiply(conj, psf);
+        }
+        
+        psf.forward(psf.plan());
+        Complex_Volume psfConj = new Complex_Volume(slices, height, width);
+        psf.conj(psfConj);
+        float[] invDenom = inverseDenominator(psf);
+        FFT_Shift.foldShift(psfConj);
+        
+        Error_Estimator estimator = !getError ? null
+            : estimator(style == "Polar" ? diu.toFFTform(psfAmpMat, psfPhaseMat) : diu.toFFTformRect(psfAmpMat, psfPhaseMat));
+        double[][] errorTerms = new double[frames][];
+        
+        // same deconvolution procedure as above. Each result holds the amplitude/real and phase/imaginary parts
+        scheduler.run(frames, i -> {
+            long start = System.nanoTime();
+            Run_Metrics.Position previous = metrics.enter(i, -1);
+            Run_Metrics.Span span = Run_Metrics.start("load");
+            float[][][][] frame = input.read(i);
+            span.stop();
+            span = Run_Metrics.start("toFFTform");
+            Complex_Volume img = takeWorkspace();
             if (style == "Polar")
-                imgComplex[i] = diu.toFFTform(imgAmpMat[i], imgPhaseMat[i]);
+                img.setPolar(frame[0], frame[1]);
             else
-                imgComplex[i] = diu.toFFTformRect(imgAmpMat[i], imgPhaseMat[i]);
+                img.setRect(frame[0], frame[1]);
             
+            // |img|^2, which is img times its own conjugate
             if (get_intensity)
-                diu.complexConj(imgComplex[i], psfConj); // This is a reused variable, it is NOT psfConj!
-                diu.matrixOperations(imgComplex[i], psfConj, imgComplex[i], "multiply");
+                Complex_Kernel.multiplyConj(img.data, img.data, img.data, img.size());
+            span.stop();
             
-            fft3D.complexForward(imgComplex[i]);
-        }
-        
-        // do same for PSF
-        if (style == "Polar")
-            psfComplex = diu.toFFTform(psfAmpMat, psfPhaseMat);
-        else
-            psfComplex = diu.toFFTformRect(psfAmpMat, psfPhaseMat);
-        
-        if (get_intensity)
-            diu.complexConj(psfComplex, psfConj);
-            diu.matrixOperations(psfComplex, psfConj, psfComplex, "multiply");
-        
-        fft3D.complexForward(psfComplex);   
-        diu.complexConj(psfComplex, psfConj);
-        
-        float[][][] psf2 = new float[slices][height][width*2];
-        diu.matrixOperations(psfComplex, psfConj, psf2, "multiply");
-        diu.incrementComplex(psf2, psf2, beta);
-        // same deconvolution procedure as above
-        for (int i = 0; i < frames; i++) {
-            diu.matrixOperations(psfConj, imgComplex[i], imgComplex[i], "multiply");    
-            diu.matrixOperations(imgComplex[i], psf2, imgComplex[i], "divide");
-            fft3D.complexInverse(imgComplex[i], true);
+            span = Run_Metrics.start("forward FFT");
+            img.forward(img.plan());
+            span.stop();
+            span = Run_Metrics.start("filter");
+            psfConj.multiplyScaled(img, invDenom, img);
+            span.stop();
+            
+            // the result is the inverse transform of this spectrum, so it is blurred from here without another
+            // forward transform
+            if (getError) {
+                span = Run_Metrics.start("error");
+                Complex_Volume blurred = takeWorkspace();
+                blurred.copyFrom(img);
+                errorTerms[i] = estimator.termsFromSpectrum(blurred, style == "Polar" ? Error_Estimator.amplitude(frame[0], null) : Error_Estimator.amplitude(frame[0], frame[1]));
+                workspaces.offer(blurred);
+                span.stop();
+            }
+            
+            span = Run_Metrics.start("inverse FFT");
+            img.inverse(img.plan());
+            span.stop();
             
             // put complex matrices back into real matrices and format image
+            span = Run_Metrics.start("formatIFFT");
+            float[][][][] result = new float[2][][][];
             if (style == "Polar") {
-                imgPhase[i] = diu.getPhaseMat(imgComplex[i]);
-                imgComplex[i] = diu.getAmplitudeMat(imgComplex[i]);
+                result[0] = img.getAmplitude().toMatrix();
+                result[1] = img.getPhase().toMatrix();
             }
             else {
-                imgPhase[i] = diu.getImMat(imgComplex[i]);
-                imgComplex[i] = diu.getReMat(imgComplex[i]);
+                result[0] = img.getRe().toMatrix();
+                result[1] = img.getIm().toMatrix();
             }
-            imgComplex[i] = diu.formatIFFT(imgComplex[i]);
-            imgPhase[i] = diu.formatIFFT(imgPhase[i]);
-            IJ.showProgress(i+1, frames);
-        }
+            workspaces.offer(img);
+            span.stop();
+            Run_Metrics.restore(previous);
+            reportTime(i, 1, start);
+            return result;
+        }, (i, result) -> {
+            output.write(i, result);
+            progress.progress(i+1, frames);
+        });
         
         if (getError)
-            if (style == "Polar")
-                error = (float) diu.getError(diu.toFFTform(imgComplex, imgPhase), diu.toFFTform(imgAmpMat, imgPhaseMat), diu.toFFTform(psfAmpMat, psfPhaseMat));
-            else
-                error = (float) diu.getError(diu.toFFTformRect(imgComplex, imgPhase), diu.toFFTformRect(imgAmpMat, imgPhaseMat), diu.toFFTformRect(psfAmpMat, psfPhaseMat));
+            error = (float) Error_Estimator.error(errorTerms);
+    }
+    
+    // Report how long count frames from first took, from being read to being ready, as the "frame time" metric in ms.
+    // Frames done as a pair share one time. Reported before the frames are written
+    private void reportTime(int first, int count, long start) {
+        double time = (System.nanoTime() - start) / 1e6;
+        scheduler.report(() -> {
+            for (int i = 0; i < count; i++)
+                listener.metric("frame time", first + i, -1, time);
+        });
+    }
+    
+    // the error of results blurred with psfFFT, sampled as asked
+    private Error_Estimator estimator(float[][][] psfFFT) {
+        Error_Estimator estimator = new Error_Estimator(psfFFT);
+        estimator.setSampling(errorSample, errorSeed);
+        return estimator;
+    }
+    
+    // square the real and imaginary parts separately, which is the intensity of each frame in a pair
+    static private void realSquare(Complex_Volume vol) {
+        for (int n = 0; n < vol.data.length; n++)
+            vol.data[n] *= vol.data[n];
+    }
+    
+    static private void absolute(float[][][] mat) {
+        for (float[][] slice : mat)
+            for (float[] row : slice)
+                for (int k = 0; k < row.length; k++)
+                    row[k] = Math.abs(row[k]);
+    }
+    
+    // 1 / (|psf|^2 + beta) for each element of the PSF spectrum
+    private float[] inverseDenominator(Complex_Volume psf) {
+        float[] ret = new float[psf.size()];
+        for (int n = 0; n < ret.length; n++) {
+            double re = psf.data[2*n];
+            double im = psf.data[2*n + 1];
+            ret[n] = (float)(1 / (re*re + im*im + beta));
+        }
+        return ret;
+    }
+    
+    // a frame buffer that no other thread is using. At most one per frame in flight is ever created
+    private Complex_Volume takeWorkspace() {
+        Complex_Volume img = workspaces.poll();
+        if (img == null)
+            img = new Complex_Volume(slices, height, width);
+        return img;
     }
 }
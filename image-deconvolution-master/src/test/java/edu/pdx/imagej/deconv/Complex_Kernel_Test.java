@@ -0,0 +1,123 @@
+package edu.pdx.imagej.deconv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Random;
+
+import org.junit.Test;
+
+// The overflow fallbacks of Complex_Kernel against a DECIMAL128 reference, which is exact to far more digits than a
+// float result can hold
+public class Complex_Kernel_Test {
+    static private final MathContext mc = MathContext.DECIMAL128;
+    // a few float roundings, relative to the larger part of the result
+    static private final double tolerance = 1e-6;
+
+    @Test
+    public void divideOverflowingNumerators() {
+        // numerators 1e28..1e38 and divisors 1e1..1e11, so every float product overflows and the fallback is taken
+        Random random = new Random(1);
+        int n = 10000;
+        float[] row1 = new float[2*n];
+        float[] row2 = new float[2*n];
+        for (int k = 0; k < n; k++) {
+            row1[2*k] = signed(random, 28, 38);
+            row1[2*k + 1] = signed(random, 28, 38);
+            row2[2*k] = signed(random, 1, 11);
+            row2[2*k + 1] = signed(random, 1, 11);
+        }
+
+        long before = Complex_Kernel.fallbacks.sum();
+        float[] retRow = new float[2*n];
+        Complex_Kernel.divide(row1, row2, retRow, n);
+        assertTrue(Complex_Kernel.fallbacks.sum() - before > 0);
+        checkDivide(row1, row2, retRow, n);
+    }
+
+    @Test
+    public void divideNearZeroDivisors() {
+        Random random = new Random(2);
+        int n = 10000;
+        float[] row1 = new float[2*n];
+        float[] row2 = new float[2*n];
+        for (int k = 0; k < n; k++) {
+            row1[2*k] = signed(random, -5, 5);
+            row1[2*k + 1] = signed(random, -5, 5);
+            row2[2*k] = signed(random, -20, -10);
+            row2[2*k + 1] = signed(random, -20, -10);
+        }
+
+        float[] retRow = new float[2*n];
+        Complex_Kernel.divide(row1, row2, retRow, n);
+        checkDivide(row1, row2, retRow, n);
+    }
+
+    @Test
+    public void divideByZeroGivesZero() {
+        float[] row1 = {1, 2, 0, 0, 3e38f, -3e38f, Float.NaN, 1};
+        float[] row2 = {0, 0, 0, 0, 0, 0, 1, 1};
+        float[] retRow = new float[row1.length];
+        Complex_Kernel.divide(row1, row2, retRow, 4);
+        for (float value : retRow)
+            assertEquals(0, value, 0);
+    }
+
+    @Test
+    public void multiplyFallbackSign() {
+        // z1 = z2 = r e^(i pi/8) with |z1 z2| about 1.3 times the largest float. c*e overflows, but the product
+        // r^2 e^(i pi/4) does not
+        float c = 1.94e19f;
+        float d = 8.04e18f;
+        float[] row = {c, d};
+        float[] retRow = new float[2];
+        long before = Complex_Kernel.fallbacks.sum();
+        Complex_Kernel.multiply(row, row, retRow, 1);
+        assertEquals(1, Complex_Kernel.fallbacks.sum() - before);
+
+        double re = (double)c * c - (double)d * d;
+        double im = 2 * (double)c * d;
+        assertTrue(retRow[1] > 0);
+        assertEquals(re, retRow[0], re * tolerance);
+        assertEquals(im, retRow[1], im * tolerance);
+
+        // z1 * conj(z1) = |z1|^2, which is real
+        Complex_Kernel.multiplyConj(row, row, retRow, 1);
+        assertEquals(2, Complex_Kernel.fallbacks.sum() - before);
+        assertEquals(0, retRow[1], 0);
+    }
+
+    @Test
+    public void nonFiniteOperandsGiveZero() {
+        float[] row1 = {Float.POSITIVE_INFINITY, 1, Float.NaN, 1};
+        float[] row2 = {1, 1, 1, 1};
+        float[] retRow = {5, 5, 5, 5};
+        Complex_Kernel.multiply(row1, row2, retRow, 2);
+        for (float value : retRow)
+            assertEquals(0, value, 0);
+    }
+
+    // |x| in [10^low, 10^high) with a random sign
+    static private float signed(Random random, int low, int high) {
+        float value = (float)Math.pow(10, low + (high - low) * random.nextDouble());
+        return random.nextBoolean() ? value : -value;
+    }
+
+    static private void checkDivide(float[] row1, float[] row2, float[] retRow, int n) {
+        for (int k = 0; k < n; k++) {
+            BigDecimal c = new BigDecimal(row1[2*k]);
+            BigDecimal d = new BigDecimal(row1[2*k + 1]);
+            BigDecimal e = new BigDecimal(row2[2*k]);
+            BigDecimal f = new BigDecimal(row2[2*k + 1]);
+            BigDecimal denom = e.multiply(e, mc).add(f.multiply(f, mc), mc);
+            double re = c.multiply(e, mc).add(d.multiply(f, mc), mc).divide(denom, mc).doubleValue();
+            double im = d.multiply(e, mc).subtract(c.multiply(f, mc), mc).divide(denom, mc).doubleValue();
+
+            double scale = Math.max(Math.abs(re), Math.abs(im));
+            assertEquals("re at " + k, re, retRow[2*k], scale * tolerance);
+            assertEquals("im at " + k, im, retRow[2*k + 1], scale * tolerance);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package edu.pdx.imagej.deconv;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Deconvolve_Image_Utils_Test {
+
+    // formatIFFT returns a shifted copy and leaves its argument alone
+    @Test
+    public void formatIFFTCopies() {
+        float[][][] mat = volume(4, 6, 8);
+        float[][][] original = copy(mat);
+        float[][][] shifted = Deconvolve_Image_Utils.formatIFFT(mat);
+
+        assertEquals(original, mat);
+        assertEquals(shift(original), shifted);
+    }
+
+    @Test
+    public void formatIFFTInPlace() {
+        float[][][] mat = volume(4, 6, 8);
+        float[][][] expected = shift(mat);
+        assertSame(mat, Deconvolve_Image_Utils.formatIFFTInPlace(mat));
+        assertEquals(expected, mat);
+    }
+
+    @Test
+    public void formatIFFTFrames() {
+        float[][][][] frames = {volume(2, 4, 4), volume(2, 4, 4)};
+        float[][][] first = copy(frames[0]);
+        float[][][][] shifted = Deconvolve_Image_Utils.formatIFFT(frames);
+        assertEquals(first, frames[0]);
+        assertEquals(shift(first), shifted[0]);
+
+        Deconvolve_Image_Utils.formatIFFTInPlace(frames);
+        assertEquals(shifted[1], frames[1]);
+    }
+
+    // every axis rotated by half its length, which is what the quadrant swaps come to for even sizes
+    static private float[][][] shift(float[][][] mat) {
+        int slices = mat.length;
+        int height = mat[0].length;
+        int width = mat[0][0].length;
+        float[][][] ret = new float[slices][height][width];
+        for (int i = 0; i < slices; i++)
+            for (int j = 0; j < height; j++)
+                for (int k = 0; k < width; k++)
+                    ret[(i + slices/2) % slices][(j + height/2) % height][(k + width/2) % width] = mat[i][j][k];
+        return ret;
+    }
+
+    static private void assertEquals(float[][][] expected, float[][][] actual) {
+        for (int i = 0; i < expected.length; i++)
+            for (int j = 0; j < expected[0].length; j++)
+                assertArrayEquals(expected[i][j], actual[i][j], 0);
+    }
+
+    static private float[][][] copy(float[][][] mat) {
+        float[][][] ret = new float[mat.length][mat[0].length][];
+        for (int i = 0; i < mat.length; i++)
+            for (int j = 0; j < mat[0].length; j++)
+                ret[i][j] = mat[i][j].clone();
+        return ret;
+    }
+
+    static private float[][][] volume(int slices, int height, int width) {
+        Random random = new Random(slices * height * width);
+        float[][][] mat = new float[slices][height][width];
+        for (float[][] slice : mat)
+            for (float[] row : slice)
+                for (int k = 0; k < width; k++)
+                    row[k] = random.nextFloat();
+        return mat;
+    }
+}
@@ -0,0 +1,110 @@
+package edu.pdx.imagej.deconv;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FFT_Shift_Test {
+    static private final int[][] sizes = {{4, 6, 8}, {3, 5, 7}, {4, 5, 6}, {5, 4, 3}, {1, 3, 2}};
+
+    @Test
+    public void shift() {
+        for (int[] size : sizes)
+            for (int elem = 1; elem <= 2; elem++) {
+                float[][][] mat = volume(size, elem);
+                float[][][] expected = rotate(mat, elem, false, true);
+
+                float[] flat = flatten(mat);
+                FFT_Shift.shift(flat, size[0], size[1], size[2], elem);
+                assertArrayEquals(flatten(expected), flat, 0);
+
+                FFT_Shift.shift(mat, elem);
+                assertArrayEquals(flatten(expected), flatten(mat), 0);
+            }
+    }
+
+    // odd axes move by (n + 1)/2, so ifftshift is not shift again
+    @Test
+    public void ishift() {
+        for (int[] size : sizes)
+            for (int elem = 1; elem <= 2; elem++) {
+                float[][][] mat = volume(size, elem);
+                float[][][] expected = rotate(mat, elem, true, true);
+
+                float[] flat = flatten(mat);
+                FFT_Shift.ishift(flat, size[0], size[1], size[2], elem);
+                assertArrayEquals(flatten(expected), flat, 0);
+
+                FFT_Shift.ishift(mat, elem);
+                assertArrayEquals(flatten(expected), flatten(mat), 0);
+            }
+    }
+
+    @Test
+    public void ishiftUndoesShift() {
+        for (int[] size : sizes) {
+            float[][][] mat = volume(size, 2);
+            float[] flat = flatten(mat);
+            FFT_Shift.shift(flat, size[0], size[1], size[2], 2);
+            FFT_Shift.ishift(flat, size[0], size[1], size[2], 2);
+            assertArrayEquals(flatten(mat), flat, 0);
+        }
+    }
+
+    @Test
+    public void planes() {
+        for (int[] size : sizes) {
+            float[][][] mat = volume(size, 1);
+            float[][][] expected = rotate(mat, 1, false, false);
+            FFT_Shift.shiftPlanes(mat, 1);
+            assertArrayEquals(flatten(expected), flatten(mat), 0);
+
+            expected = rotate(mat, 1, true, false);
+            FFT_Shift.ishiftPlanes(mat, 1);
+            assertArrayEquals(flatten(expected), flatten(mat), 0);
+        }
+    }
+
+    // element i of each axis moved to (i + n/2) % n, or to (i - n/2) mod n if inverse. The slices stay where they are
+    // unless slices is set
+    static private float[][][] rotate(float[][][] mat, int elem, boolean inverse, boolean slices) {
+        int s = mat.length;
+        int h = mat[0].length;
+        int w = mat[0][0].length / elem;
+        float[][][] ret = new float[s][h][w * elem];
+        for (int i = 0; i < s; i++)
+            for (int j = 0; j < h; j++)
+                for (int k = 0; k < w; k++)
+                    for (int e = 0; e < elem; e++)
+                        ret[slices ? to(i, s, inverse) : i][to(j, h, inverse)][to(k, w, inverse)*elem + e] = mat[i][j][k*elem + e];
+        return ret;
+    }
+
+    static private int to(int i, int n, boolean inverse) {
+        return inverse ? (i + n - n/2) % n : (i + n/2) % n;
+    }
+
+    static private float[] flatten(float[][][] mat) {
+        int rowLength = mat[0][0].length;
+        float[] ret = new float[mat.length * mat[0].length * rowLength];
+        int idx = 0;
+        for (float[][] slice : mat)
+            for (float[] row : slice) {
+                System.arraycopy(row, 0, ret, idx, rowLength);
+                idx += rowLength;
+            }
+        return ret;
+    }
+
+    static private float[][][] volume(int[] size, int elem) {
+        Random random = new Random(size[0] * size[1] * size[2] * elem);
+        float[][][] mat = new float[size[0]][size[1]][size[2] * elem];
+        for (float[][] slice : mat)
+            for (float[] row : slice)
+                for (int k = 0; k < row.length; k++)
+                    row[k] = random.nextFloat();
+        return mat;
+    }
+}
@@ -0,0 +1,74 @@
+package edu.pdx.imagej.deconv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class Frame_Scheduler_Test {
+
+    // every report runs on the calling thread, and a frame's reports all run before the frame is consumed
+    @Test
+    public void reportsRunBeforeTheirFrame() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Frame_Scheduler scheduler = new Frame_Scheduler(pool, 4);
+            Thread caller = Thread.currentThread();
+            List<Integer> reported = new ArrayList<Integer>();
+            List<Integer> consumed = new ArrayList<Integer>();
+            scheduler.run(20, i -> {
+                for (int k = 0; k < 3; k++)
+                    scheduler.report(() -> {
+                        assertSame(caller, Thread.currentThread());
+                        reported.add(i);
+                    });
+                return i;
+            }, (i, result) -> {
+                assertEquals(3, reported.stream().filter(r -> r == i).count());
+                consumed.add(result);
+            });
+
+            assertEquals(60, reported.size());
+            for (int i = 0; i < 20; i++)
+                assertEquals(i, (int) consumed.get(i));
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    // a failed frame is rethrown, and reports left over from it do not run in the next run
+    @Test
+    public void failureClearsReports() {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            Frame_Scheduler scheduler = new Frame_Scheduler(pool, 2);
+            List<Integer> reported = new ArrayList<Integer>();
+            boolean thrown = false;
+            try {
+                scheduler.run(2, i -> {
+                    if (i == 0)
+                        throw new IllegalStateException();
+                    scheduler.report(() -> reported.add(i));
+                    return i;
+                }, (i, result) -> {});
+            }
+            catch (IllegalStateException e) {
+                thrown = true;
+            }
+            assertTrue(thrown);
+
+            reported.clear();
+            scheduler.run(1, i -> i, (i, result) -> {});
+            assertTrue(reported.isEmpty());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+}
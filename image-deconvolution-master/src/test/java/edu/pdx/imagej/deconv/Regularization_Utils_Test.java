@@ -0,0 +1,76 @@
+package edu.pdx.imagej.deconv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Regularization_Utils_Test {
+    static private final int slices = 4;
+    static private final int height = 8;
+    static private final int width = 8;
+    static private final float tolerance = 1e-4f;
+
+    // the filters applied in Fourier space give the same D, U, and energy as the spatial convolutions, up to rounding
+    @Test
+    public void fourierMatchesSpatial() {
+        float[][][] image = image();
+        Regularization_Utils spatial = utils(image, false);
+        Regularization_Utils fourier = utils(image, true);
+        assertEquals(spatial.error, fourier.error, tolerance * spatial.error);
+
+        for (Regularization_Utils ru : new Regularization_Utils[] {spatial, fourier}) {
+            ru.get_dMat();
+            ru.get_uMat();
+            ru.get_guessTilde();
+            ru.getEnergyMeasure(true);
+        }
+        assertEquals(spatial.errorTilde, fourier.errorTilde, tolerance * spatial.errorTilde);
+
+        assertTrue(spatial.checkTilde() && fourier.checkTilde());
+        spatial.update();
+        fourier.update();
+        float[] expected = spatial.guess[0].data;
+        float[] actual = fourier.guess[0].data;
+        float max = 0;
+        for (float value : expected)
+            max = Math.max(max, Math.abs(value));
+        for (int n = 0; n < expected.length; n++)
+            assertEquals(expected[n], actual[n], tolerance * max);
+    }
+
+    // each gets its own copies, since the image and the PSF are transformed in place
+    static private Regularization_Utils utils(float[][][] image, boolean fourier) {
+        Complex_Volume frame = new Complex_Volume(slices, height, width);
+        frame.setReal(image);
+        return new Regularization_Utils(new Complex_Volume[] {frame}, Deconvolve_Image_Utils.toFFTform(psf()), 0.178223f, 10, 2, 0.1f, fourier);
+    }
+
+    // a normalized Gaussian
+    static private float[][][] psf() {
+        float[][][] mat = new float[slices][height][width];
+        for (int i = 0; i < slices; i++)
+            for (int j = 0; j < height; j++)
+                for (int k = 0; k < width; k++) {
+                    double r2 = (i - slices/2) * (i - slices/2) + (j - height/2) * (j - height/2) + (k - width/2) * (k - width/2);
+                    mat[i][j][k] = (float) Math.exp(-r2 / 2);
+                }
+        Deconvolve_Image_Utils.normalize(mat);
+        return mat;
+    }
+
+    // a few point sources on a dim background, with amplitudes between 0 and 1 as ER-Decon expects
+    static private float[][][] image() {
+        Random random = new Random(5);
+        float[][][] mat = new float[slices][height][width];
+        for (float[][] slice : mat)
+            for (float[] row : slice)
+                for (int k = 0; k < width; k++)
+                    row[k] = 0.05f + 0.01f * random.nextFloat();
+        for (int n = 0; n < 5; n++)
+            mat[random.nextInt(slices)][random.nextInt(height)][random.nextInt(width)] = 0.5f + 0.5f * random.nextFloat();
+        return mat;
+    }
+}
@@ -0,0 +1,106 @@
+package edu.pdx.imagej.deconv;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Transfer_Function_Test {
+    static private final int[][] sizes = {{4, 6, 8}, {3, 5, 7}, {4, 5, 6}};
+
+    // two real volumes through one transform pair come back as if each was convolved on its own
+    @Test
+    public void convolvePair() {
+        for (int[] size : sizes)
+            for (boolean folded : new boolean[] {false, true}) {
+                Transfer_Function tf = kernel(size, folded);
+                Real_Volume a = volume(size, 1);
+                Real_Volume b = volume(size, 2);
+                Real_Volume retA = new Real_Volume(size[0], size[1], size[2]);
+                Real_Volume retB = new Real_Volume(size[0], size[1], size[2]);
+                tf.convolvePair(a, b, retA, retB, tf.newWorkVolume());
+
+                assertClose(convolve(tf, a), retA);
+                assertClose(convolve(tf, b), retB);
+            }
+    }
+
+    // without a second volume the imaginary parts stay zero
+    @Test
+    public void convolveSingle() {
+        for (int[] size : sizes) {
+            Transfer_Function tf = kernel(size, true);
+            Real_Volume a = volume(size, 3);
+            Real_Volume retA = new Real_Volume(size[0], size[1], size[2]);
+            tf.convolvePair(a, null, retA, null, tf.newWorkVolume());
+            assertClose(convolve(tf, a), retA);
+        }
+    }
+
+    // The phase ramp gives the same result as shifting after the convolution, which FFT_Shift_Test checks against an
+    // explicit rotation. Odd sizes need a true ramp rather than sign flips. The kernel and volume are complex
+    @Test
+    public void foldShift() {
+        for (int[] size : sizes) {
+            float[][][] kernel = complex(size, 4);
+            Transfer_Function shifted = new Transfer_Function(kernel);
+            Transfer_Function folded = new Transfer_Function(kernel);
+            folded.foldShift();
+
+            Complex_Volume vol = Complex_Volume.fromMatrix(complex(size, 5));
+            Complex_Volume expected = shifted.newWorkVolume();
+            Complex_Volume actual = folded.newWorkVolume();
+            shifted.convolve(vol, expected);
+            folded.convolve(vol, actual);
+
+            float max = 0;
+            for (float value : expected.data)
+                max = Math.max(max, Math.abs(value));
+            for (int n = 0; n < expected.data.length; n++)
+                assertEquals(expected.data[n], actual.data[n], 1e-5 * max);
+        }
+    }
+
+    // a as a complex volume with a phase of zero, convolved on its own, and the real part kept
+    static private Real_Volume convolve(Transfer_Function tf, Real_Volume a) {
+        Complex_Volume vol = new Complex_Volume(a.slices, a.height, a.width);
+        vol.setReal(a.toMatrix());
+        tf.convolve(vol, vol);
+        return vol.getRe();
+    }
+
+    static private void assertClose(Real_Volume expected, Real_Volume actual) {
+        float max = 0;
+        for (float value : expected.data)
+            max = Math.max(max, Math.abs(value));
+        for (int n = 0; n < expected.data.length; n++)
+            assertEquals(expected.data[n], actual.data[n], 1e-5 * max);
+    }
+
+    // a random real kernel, not symmetric, so a mix-up of the two volumes would show
+    static private Transfer_Function kernel(int[] size, boolean folded) {
+        Transfer_Function tf = new Transfer_Function(Deconvolve_Image_Utils.toFFTform(volume(size, 0).toMatrix()));
+        if (folded)
+            tf.foldShift();
+        return tf;
+    }
+
+    static private float[][][] complex(int[] size, long seed) {
+        Random random = new Random(seed);
+        float[][][] mat = new float[size[0]][size[1]][2 * size[2]];
+        for (float[][] slice : mat)
+            for (float[] row : slice)
+                for (int k = 0; k < row.length; k++)
+                    row[k] = random.nextFloat() - 0.5f;
+        return mat;
+    }
+
+    static private Real_Volume volume(int[] size, long seed) {
+        Random random = new Random(seed);
+        Real_Volume vol = new Real_Volume(size[0], size[1], size[2]);
+        for (int n = 0; n < vol.data.length; n++)
+            vol.data[n] = random.nextFloat();
+        return vol;
+    }
+}
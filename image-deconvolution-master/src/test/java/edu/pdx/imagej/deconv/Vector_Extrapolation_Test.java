@@ -0,0 +1,120 @@
+package edu.pdx.imagej.deconv;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+// Accelerated and plain iterative deconvolution of a synthetic volume: a few point sources on a dim background,
+// blurred by a Gaussian PSF, with a little noise
+public class Vector_Extrapolation_Test {
+    static private final int slices = 8;
+    static private final int height = 32;
+    static private final int width = 32;
+    static private final float beta = 0.001f;
+
+    static private final float[][][] psf = psf();
+    static private final float[][][] image = image();
+
+    // with an error tolerance, acceleration stops sooner at the same error
+    @Test
+    public void acceleratedStopsSooner() {
+        Stopping_Rule stopping = new Stopping_Rule(0, 0.001f);
+        List<Float> plain = errors(stopping, -1, 50);
+        List<Float> accelerated = errors(stopping, Vector_Extrapolation.DEFAULT_MAX_ALPHA, 50);
+
+        assertTrue(accelerated.size() + " accelerated iterations, " + plain.size() + " plain", accelerated.size() < plain.size());
+        float last = plain.get(plain.size() - 1);
+        assertEquals(last, accelerated.get(accelerated.size() - 1), 1e-3 * last);
+    }
+
+    // the default reaches the error the plain iteration converges to in fewer iterations than a smaller or larger
+    // largest alpha
+    @Test
+    public void defaultMaxAlpha() {
+        List<Float> plain = errors(Stopping_Rule.NONE, -1, 10);
+        float converged = plain.get(plain.size() - 1);
+        int withDefault = reached(errors(Stopping_Rule.NONE, Vector_Extrapolation.DEFAULT_MAX_ALPHA, 10), converged);
+
+        assertTrue(withDefault < reached(plain, converged));
+        assertTrue(withDefault <= reached(errors(Stopping_Rule.NONE, 0.5, 10), converged));
+        assertTrue(withDefault <= reached(errors(Stopping_Rule.NONE, 1, 10), converged));
+    }
+
+    // alpha is never above 0, so every iteration starts from the last guess as it does without acceleration
+    @Test
+    public void zeroMaxAlphaIsPlain() {
+        assertArrayEquals(toArray(errors(Stopping_Rule.NONE, -1, 5)), toArray(errors(Stopping_Rule.NONE, 0, 5)), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxAlphaAboveOne() {
+        new Vector_Extrapolation(8, 1.5);
+    }
+
+    // the error after each iteration of a "Standard" deconvolution, accelerated with maxAlpha unless it is negative
+    static private List<Float> errors(Stopping_Rule stopping, double maxAlpha, int iterations) {
+        Iterative_Deconvolver deconvolver = new Iterative_Deconvolver(psf, null, "Standard", iterations, beta, true);
+        deconvolver.setStoppingRule(stopping);
+        if (maxAlpha >= 0)
+            deconvolver.setAccelerated(true, maxAlpha);
+        List<Float> errors = new ArrayList<Float>();
+        deconvolver.setMetricsListener((name, frame, iteration, value) -> {
+            if (name == "frame error")
+                errors.add((float) value);
+        });
+        deconvolver.deconvolve(1, i -> new float[][][][] {image}, (i, parts) -> {});
+        return errors;
+    }
+
+    // the first iteration whose error is within 1e-4 of target
+    static private int reached(List<Float> errors, float target) {
+        for (int i = 0; i < errors.size(); i++)
+            if (Math.abs(errors.get(i) - target) <= 1e-4 * target)
+                return i + 1;
+        return Integer.MAX_VALUE;
+    }
+
+    static private float[] toArray(List<Float> list) {
+        float[] array = new float[list.size()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = list.get(i);
+        return array;
+    }
+
+    // a normalized Gaussian, twice as wide along z
+    static private float[][][] psf() {
+        float[][][] mat = new float[slices][height][width];
+        double sigma = 1.5;
+        for (int i = 0; i < slices; i++)
+            for (int j = 0; j < height; j++)
+                for (int k = 0; k < width; k++) {
+                    double r2 = (i - slices/2) * (i - slices/2) / 4.0 + (j - height/2) * (j - height/2) + (k - width/2) * (k - width/2);
+                    mat[i][j][k] = (float) Math.exp(-r2 / (2 * sigma * sigma));
+                }
+        Deconvolve_Image_Utils.normalize(mat);
+        return mat;
+    }
+
+    static private float[][][] image() {
+        Random random = new Random(3);
+        Real_Volume object = new Real_Volume(slices, height, width);
+        for (int n = 0; n < 20; n++)
+            object.set(random.nextInt(slices), random.nextInt(height), random.nextInt(width), 1 + random.nextFloat());
+        for (int n = 0; n < object.data.length; n++)
+            object.data[n] += 0.05f;
+
+        Transfer_Function psfTF = new Transfer_Function(Deconvolve_Image_Utils.toFFTform(psf));
+        psfTF.foldShift();
+        Real_Volume blurred = new Real_Volume(slices, height, width);
+        psfTF.convolvePair(object, null, blurred, null, psfTF.newWorkVolume());
+        for (int n = 0; n < blurred.data.length; n++)
+            blurred.data[n] = Math.max(0, blurred.data[n] + (float) (0.002 * random.nextGaussian()));
+        return blurred.toMatrix();
+    }
+}
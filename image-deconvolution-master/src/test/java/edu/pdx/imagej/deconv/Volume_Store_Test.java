@@ -0,0 +1,72 @@
+package edu.pdx.imagej.deconv;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+public class Volume_Store_Test {
+
+    @Test
+    public void roundTrip() {
+        try (Volume_Store store = new Volume_Store(3, 2, 4, 5)) {
+            for (int i = 0; i < 3; i++)
+                store.write(i, volume(2, 4, 5, 1 + i));
+            for (int i = 0; i < 3; i++) {
+                float[][][] expected = volume(2, 4, 5, 1 + i);
+                float[][][] mat = store.read(i);
+                for (int j = 0; j < 2; j++)
+                    for (int k = 0; k < 4; k++)
+                        assertArrayEquals(expected[j][k], mat[j][k], 0);
+
+                float[] plane = store.readPlane(i, 1);
+                for (int k = 0; k < 4; k++)
+                    for (int l = 0; l < 5; l++)
+                        assertEquals(expected[1][k][l], plane[k*5 + l], 0);
+            }
+        }
+    }
+
+    // each thread copies through its own buffer
+    @Test
+    public void severalThreads() throws Exception {
+        int frames = 16;
+        try (Volume_Store store = new Volume_Store(frames, 3, 8, 8)) {
+            ForkJoinPool pool = new ForkJoinPool(4);
+            pool.submit(() -> IntStream.range(0, frames).parallel().forEach(i -> store.write(i, volume(3, 8, 8, 1 + i)))).get();
+            pool.submit(() -> IntStream.range(0, frames).parallel().forEach(i -> {
+                float[][][] expected = volume(3, 8, 8, 1 + i);
+                float[][][] mat = store.read(i);
+                for (int j = 0; j < 3; j++)
+                    for (int k = 0; k < 8; k++)
+                        assertArrayEquals(expected[j][k], mat[j][k], 0);
+            })).get();
+            pool.shutdown();
+        }
+    }
+
+    // infinite values are left out of the range used for 8 and 16 bits
+    @Test
+    public void range() {
+        try (Volume_Store store = new Volume_Store(2, 1, 1, 3)) {
+            store.write(0, new float[][][] {{{1, Float.POSITIVE_INFINITY, -2}}});
+            store.write(1, new float[][][] {{{5, Float.NEGATIVE_INFINITY, 0}}});
+            assertEquals(-2, store.getMin(), 0);
+            assertEquals(5, store.getMax(), 0);
+        }
+    }
+
+    static private float[][][] volume(int slices, int height, int width, long seed) {
+        Random random = new Random(seed);
+        float[][][] mat = new float[slices][height][width];
+        for (float[][] slice : mat)
+            for (float[] row : slice)
+                for (int k = 0; k < width; k++)
+                    row[k] = random.nextFloat();
+        return mat;
+    }
+}
@@ -0,0 +1,25 @@
+package edu.pdx.imagej.deconv;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class Volume_Test {
+
+    @Test
+    public void lengths() {
+        assertEquals(2 * 3 * 4, new Real_Volume(2, 3, 4).data.length);
+        assertEquals(2 * 3 * 2 * 4, new Complex_Volume(2, 3, 4).data.length);
+    }
+
+    // 512 x 2048 x 2048 x 2 wraps around to 0 in int arithmetic
+    @Test(expected = IllegalArgumentException.class)
+    public void complexTooLarge() {
+        new Complex_Volume(512, 2048, 2048);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void realTooLarge() {
+        new Real_Volume(1024, 2048, 1024);
+    }
+}
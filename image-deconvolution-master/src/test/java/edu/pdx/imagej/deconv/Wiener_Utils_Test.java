@@ -0,0 +1,44 @@
+package edu.pdx.imagej.deconv;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Wiener_Utils_Test {
+    static private final float beta = 0.01f;
+
+    // Real frames are deconvolved two at a time through one transform pair. With an odd frame count the last frame is
+    // left on its own. Every frame should come out as it does when it is deconvolved by itself
+    @Test
+    public void oddFrameCount() {
+        for (int[] size : new int[][] {{4, 6, 8}, {3, 5, 7}}) {
+            float[][][] psf = volume(size, 0);
+            float[][][][] frames = {volume(size, 1), volume(size, 2), volume(size, 3)};
+
+            Wiener_Utils wu = new Wiener_Utils(size[2], size[1], size[0], frames.length, beta, false);
+            wu.deconvolve(frames, psf, false);
+
+            for (int i = 0; i < frames.length; i++) {
+                Wiener_Utils alone = new Wiener_Utils(size[2], size[1], size[0], 1, beta, false);
+                alone.deconvolve(new float[][][][] {frames[i]}, psf, false);
+                // the last frame takes the same path either way
+                double tolerance = i == frames.length - 1 ? 0 : 1e-5;
+                for (int j = 0; j < size[0]; j++)
+                    for (int k = 0; k < size[1]; k++)
+                        assertArrayEquals(alone.imgComplex[0][j][k], wu.imgComplex[i][j][k], (float) tolerance);
+            }
+        }
+    }
+
+    static private float[][][] volume(int[] size, long seed) {
+        Random random = new Random(seed);
+        float[][][] mat = new float[size[0]][size[1]][size[2]];
+        for (float[][] slice : mat)
+            for (float[] row : slice)
+                for (int k = 0; k < row.length; k++)
+                    row[k] = random.nextFloat();
+        return mat;
+    }
+}